@@ -3,11 +3,41 @@ package com.ficklerobot.gridvideoviewer;
 import android.graphics.Bitmap;
 import android.util.LruCache;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Bitmapのメモリキャッシュ<br>
+ * 追い出したBitmapはプールに格納するか解放する。ただしImageViewに表示中のものは、
+ * attachCachedBitmap()とdetachBitmap()で数えた表示数が0になるまで格納も解放もしない
+ *
+ * @param <T> キャッシュのキー
+ */
 public abstract class BitmapLruCache<T> {
 
     protected LruCache<T, Bitmap> mCache;
+    /** 追い出したBitmapの格納先 null:再利用しない */
+    protected final BitmapPool mPool;
+
+    /** mAttachCounts・mPendingReleaseのロック */
+    private final Object mAttachLock = new Object();
+    /** 表示中のBitmapと、表示しているImageViewの数 */
+    private final IdentityHashMap<Bitmap, Integer> mAttachCounts = new IdentityHashMap<>();
+    /** キャッシュから追い出されたが、表示中なので格納・解放を保留しているBitmap */
+    private final Set<Bitmap> mPendingRelease =
+            Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
 
     public BitmapLruCache(int cacheSize) {
+        this(cacheSize, null);
+    }
+
+    /**
+     * @param cacheSize キャッシュのバイト数
+     * @param pool 追い出したBitmapの格納先 nullの場合は再利用しない
+     */
+    public BitmapLruCache(int cacheSize, BitmapPool pool) {
+        mPool = pool;
         mCache = new LruCache<T, Bitmap>(cacheSize) {
             @Override
             protected int sizeOf(T id, Bitmap value) {
@@ -17,14 +47,81 @@ public abstract class BitmapLruCache<T> {
             @Override
             protected void entryRemoved(boolean evicted, T key, Bitmap oldValue,
                                         Bitmap newValue) {
+                if (oldValue == newValue) {
+                    return;
+                }
 
-                if (oldValue.isMutable()) {
-                    oldValue.recycle();
+                synchronized (mAttachLock) {
+                    if (mAttachCounts.containsKey(oldValue)) {
+                        // 表示中なので、表示が外れてから格納・解放する
+                        mPendingRelease.add(oldValue);
+                        return;
+                    }
                 }
+
+                releaseBitmap(oldValue);
             }
         };
     }
 
+    /**
+     * キャッシュにあれば取得し、表示数を1増やす<br>
+     * 表示をやめる際にdetachBitmap()を呼び出すこと
+     *
+     * @return キャッシュに無ければnull。作成はしない
+     */
+    public Bitmap attachCachedBitmap(T id) {
+        // 取得と数えるまでの間に追い出されて、プールに格納されないようにする
+        synchronized (mAttachLock) {
+            Bitmap bmp = mCache.get(id);
+            if (bmp != null) {
+                Integer count = mAttachCounts.get(bmp);
+                mAttachCounts.put(bmp, count != null ? count + 1 : 1);
+            }
+            return bmp;
+        }
+    }
+
+    /**
+     * 表示数を1減らす<br>
+     * 0になった時点でキャッシュから追い出されていれば、プールに格納するか解放する
+     *
+     * @param bitmap attachCachedBitmap()で受け取ったBitmap
+     */
+    public void detachBitmap(Bitmap bitmap) {
+        synchronized (mAttachLock) {
+            Integer count = mAttachCounts.get(bitmap);
+            if (count == null) {
+                return;
+            }
+
+            if (count > 1) {
+                mAttachCounts.put(bitmap, count - 1);
+                return;
+            }
+
+            mAttachCounts.remove(bitmap);
+            if (!mPendingRelease.remove(bitmap)) {
+                return; // まだキャッシュにある
+            }
+        }
+
+        releaseBitmap(bitmap);
+    }
+
+    /**
+     * 追い出したBitmapをプールに格納する。格納できなければ解放する
+     */
+    private void releaseBitmap(Bitmap bitmap) {
+        if (mPool != null && mPool.put(bitmap)) {
+            return; // 次の読み込みで再利用する
+        }
+
+        if (bitmap.isMutable()) {
+            bitmap.recycle();
+        }
+    }
+
     public void stockBitmapToMemoryCache(T id, Bitmap bitmap) {
         mCache.put(id, bitmap);
     }
@@ -33,6 +130,13 @@ public abstract class BitmapLruCache<T> {
         mCache.remove(id);
     }
 
+    /**
+     * @return キャッシュに無ければnull。作成はしない
+     */
+    public Bitmap getCachedBitmap(T id) {
+        return mCache.get(id);
+    }
+
     public Bitmap getBitmapFromMemCache(T id) {
 
         Bitmap bmp = mCache.get(id);
@@ -0,0 +1,141 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * 再利用するBitmapのプール<br>
+ * キャッシュから追い出された可変のBitmapを幅・高さ・形式ごとに保持し、
+ * 同じサイズの画像を読み込む際にBitmapFactory.Options.inBitmapとして渡す。
+ * 合計バイト数が上限を超えたら、古く格納されたものから解放する<br>
+ * inBitmapはAPI 19未満では同じサイズのBitmapにしか使えないため、サイズが一致するものだけを返す<br>
+ * 表示中のBitmapはBitmapLruCacheが表示から外れるまで格納しないので、格納したものはいつ上書き・解放してもよい
+ */
+class BitmapPool {
+    private static final String TAG = "VideoGrid";
+
+    /** 保持するバイト数の上限 */
+    private final int mMaxBytes;
+    private int mCurrentBytes;
+    /** サイズごとのBitmap */
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBuckets = new HashMap<>();
+    /** 格納順。上限を超えた際に先頭から解放する */
+    private final ArrayDeque<Bitmap> mOrder = new ArrayDeque<>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictCount;
+
+    /**
+     * @param maxBytes 保持するバイト数の上限
+     */
+    BitmapPool(int maxBytes) {
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 再利用できるBitmapを取り出す
+     *
+     * @return 指定サイズのBitmap 無ければnull
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> bucket = mBuckets.get(makeKey(width, height, config));
+        Bitmap bitmap = bucket != null ? bucket.pollLast() : null;
+
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+
+        mOrder.remove(bitmap);
+        mCurrentBytes -= bitmap.getByteCount();
+        mHitCount++;
+
+        return bitmap;
+    }
+
+    /**
+     * Bitmapを格納する。再利用できないものは格納しない
+     *
+     * @param bitmap 誰からも表示されていないBitmap
+     * @return true:格納した
+     */
+    synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null || bitmap.getByteCount() > mMaxBytes) {
+            return false;
+        }
+
+        long key = makeKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(key, bucket);
+        }
+
+        bucket.addLast(bitmap);
+        mOrder.addLast(bitmap);
+        mCurrentBytes += bitmap.getByteCount();
+
+        trimToSize(mMaxBytes);
+        return true;
+    }
+
+    /**
+     * 合計バイト数が指定値以下になるまで、古く格納されたものから解放する
+     *
+     * @param maxBytes バイト数
+     */
+    synchronized void trimToSize(int maxBytes) {
+        while (mCurrentBytes > maxBytes && !mOrder.isEmpty()) {
+            Bitmap bitmap = mOrder.pollFirst();
+            long key = makeKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+
+            ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(key);
+            }
+
+            mCurrentBytes -= bitmap.getByteCount();
+            mEvictCount++;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * メモリ不足の度合いに応じて解放する
+     *
+     * @param level ComponentCallbacks2.onTrimMemory()のレベル
+     */
+    void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        }
+    }
+
+    synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * 再利用の集計をログに出力する
+     */
+    synchronized void dumpStats() {
+        int total = mHitCount + mMissCount;
+
+        Log.d(TAG, "bitmap pool hit:" + mHitCount + "/" + total
+                + " evict:" + mEvictCount
+                + " size(KB):" + mCurrentBytes / 1024 + "/" + mMaxBytes / 1024);
+    }
+
+    private static long makeKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+}
@@ -0,0 +1,475 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * 端末のビデオデコーダの能力<br>
+ * MediaCodecListから、MIMEタイプごとのデコーダ名・ハードウェアか否か・最大解像度・最大フレームレート・
+ * 同時に生成できる数を調べてファイルに保存する。保存した内容はビルドのフィンガープリントが同じ間だけ使う<br>
+ * 同時に生成できる数が取得できない端末では、同じ生成数で繰り返しデコーダの生成に失敗したら、その数を上限とする。
+ * この上限は一時的な失敗で下がりすぎないよう、ファイルには保存せずにプロセスの間だけ使う
+ */
+class CodecProfileStore {
+    private static final String TAG = "VideoGrid";
+    private static final int FILE_MAGIC = 0x43505246; // "CPRF"
+    private static final int FILE_VERSION = 2;
+    /** 同じ生成数でこの回数続けて生成に失敗したら、その数を上限とする */
+    private static final int LEARN_FAILURE_COUNT = 2;
+
+    /** 保存先ファイル null:未読み込み */
+    private File mFile;
+    private boolean mIsDirty;
+    /** MediaCodecListの順に並べたデコーダ */
+    private final ArrayList<DecoderProfile> mDecoders = new ArrayList<>();
+
+    private static CodecProfileStore sMe;
+
+    private CodecProfileStore() {
+    }
+
+    static synchronized CodecProfileStore getInstance() {
+        if (sMe == null) {
+            sMe = new CodecProfileStore();
+        }
+        return sMe;
+    }
+
+    /**
+     * ファイルから読み込む<br>
+     * ファイルが無いか、別のビルドで保存されたものであれば、MediaCodecListを調べ直して保存する。
+     * 同じファイルを読み込み済みであれば何もしない
+     *
+     * @param file 保存先ファイル
+     */
+    synchronized void load(File file) {
+        if (file.equals(mFile)) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis(); // 計測ログ用
+        mFile = file;
+        mDecoders.clear();
+
+        if (!read(file)) {
+            mDecoders.clear();
+            probe();
+            mIsDirty = true;
+            save();
+        }
+
+        Log.d(TAG, "codec profile decoders:" + mDecoders.size()
+                + " cost:" + (System.currentTimeMillis() - startTime));
+        for (DecoderProfile decoder : mDecoders) {
+            Log.d(TAG, "codec profile " + decoder);
+        }
+    }
+
+    /**
+     * 変更があればファイルに書き込む<br>
+     * 一時ファイルに書き込んでから置き換えるので、途中で失敗しても前回の内容が残る
+     */
+    synchronized void save() {
+        if (mFile == null || !mIsDirty) {
+            return;
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean isOk = false;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+
+            out.writeInt(mDecoders.size());
+            for (DecoderProfile decoder : mDecoders) {
+                out.writeUTF(decoder.name);
+                out.writeUTF(decoder.mimeType);
+                out.writeBoolean(decoder.isHardware);
+                out.writeInt(decoder.maxWidth);
+                out.writeInt(decoder.maxHeight);
+                out.writeInt(decoder.maxFrameRate);
+                out.writeInt(decoder.maxInstances);
+            }
+
+            out.close();
+            out = null;
+            isOk = tmpFile.renameTo(mFile);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+
+        if (isOk) {
+            mIsDirty = false;
+        } else {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * @return false:ファイルが無い、読み込めない、または別のビルドで保存された
+     */
+    private boolean read(File file) {
+        if (!file.exists()) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION
+                    || !Build.FINGERPRINT.equals(in.readUTF())) {
+                return false;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                mDecoders.add(new DecoderProfile(in.readUTF(), in.readUTF(),
+                        in.readBoolean(), in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+            }
+            return true;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * MediaCodecListからビデオデコーダを調べる<br>
+     * 最大解像度・最大フレームレートはAPI 21から、同時に生成できる数はAPI 23から取得できる
+     */
+    private void probe() {
+        for (MediaCodecInfo info : getCodecInfos()) {
+            if (info.isEncoder()) {
+                continue;
+            }
+
+            for (String type : info.getSupportedTypes()) {
+                if (!type.startsWith("video/")) {
+                    continue;
+                }
+
+                MediaCodecInfo.CodecCapabilities caps;
+                try {
+                    caps = info.getCapabilitiesForType(type);
+                } catch (IllegalArgumentException e) {
+                    Log.d(TAG, "Failed to get capabilities codec:" + info.getName() + " type:" + type);
+                    continue;
+                }
+
+                int maxWidth = 0;
+                int maxHeight = 0;
+                int maxFrameRate = 0;
+
+                if (Build.VERSION.SDK_INT >= 21) {
+                    MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+                    if (video != null) {
+                        maxWidth = video.getSupportedWidths().getUpper();
+                        maxHeight = video.getSupportedHeights().getUpper();
+                        Range<Integer> frameRates = video.getSupportedFrameRates();
+                        maxFrameRate = frameRates.getUpper();
+                    }
+                }
+
+                mDecoders.add(new DecoderProfile(info.getName(), type,
+                        isHardware(info.getName()), maxWidth, maxHeight, maxFrameRate,
+                        getMaxSupportedInstances(caps)));
+            }
+        }
+    }
+
+    /**
+     * 再生する動画に使うデコーダを選ぶ<br>
+     * MediaCodecListの順(createDecoderByType()と同じ順)に、解像度・フレームレートが収まり、
+     * 生成数が上限に達していないものを選ぶ。ハードウェアデコーダが使えなければソフトウェアデコーダになる
+     *
+     * @param mimeType 動画のMIMEタイプ
+     * @param width 動画の幅
+     * @param height 動画の高さ
+     * @param frameRate フレームレート 0:不明
+     * @param instanceCounts デコーダ名ごとの生成数を返す
+     * @return 選んだデコーダ null:調べていないMIMEタイプ、または使えるデコーダが無い
+     */
+    synchronized DecoderProfile selectDecoder(String mimeType, int width, int height,
+                                              int frameRate, InstanceCounter instanceCounts) {
+        for (DecoderProfile decoder : mDecoders) {
+            int maxInstances = decoder.getMaxInstances();
+            if (decoder.mimeType.equals(mimeType) && decoder.canDecode(width, height, frameRate)
+                    && (maxInstances <= 0
+                    || instanceCounts.getInstanceCount(decoder.name) < maxInstances)) {
+                return decoder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param mimeType 動画のMIMEタイプ
+     * @param width 動画の幅
+     * @param height 動画の高さ
+     * @param frameRate フレームレート 0:不明
+     * @return false:このMIMEタイプのデコーダはあるが、どれも解像度・フレームレートが収まらない。
+     * 調べていないMIMEタイプ・デコーダが無いMIMEタイプはtrue(生成を試みる)
+     */
+    synchronized boolean isSupported(String mimeType, int width, int height, int frameRate) {
+        boolean hasDecoder = false;
+
+        for (DecoderProfile decoder : mDecoders) {
+            if (decoder.mimeType.equals(mimeType)) {
+                if (decoder.canDecode(width, height, frameRate)) {
+                    return true;
+                }
+                hasDecoder = true;
+            }
+        }
+
+        return !hasDecoder;
+    }
+
+    /**
+     * 同時に生成できる数を、MIMEタイプごとに合計する<br>
+     * 最初に選ばれるデコーダが上限に達しても、selectDecoder()は次のデコーダを選ぶので、
+     * このMIMEタイプを扱える全てのデコーダの上限を合計する
+     *
+     * @param mimeType 動画のMIMEタイプ
+     * @return このMIMEタイプのデコーダを合わせて同時に生成できる数 0:上限が不明なデコーダがある
+     */
+    synchronized int getTotalMaxInstances(String mimeType) {
+        int total = 0;
+
+        for (DecoderProfile decoder : mDecoders) {
+            if (decoder.mimeType.equals(mimeType)) {
+                int maxInstances = decoder.getMaxInstances();
+                if (maxInstances <= 0) {
+                    return 0;
+                }
+                total += maxInstances;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 動画リストに含まれるMIMEタイプについて、同時に生成できる数を求める<br>
+     * MIMEタイプが異なってもハードウェアのデコーダは共有されることが多いので、
+     * 合計せずに最も少ないMIMEタイプの数とする。扱えるデコーダが無いMIMEタイプは再生できないので除く
+     *
+     * @param mimeTypes 動画リストに含まれるMIMEタイプ
+     * @return 同時に生成できる数 0:上限が不明なデコーダがある
+     */
+    synchronized int getMaxInstances(Collection<String> mimeTypes) {
+        int limit = 0;
+
+        for (String mimeType : mimeTypes) {
+            if (!hasDecoder(mimeType)) {
+                continue;
+            }
+
+            int total = getTotalMaxInstances(mimeType);
+            if (total <= 0) {
+                return 0;
+            }
+            limit = limit > 0 ? Math.min(limit, total) : total;
+        }
+        return limit;
+    }
+
+    private boolean hasDecoder(String mimeType) {
+        for (DecoderProfile decoder : mDecoders) {
+            if (decoder.mimeType.equals(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * デコーダの生成に失敗したら呼び出す<br>
+     * 同時に生成できる数がAPIから取得できていないデコーダについて、同じ生成数で
+     * LEARN_FAILURE_COUNT回続けて失敗したら、その数を上限とする。上限はファイルには保存しない
+     *
+     * @param name 生成しようとしたデコーダ名
+     * @param instanceCount 失敗した時点で生成済みのデコーダ数
+     */
+    synchronized void recordInstanceLimit(String name, int instanceCount) {
+        if (instanceCount <= 0) {
+            return; // 生成数とは関係なく失敗した
+        }
+
+        for (DecoderProfile decoder : mDecoders) {
+            if (!decoder.name.equals(name) || decoder.maxInstances > 0) {
+                continue; // APIから取得した上限は下げない
+            }
+
+            if (decoder.failedInstanceCount == instanceCount) {
+                decoder.failureCount++;
+            } else {
+                decoder.failedInstanceCount = instanceCount;
+                decoder.failureCount = 1;
+            }
+
+            if (decoder.failureCount >= LEARN_FAILURE_COUNT
+                    && (decoder.learnedMaxInstances <= 0
+                    || instanceCount < decoder.learnedMaxInstances)) {
+                Log.d(TAG, "codec profile instance limit name:" + name + " max:" + instanceCount);
+                decoder.learnedMaxInstances = instanceCount;
+            }
+        }
+    }
+
+    /**
+     * API 21からはMediaCodecListのインスタンスから取得する。
+     * getCodecCount()/getCodecInfoAt()はAPI 21で非推奨になったので、それより前の端末でのみ使う
+     *
+     * @return 端末のコーデック。createDecoderByType()が選ぶ順
+     */
+    @SuppressWarnings("deprecation")
+    private static MediaCodecInfo[] getCodecInfos() {
+        if (Build.VERSION.SDK_INT >= 21) {
+            return new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        }
+
+        MediaCodecInfo[] infos = new MediaCodecInfo[MediaCodecList.getCodecCount()];
+        for (int i = 0; i < infos.length; i++) {
+            infos[i] = MediaCodecList.getCodecInfoAt(i);
+        }
+        return infos;
+    }
+
+    /**
+     * ソフトウェアデコーダの名前の慣例から判定する
+     */
+    private static boolean isHardware(String name) {
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.")
+                && !name.contains(".sw.");
+    }
+
+    /**
+     * CodecCapabilities#getMaxSupportedInstances()はAPI 23からで、compileSdkVersionより新しいため
+     * リフレクションで呼び出す
+     *
+     * @return 同時に生成できる数 0:不明
+     */
+    private static int getMaxSupportedInstances(MediaCodecInfo.CodecCapabilities caps) {
+        if (Build.VERSION.SDK_INT < 23) {
+            return 0;
+        }
+
+        try {
+            Method method = caps.getClass().getMethod("getMaxSupportedInstances");
+            return (Integer) method.invoke(caps);
+        } catch (Exception e) {
+            Log.d(TAG, "Failed to get max supported instances. msg:" + e.getMessage());
+            return 0;
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //Do nothing
+            }
+        }
+    }
+
+    /**
+     * デコーダ名ごとの生成数。DecoderPoolが返す
+     */
+    interface InstanceCounter {
+        int getInstanceCount(String name);
+    }
+
+    /**
+     * 1つのデコーダの、1つのMIMEタイプに対する能力
+     */
+    static class DecoderProfile {
+        /** MediaCodec.createByCodecName()に渡す名前 */
+        final String name;
+        final String mimeType;
+        final boolean isHardware;
+        /** 最大の幅 0:不明 */
+        final int maxWidth;
+        /** 最大の高さ 0:不明 */
+        final int maxHeight;
+        /** 最大のフレームレート 0:不明 */
+        final int maxFrameRate;
+        /** APIから取得した、同時に生成できる数 0:不明 */
+        final int maxInstances;
+        /** 生成の失敗から求めた、同時に生成できる数 0:不明。ファイルには保存しない */
+        int learnedMaxInstances;
+        /** 最後に生成に失敗した時点の生成数 */
+        int failedInstanceCount;
+        /** failedInstanceCountで続けて生成に失敗した回数 */
+        int failureCount;
+
+        DecoderProfile(String name, String mimeType, boolean isHardware,
+                       int maxWidth, int maxHeight, int maxFrameRate, int maxInstances) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.isHardware = isHardware;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxFrameRate = maxFrameRate;
+            this.maxInstances = maxInstances;
+        }
+
+        /**
+         * @return 同時に生成できる数。APIから取得できていなければ、生成の失敗から求めた数 0:不明
+         */
+        int getMaxInstances() {
+            return maxInstances > 0 ? maxInstances : learnedMaxInstances;
+        }
+
+        /**
+         * 縦長の動画は幅と高さを入れ替えても判定する
+         *
+         * @return false:解像度かフレームレートが収まらない
+         */
+        boolean canDecode(int width, int height, int frameRate) {
+            if (maxFrameRate > 0 && frameRate > maxFrameRate) {
+                return false;
+            }
+            if (maxWidth <= 0 || maxHeight <= 0) {
+                return true;
+            }
+
+            return (width <= maxWidth && height <= maxHeight)
+                    || (height <= maxWidth && width <= maxHeight);
+        }
+
+        @Override
+        public String toString() {
+            return mimeType + " " + name + (isHardware ? " hw" : " sw")
+                    + " max:" + maxWidth + "x" + maxHeight + "@" + maxFrameRate
+                    + " instances:" + getMaxInstances();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.ficklerobot.gridvideoviewer;
+
+/**
+ * 同時再生数を自動調整するクラス<br>
+ * フレームの表示遅れとデコーダの起動失敗を観測し、AIMD(加算増加・乗算減少)で上限値を増減する<br>
+ * 時刻は呼び出し元から渡すため、Androidに依存せずに動作を確認できる
+ */
+class ConcurrencyController {
+    /** この時間(ミリ秒)を超えて表示が遅れたフレームを遅延フレームとみなす */
+    static final long LATE_THRESHOLD_MS = 40;
+    /** 遅延率を判定するフレーム数 */
+    static final int WINDOW_FRAMES = 90;
+    /** 遅延フレームの割合がこれを超えたら同時再生数を減らす */
+    static final float LATE_RATIO_LIMIT = 0.1f;
+    /** 減少時の係数 */
+    static final float DECREASE_FACTOR = 0.7f;
+    /** 同時再生数を減らしてから、増やし始めるまでの時間(ナノ秒) */
+    static final long INCREASE_COOLDOWN_NS = 3000L * 1000 * 1000;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    /** 同時再生数の上限値。減少時の端数は切り捨てる */
+    private int mLimit;
+
+    private int mWindowFrames;
+    private int mLateFrames;
+    /** 最後に同時再生数を減らした時刻(ナノ秒) */
+    private long mLastDecreaseNs;
+    private boolean mHasDecreased;
+
+    /**
+     * @param minLimit 同時再生数の下限
+     * @param maxLimit 同時再生数の上限
+     * @param initialLimit 同時再生数の初期値
+     */
+    ConcurrencyController(int minLimit, int maxLimit, int initialLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new java.lang.IllegalArgumentException(
+                    "Invalid bounds. :" + minLimit + "," + maxLimit);
+        }
+
+        this.mMinLimit = minLimit;
+        this.mMaxLimit = maxLimit;
+        this.mLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * @return 現在の同時再生数の上限
+     */
+    synchronized int getLimit() {
+        return mLimit;
+    }
+
+    int getMinLimit() {
+        return mMinLimit;
+    }
+
+    int getMaxLimit() {
+        return mMaxLimit;
+    }
+
+    /**
+     * フレームを表示するたびに呼び出す
+     *
+     * @param latenessMs 表示予定時刻からの遅れ(ミリ秒)。予定より早ければ0以下
+     * @param saturated true:再生枠が足りずに待っているセルがある
+     * @param nowNs 現在時刻(ナノ秒)
+     * @return true:同時再生数の上限が変わった
+     */
+    synchronized boolean onFrame(long latenessMs, boolean saturated, long nowNs) {
+        mWindowFrames++;
+        if (latenessMs > LATE_THRESHOLD_MS) {
+            mLateFrames++;
+        }
+
+        if (mWindowFrames < WINDOW_FRAMES) {
+            return false;
+        }
+
+        int before = getLimit();
+
+        if (mLateFrames > mWindowFrames * LATE_RATIO_LIMIT) {
+            decrease(before * DECREASE_FACTOR, nowNs);
+        } else if (saturated
+                && (!mHasDecreased || nowNs - mLastDecreaseNs >= INCREASE_COOLDOWN_NS)) {
+            mLimit = Math.min(mMaxLimit, mLimit + 1);
+        }
+
+        mWindowFrames = 0;
+        mLateFrames = 0;
+
+        return before != getLimit();
+    }
+
+    /**
+     * デコーダの起動やデコードに失敗したら呼び出す<br>
+     * 端末のデコーダ数が足りないとみなし、直ちに同時再生数を減らす
+     *
+     * @param runCount 失敗したものを含む、再生中のデコーダ数
+     * @param nowNs 現在時刻(ナノ秒)
+     * @return true:同時再生数の上限が変わった
+     */
+    synchronized boolean onFailure(int runCount, long nowNs) {
+        int before = getLimit();
+
+        decrease(Math.min(before * DECREASE_FACTOR, runCount - 1), nowNs);
+
+        mWindowFrames = 0;
+        mLateFrames = 0;
+
+        return before != getLimit();
+    }
+
+    private void decrease(float limit, long nowNs) {
+        mLimit = Math.max(mMinLimit, (int) limit);
+        mLastDecreaseNs = nowNs;
+        mHasDecreased = true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "limit:" + getLimit() + " [" + mMinLimit + "-" + mMaxLimit + "]";
+    }
+}
@@ -0,0 +1,154 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * デコード処理を実行するワーカースレッドの管理クラス<br>
+ * CPUコア数分の固定数のワーカーが、再生枠を割り当てられたDecodeSessionを受け持つ。
+ * セルの数が増えてもスレッド数は変わらない
+ */
+class DecodeEngine {
+    private static final String TAG = "VideoGrid";
+    /** ワーカー数の上限 */
+    private static final int MAX_WORKER_COUNT = 4;
+    /** 受け持つセッションが無い場合の待機時間(ナノ秒) */
+    private static final long IDLE_WAIT_NS = 1000L * 1000 * 1000;
+
+    private final Worker[] mWorkers;
+
+    private static DecodeEngine sMe;
+
+    private DecodeEngine(int workerCount) {
+        mWorkers = new Worker[workerCount];
+
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Worker(i);
+            mWorkers[i].start();
+        }
+
+        Log.d(TAG, "DecodeEngine workers:" + workerCount);
+    }
+
+    static synchronized DecodeEngine getInstance() {
+        if (sMe == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            sMe = new DecodeEngine(Math.max(1, Math.min(cores, MAX_WORKER_COUNT)));
+        }
+        return sMe;
+    }
+
+    /**
+     * 受け持ちの最も少ないワーカーにセッションを登録する
+     *
+     * @param session 再生枠を割り当てられたDecodeSession
+     */
+    synchronized void attach(DecodeTask session) {
+        Worker target = mWorkers[0];
+        for (Worker worker : mWorkers) {
+            if (worker.getSessionCount() < target.getSessionCount()) {
+                target = worker;
+            }
+        }
+
+        target.add(session);
+    }
+
+    /**
+     * 複数のDecodeSessionのstep()を、それぞれが要求する時刻に順次呼び出すスレッド
+     */
+    static class Worker extends Thread {
+        private final Object mLock = new Object();
+        /** 登録待ちのセッション */
+        private final ArrayList<DecodeTask> mPending = new ArrayList<>();
+        /** 受け持っているセッション。このスレッドからのみ操作する */
+        private final ArrayList<DecodeTask> mSessions = new ArrayList<>();
+        /** 登録待ちを含む、受け持っているセッション数 */
+        private int mSessionCount;
+        private boolean mWakeupRequested;
+
+        Worker(int index) {
+            setName("DecodeWorker_" + index);
+            setDaemon(true);
+        }
+
+        int getSessionCount() {
+            synchronized (mLock) {
+                return mSessionCount;
+            }
+        }
+
+        void add(DecodeTask session) {
+            session.setWorker(this);
+
+            synchronized (mLock) {
+                mPending.add(session);
+                mSessionCount++;
+                mLock.notify();
+            }
+        }
+
+        /**
+         * 待機中であれば直ちにstep()の呼び出しを再開させる
+         */
+        void wakeup() {
+            synchronized (mLock) {
+                mWakeupRequested = true;
+                mLock.notify();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (mLock) {
+                    mSessions.addAll(mPending);
+                    mPending.clear();
+                }
+
+                long wakeNs = System.nanoTime() + IDLE_WAIT_NS;
+
+                for (int i = mSessions.size() - 1; i >= 0; i--) {
+                    DecodeTask session = mSessions.get(i);
+                    long nextNs;
+
+                    try {
+                        nextNs = session.step(System.nanoTime());
+                    } catch (RuntimeException e) {
+                        // 他のセッションを巻き込まないよう、ワーカーを止めずにこのセッションだけ外す
+                        Log.d(TAG, "Failed to step id:" + session.getSurfaceNumber()
+                                + " msg:" + e.getMessage());
+                        nextNs = DecodeTask.DETACH;
+                    }
+
+                    if (nextNs == DecodeTask.DETACH) {
+                        mSessions.remove(i);
+                        synchronized (mLock) {
+                            mSessionCount--;
+                        }
+
+                        // ワーカーから外した後で呼び出す。ここで再び再生枠が割り当てられる場合がある
+                        session.onDetached();
+                    } else if (nextNs < wakeNs) {
+                        wakeNs = nextNs;
+                    }
+                }
+
+                synchronized (mLock) {
+                    long waitNs = wakeNs - System.nanoTime();
+
+                    if (waitNs > 0 && mPending.isEmpty() && !mWakeupRequested) {
+                        try {
+                            mLock.wait(waitNs / 1000000, (int) (waitNs % 1000000));
+                        } catch (InterruptedException e) {
+                            // nop
+                        }
+                    }
+
+                    mWakeupRequested = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.util.Log;
+
+/**
+ * デコード処理のログ出力<br>
+ * 出力レベルを下回るログは文字列を組み立てずに捨てる。
+ * 引数はプリミティブ型のまま受け取るので、出力しない場合は呼び出してもメモリを確保しない<br>
+ * 出力レベルは起動時に「adb shell setprop log.tag.VideoGrid VERBOSE」などで指定する。既定はDEBUG
+ */
+final class DecodeLog {
+    private static final String TAG = "VideoGrid";
+
+    /** フレームごとに出力されうる詳細なログ */
+    static final int VERBOSE = Log.VERBOSE;
+    /** 再生の開始・終了などのログ */
+    static final int DEBUG = Log.DEBUG;
+
+    private static volatile int sLevel =
+            Log.isLoggable(TAG, Log.VERBOSE) ? Log.VERBOSE : Log.DEBUG;
+
+    private DecodeLog() {
+    }
+
+    /**
+     * @param level VERBOSE|DEBUG
+     */
+    static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /**
+     * 文字列の組み立てが重いログは、これで確かめてから組み立てる
+     *
+     * @param level VERBOSE|DEBUG
+     * @return true:出力される
+     */
+    static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    static void v(String msg) {
+        if (isLoggable(VERBOSE)) {
+            Log.v(TAG, msg);
+        }
+    }
+
+    static void v(String msg, long value) {
+        if (isLoggable(VERBOSE)) {
+            Log.v(TAG, msg + value);
+        }
+    }
+
+    static void d(String msg) {
+        if (isLoggable(DEBUG)) {
+            Log.d(TAG, msg);
+        }
+    }
+
+    static void d(String msg, int id) {
+        if (isLoggable(DEBUG)) {
+            Log.d(TAG, msg + id);
+        }
+    }
+
+    static void d(String msg, int id, String key, long value) {
+        if (isLoggable(DEBUG)) {
+            Log.d(TAG, msg + id + key + value);
+        }
+    }
+}
@@ -2,23 +2,93 @@ package com.ficklerobot.gridvideoviewer;
 
 import android.util.Log;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * デコードキューの管理クラス<br>
- * デコードスレッドのキューに持ち、同時再生数だけ順次取り出して実行する<br>
+ * デコードセッションを再生待ちキューに持ち、同時再生数だけ順次再生枠を割り当てる<br>
+ * 再生枠は空きが出た時点で待ちキューの先頭に直接渡し、割り当てられたセッションだけをDecodeEngineに登録する<br>
+ * 待ちキューは表示優先度ごとに分かれており、画面に表示されているセルから順に再生枠を割り当てる<br>
+ * ラウンドロビンの割り当て時間が設定されていれば、時間を使い切ったセッションは次の再生待ちに再生枠を譲る<br>
+ * 自動調整が有効な場合、同時再生数はConcurrencyControllerが表示遅れとデコーダの失敗から決める<br>
+ * 再生枠を取り上げられたセッションは、保持数の上限までデコーダを保持したまま一時停止し、次の再生枠で続きから再開する<br>
+ * セルが小さい場合はキーフレームのみを再生させ、1セルあたりのデコード量が減る分だけ同時再生数を増やす
  */
 class DecodeQueueManager {
     private static final String TAG = "VideoGrid";
     private static final int DEFAULT_MAX_RUN_COUNT = 3;
-    private final LinkedList<DecodeThread> mWaitQueue = new LinkedList<>();
-    /** 同時再生数 */
+    /** デコーダを保持したまま一時停止できるセッション数 */
+    private static final int MAX_SUSPENDED_COUNT = 2;
+    /** キーフレームのみを再生する場合の同時再生数の倍率 */
+    private static final int KEYFRAME_ONLY_RUN_FACTOR = 3;
+
+    /** 表示優先度: セル全体が画面内に表示されている */
+    static final int PRIORITY_VISIBLE = 0;
+    /** 表示優先度: セルの半分以上が表示されている */
+    static final int PRIORITY_PARTIAL = 1;
+    /** 表示優先度: セルの一部が画面端にかかっている(これからスクロールして表示される) */
+    static final int PRIORITY_NEAR = 2;
+    /** 表示優先度: 画面外 */
+    static final int PRIORITY_HIDDEN = 3;
+    private static final int PRIORITY_COUNT = 4;
+
+    /** 再生待ち */
+    private static final int STATE_WAITING = 0;
+    /** 再生中(再生枠を割り当て済み) */
+    private static final int STATE_RUNNING = 1;
+    /** キューから外された */
+    private static final int STATE_REMOVED = 2;
+
+    /** DecodeSessionとキュー要素の対応 */
+    private final HashMap<DecodeTask, Entry> mEntries = new HashMap<>();
+    /** 表示優先度ごとの再生待ちキュー */
+    private final EntryList[] mWaitQueues = new EntryList[PRIORITY_COUNT];
+    /** 再生中リスト。先頭が最も古くに再生を開始したもの */
+    private final EntryList mRunList = new EntryList();
+    /** 一時停止中のセッション。先頭が最も古くに一時停止したもの */
+    private final ArrayList<DecodeTask> mSuspendedList = new ArrayList<>();
+    /** 同時再生数。自動調整が有効な場合はその上限 */
     private int mMaxRunCount;
+    /** 同時再生数の自動調整 null:自動調整しない */
+    private volatile ConcurrencyController mController;
+    /** 再生待ちの数 */
+    private volatile int mWaitingCount;
+    /** ラウンドロビンの割り当て時間(ミリ秒) 0:時間で区切らない */
+    private volatile long mQuantumMs;
+    /** ラウンドロビンの割り当てフレーム数 0:フレーム数で区切らない */
+    private volatile int mQuantumFrames;
+    /** true:キーフレームのみを再生させる */
+    private volatile boolean mIsKeyframeOnly;
+    /** 端末のデコーダを合わせて同時に生成できる数 0:不明 */
+    private volatile int mDecoderInstanceLimit;
+    /** 次に割り当てる再生枠が、割り当て時間切れによって譲られたものであればその時刻(ナノ秒) */
+    private long mPendingHandoffNs;
+
+    /** 再生枠の割り当て回数 */
+    private long mGrantCount;
+    /** キュー追加から再生枠割り当てまでの時間の合計(ナノ秒) */
+    private long mGrantLatencySumNs;
+    /** キュー追加から再生枠割り当てまでの時間の最大値(ナノ秒) */
+    private long mGrantLatencyMaxNs;
+    /** 割り当て時間切れによる再生枠の受け渡し回数 */
+    private long mHandoffCount;
+    /** 再生枠を譲ってから次の動画の最初のフレームが表示されるまでの時間の合計(ナノ秒) */
+    private long mHandoffSumNs;
+    /** 再生枠を譲ってから次の動画の最初のフレームが表示されるまでの時間の最大値(ナノ秒) */
+    private long mHandoffMaxNs;
 
     private static DecodeQueueManager sMe;
 
-    private DecodeQueueManager() {
+    /**
+     * アプリではgetInstance()を使う。計測用に単独のインスタンスを作る場合にのみ直接呼び出す
+     */
+    DecodeQueueManager() {
         this.mMaxRunCount = DEFAULT_MAX_RUN_COUNT;
+
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mWaitQueues[i] = new EntryList();
+        }
     }
 
     static DecodeQueueManager getInstance() {
@@ -31,8 +101,14 @@ class DecodeQueueManager {
     @Override
     synchronized public String toString() {
         StringBuilder bf = new StringBuilder();
-        for(DecodeThread dec : mWaitQueue){
-            bf.append(String.valueOf(dec.getSurfaceNumber())).append(",");
+        for (Entry e = mRunList.head; e != null; e = e.next) {
+            bf.append(String.valueOf(e.decoder.getSurfaceNumber())).append(",");
+        }
+        for (EntryList queue : mWaitQueues) {
+            bf.append("|");
+            for (Entry e = queue.head; e != null; e = e.next) {
+                bf.append(String.valueOf(e.decoder.getSurfaceNumber())).append(",");
+            }
         }
 
         return bf.toString();
@@ -46,96 +122,662 @@ class DecodeQueueManager {
             throw new java.lang.IllegalArgumentException(
                     "The max count must be over 1. :" + maxRunCount);
         }
-        this.mMaxRunCount = maxRunCount;
+
+        synchronized (this) {
+            this.mMaxRunCount = maxRunCount;
+
+            ConcurrencyController controller = mController;
+            if (controller != null) {
+                // 下限より小さい同時再生数が指定されたら、下限も合わせて下げる
+                mController = new ConcurrencyController(
+                        Math.min(controller.getMinLimit(), maxRunCount),
+                        maxRunCount, Math.min(controller.getLimit(), maxRunCount));
+            }
+
+            applyRunLimit();
+        }
     }
 
-    synchronized void clear() {
-        mWaitQueue.clear();
+    /**
+     * 同時再生数の自動調整を設定する<br>
+     * 有効にすると、setMaxRunCount()で指定した値を上限として、表示遅れとデコーダの失敗から同時再生数を増減する
+     *
+     * @param adaptive true:自動調整する
+     * @param minRunCount 自動調整時の同時再生数の下限
+     */
+    synchronized void setAdaptiveRunCount(boolean adaptive, int minRunCount) {
+        if (adaptive) {
+            int min = Math.min(minRunCount, mMaxRunCount);
+            mController = new ConcurrencyController(min, mMaxRunCount,
+                    Math.min(DEFAULT_MAX_RUN_COUNT, mMaxRunCount));
+        } else {
+            mController = null;
+        }
+
+        applyRunLimit();
+    }
+
+    boolean isAdaptiveRunCount() {
+        return mController != null;
     }
 
     /**
-     * 再生待ちキューの末尾に追加
+     * フレームを表示するたびに呼び出す<br>
+     * 自動調整が有効な場合、表示の遅れから同時再生数を増減する
      *
-     * @param inDs DecodeThread
+     * @param latenessMs 表示予定時刻からの遅れ(ミリ秒)
      */
-    synchronized void offerDecoder(DecodeThread inDs) {
-        if (!mWaitQueue.contains(inDs)) {
-            mWaitQueue.offer(inDs);
+    void reportFrameLateness(long latenessMs) {
+        ConcurrencyController controller = mController;
+
+        if (controller != null
+                && controller.onFrame(latenessMs, mWaitingCount > 0, System.nanoTime())) {
+            synchronized (this) {
+                applyRunLimit();
+            }
         }
     }
 
     /**
-     * 再生待ちキューから削除
+     * デコーダの起動やデコードに失敗したら呼び出す<br>
+     * 自動調整が有効な場合、直ちに同時再生数を減らす
+     */
+    void reportDecoderFailure() {
+        ConcurrencyController controller = mController;
+
+        if (controller != null) {
+            synchronized (this) {
+                if (controller.onFailure(mRunList.size, System.nanoTime())) {
+                    applyRunLimit();
+                }
+            }
+        }
+    }
+
+    /**
+     * セルのサイズから、キーフレームのみを再生させるかを決める<br>
+     * キーフレームのみの場合、同時再生数はsetMaxRunCount()・自動調整で決まる値のKEYFRAME_ONLY_RUN_FACTOR倍になる
      *
-     * @param inDs DecodeThread
+     * @param cellSize セルのサイズ
+     * @param maxCellSize この値以下のセルはキーフレームのみを再生する 0:常に全フレームを再生する
      */
-    synchronized void removeDecoder(DecodeThread inDs) {
-        mWaitQueue.remove(inDs);
+    void setKeyframeOnlyCellSize(int cellSize, int maxCellSize) {
+        synchronized (this) {
+            mIsKeyframeOnly = maxCellSize > 0 && cellSize <= maxCellSize;
+            applyRunLimit();
+        }
+
+        Log.d(TAG, "keyframe only:" + mIsKeyframeOnly + " cell:" + cellSize + " max:" + maxCellSize);
+    }
 
-        synchronized (mWaitQueue) {
-            mWaitQueue.notifyAll();
+    /**
+     * 端末のデコーダを合わせて同時に生成できる数を設定する<br>
+     * 同時再生数はsetMaxRunCount()・自動調整・キーフレームのみの再生で決まる値に関わらず、この数を超えない
+     *
+     * @param limit 再生するMIMEタイプを扱える全てのデコーダで、同時に生成できる数の合計 0:不明なので制限しない
+     */
+    void setDecoderInstanceLimit(int limit) {
+        synchronized (this) {
+            mDecoderInstanceLimit = Math.max(0, limit);
+            applyRunLimit();
         }
+
+        Log.d(TAG, "decoder instance limit:" + limit);
     }
 
     /**
-     * 割り込んで再生する<br>
-     * 動画再生数が最大数であれば、最初に再生された動画を停止して新たに動画を再生する
+     * @return true:キーフレームのみを再生する
+     */
+    boolean isKeyframeOnly() {
+        return mIsKeyframeOnly;
+    }
+
+    /**
+     * @return 現在の同時再生数
+     */
+    private int getRunLimit() {
+        ConcurrencyController controller = mController;
+        int limit = controller != null ? controller.getLimit() : mMaxRunCount;
+        if (mIsKeyframeOnly) {
+            limit *= KEYFRAME_ONLY_RUN_FACTOR;
+        }
+
+        int instanceLimit = mDecoderInstanceLimit;
+        return instanceLimit > 0 ? Math.min(limit, instanceLimit) : limit;
+    }
+
+    /**
+     * 同時再生数の変更を反映する<br>
+     * 再生中の数が上限を超えていれば、優先度の低いもの・後から再生を始めたものから停止させる<br>
+     * thisのロックを保持した状態で呼び出すこと
+     */
+    private void applyRunLimit() {
+        int limit = getRunLimit();
+
+        while (mRunList.size > limit) {
+            Entry victim = mRunList.tail;
+            for (Entry e = mRunList.tail; e != null; e = e.prev) {
+                if (e.priority > victim.priority) {
+                    victim = e;
+                }
+            }
+
+            Log.d(TAG, "run limit:" + limit + " preempt id:" + victim.decoder.getSurfaceNumber());
+            preempt(victim);
+        }
+
+        rebalance();
+    }
+
+    /**
+     * ラウンドロビン再生の割り当てを設定する<br>
+     * どちらかを使い切った時点で、同じ以上の表示優先度のセルが待っていれば再生枠を譲る
      *
-     * @param inDs DecodeThread
+     * @param quantumMs 1回の再生枠で再生する時間(ミリ秒) 0:時間で区切らない
+     * @param quantumFrames 1回の再生枠で表示するフレーム数 0:フレーム数で区切らない
      */
-    synchronized void interrupt(DecodeThread inDs) {
-        Log.d(TAG, "BEFORE interrupt id:" + inDs.getSurfaceNumber() + " list:" + toString());
+    void setRoundRobinQuantum(long quantumMs, int quantumFrames) {
+        if (quantumMs < 0 || quantumFrames < 0) {
+            throw new java.lang.IllegalArgumentException(
+                    "The quantum must not be negative. :" + quantumMs + "," + quantumFrames);
+        }
+
+        this.mQuantumMs = quantumMs;
+        this.mQuantumFrames = quantumFrames;
+    }
+
+    void clear() {
+        synchronized (this) {
+            for (EntryList queue : mWaitQueues) {
+                queue.clear();
+            }
 
-        mWaitQueue.remove(inDs);
+            mRunList.clear();
+            mEntries.clear();
+            mWaitingCount = 0;
 
-        int insertIndex = mMaxRunCount;
-        if (insertIndex >= mWaitQueue.size()) {
-            insertIndex = mWaitQueue.size();
+            dumpStats();
         }
 
-        mWaitQueue.add(insertIndex, inDs);
+        trimSuspended();
+    }
+
+    /**
+     * 一時停止したセッションを登録する<br>
+     * 保持数の上限に達していれば、最も古くに一時停止したセッションのデコーダを破棄させる
+     *
+     * @param inDs 一時停止したDecodeSession
+     * @return false:デコーダを保持できないので、呼び出し元で破棄すること
+     */
+    boolean addSuspended(DecodeTask inDs) {
+        DecodeTask evicted = null;
+
+        synchronized (this) {
+            if (MAX_SUSPENDED_COUNT <= 0) {
+                return false;
+            }
+
+            if (mSuspendedList.size() >= MAX_SUSPENDED_COUNT) {
+                evicted = mSuspendedList.remove(0);
+            }
+            mSuspendedList.add(inDs);
+        }
 
-        DecodeThread headDs = mWaitQueue.poll();
-        if (headDs != null) {
-            headDs.setDecodeDone(true);
+        // セッションのロックを取るので、thisのロックの外で呼び出す
+        if (evicted != null) {
+            evicted.releaseSuspended();
         }
 
-        Log.d(TAG, "AFTER interrupt id:" + inDs.getSurfaceNumber() + " list:" + toString());
+        return true;
     }
 
     /**
-     * いずれかの動画の再生が停止したら呼び出す<br>
-     * notifyAll()を呼び出し、再生待ちスレッドが実行されるようにする
+     * 一時停止の登録を解除する
+     *
+     * @param inDs 再開または停止したDecodeSession
      */
-    void notifyStop() {
-        synchronized (mWaitQueue) {
-            mWaitQueue.notifyAll();
+    synchronized void removeSuspended(DecodeTask inDs) {
+        mSuspendedList.remove(inDs);
+    }
+
+    /**
+     * 最も古くに一時停止したセッションのデコーダを破棄させる<br>
+     * デコーダの生成数が上限に達し、新しいデコーダを生成できない場合に呼び出す
+     *
+     * @return false:一時停止中のセッションが無い
+     */
+    boolean releaseOldestSuspended() {
+        DecodeTask oldest;
+
+        synchronized (this) {
+            if (mSuspendedList.isEmpty()) {
+                return false;
+            }
+            oldest = mSuspendedList.remove(0);
         }
+
+        // セッションのロックを取るので、thisのロックの外で呼び出す
+        oldest.releaseSuspended();
+        return true;
     }
 
     /**
-     * 再生できるようになるまで待つ<br>
+     * 一時停止中の全てのセッションのデコーダを破棄させる<br>
+     * メモリが不足している場合に呼び出す。破棄されたセッションは次回キーフレームから再生する
+     */
+    void trimSuspended() {
+        ArrayList<DecodeTask> suspended;
+
+        synchronized (this) {
+            suspended = new ArrayList<>(mSuspendedList);
+            mSuspendedList.clear();
+        }
+
+        for (DecodeTask ds : suspended) {
+            ds.releaseSuspended();
+        }
+    }
+
+    /**
+     * 再生待ちキューの末尾に追加<br>
+     * DecodeSessionの表示優先度に対応するキューに追加する
      *
-     * @param ds DecodeThread
-     * @return true:順番が来たので再生可能 false:順番待ち
+     * @param inDs DecodeTask
      */
-    boolean waitForTurn(DecodeThread ds) {
-        while (true) {
-            int index = mWaitQueue.indexOf(ds);
+    synchronized void offerDecoder(DecodeTask inDs) {
+        if (!mEntries.containsKey(inDs)) {
+            Entry entry = new Entry(inDs, inDs.getDisplayPriority());
+            TraceRecorder.getInstance().instant(TraceRecorder.OFFER, inDs.getSurfaceNumber(),
+                    entry.priority);
+            mEntries.put(inDs, entry);
+            mWaitQueues[entry.priority].addLast(entry);
+
+            rebalance();
+        }
+    }
+
+    /**
+     * 再生待ちキューから削除<br>
+     * 再生中であれば再生枠を解放し、次の再生待ちセッションに割り当てる
+     *
+     * @param inDs DecodeTask
+     */
+    synchronized void removeDecoder(DecodeTask inDs) {
+        Entry entry = mEntries.remove(inDs);
+
+        if (entry != null) {
+            if (entry.state == STATE_RUNNING) {
+                mRunList.remove(entry);
+            } else {
+                mWaitQueues[entry.priority].remove(entry);
+            }
 
-            if (index < 0) {
+            entry.state = STATE_REMOVED;
+
+            mPendingHandoffNs = entry.yieldRequestedNs;
+            rebalance();
+            mPendingHandoffNs = 0;
+        }
+    }
+
+    /**
+     * 割り当て時間を使い切ったか判定する<br>
+     * 使い切っていて、かつ同じ以上の表示優先度のセルが待っていればtrueを返す。
+     * その場合、呼び出し元は再生位置を記録して再生を終了し、removeDecoder()で再生枠を譲ること
+     *
+     * @param inDs DecodeTask
+     * @param playedMs 今回の再生枠で再生した時間(ミリ秒)
+     * @param playedFrames 今回の再生枠で表示したフレーム数
+     * @return true:再生枠を譲る
+     */
+    boolean shouldYield(DecodeTask inDs, long playedMs, int playedFrames) {
+        long quantumMs = mQuantumMs;
+        int quantumFrames = mQuantumFrames;
+
+        if ((quantumMs <= 0 || playedMs < quantumMs)
+                && (quantumFrames <= 0 || playedFrames < quantumFrames)) {
+            return false;
+        }
+
+        synchronized (this) {
+            Entry entry = mEntries.get(inDs);
+            if (entry == null || entry.state != STATE_RUNNING) {
                 return false;
-            } else if (index < mMaxRunCount) {
-                return true;
             }
 
-            synchronized (mWaitQueue) {
-                try {
-                    mWaitQueue.wait();
-                } catch (InterruptedException e) {
-                    // nop
+            for (int i = 0; i <= entry.priority; i++) {
+                if (mWaitQueues[i].head != null) {
+                    entry.yieldRequestedNs = System.nanoTime();
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * 再生枠を割り当てられたセッションが最初のフレームを表示したら呼び出す<br>
+     * 割り当て時間切れで譲られた再生枠であれば、受け渡しにかかった時間を記録する
+     *
+     * @param inDs DecodeTask
+     */
+    synchronized void notifyFirstFrame(DecodeTask inDs) {
+        Entry entry = mEntries.get(inDs);
+
+        if (entry != null && entry.handoffStartNs != 0) {
+            long cost = System.nanoTime() - entry.handoffStartNs;
+            entry.handoffStartNs = 0;
+
+            mHandoffCount++;
+            mHandoffSumNs += cost;
+            if (cost > mHandoffMaxNs) {
+                mHandoffMaxNs = cost;
+            }
+
+            Log.d(TAG, "handoff id:" + inDs.getSurfaceNumber()
+                    + " cost(ms):" + (cost / 1000000));
+        }
+    }
+
+    /**
+     * 表示優先度を変更する<br>
+     * 再生待ちであれば優先度に対応するキューの末尾に移動する。
+     * 再生中のものは画面内にある限り継続し、画面外に出たものは表示中のセルが待っていれば再生枠を譲る
+     *
+     * @param inDs DecodeTask
+     * @param priority 表示優先度 PRIORITY_VISIBLE〜PRIORITY_HIDDEN
+     */
+    void updatePriority(DecodeTask inDs, int priority) {
+        if (priority < PRIORITY_VISIBLE || priority > PRIORITY_HIDDEN) {
+            throw new java.lang.IllegalArgumentException("Invalid priority. :" + priority);
+        }
+
+        synchronized (this) {
+            inDs.setDisplayPriority(priority);
+
+            Entry entry = mEntries.get(inDs);
+            if (entry != null && entry.priority != priority) {
+                if (entry.state == STATE_WAITING) {
+                    mWaitQueues[entry.priority].remove(entry);
+                    mWaitQueues[priority].addLast(entry);
                 }
+                entry.priority = priority;
+
+                rebalance();
+            }
+        }
+    }
+
+    /**
+     * 割り込んで再生する<br>
+     * 動画再生数が最大数であれば、最初に再生された動画を一時停止させて新たに動画を再生する
+     *
+     * @param inDs DecodeTask
+     */
+    void interrupt(DecodeTask inDs) {
+        if (inDs == null) {
+            return;
+        }
+
+        synchronized (this) {
+            Log.d(TAG, "BEFORE interrupt id:" + inDs.getSurfaceNumber() + " list:" + toString());
+            TraceRecorder.getInstance().instant(TraceRecorder.INTERRUPT, inDs.getSurfaceNumber(), 0);
+
+            Entry entry = mEntries.get(inDs);
+            if (entry != null && entry.state == STATE_RUNNING) {
+                // 既に再生中
+                return;
+            }
+
+            if (entry == null) {
+                entry = new Entry(inDs, PRIORITY_VISIBLE);
+                mEntries.put(inDs, entry);
+            } else {
+                mWaitQueues[entry.priority].remove(entry);
+                entry.priority = PRIORITY_VISIBLE;
+            }
+            mWaitQueues[PRIORITY_VISIBLE].addFirst(entry);
+
+            if (mRunList.size >= getRunLimit() && mRunList.head != null) {
+                preempt(mRunList.head);
+            }
+
+            rebalance();
+
+            Log.d(TAG, "AFTER interrupt id:" + inDs.getSurfaceNumber() + " list:" + toString());
+        }
+    }
+
+    /**
+     * 動画の再生が停止されたら呼び出す<br>
+     * 再生待ちであればキューから外す
+     *
+     * @param inDs 停止されたDecodeSession
+     */
+    synchronized void notifyStop(DecodeTask inDs) {
+        Entry entry = mEntries.get(inDs);
+
+        if (entry != null && entry.state == STATE_WAITING) {
+            mEntries.remove(inDs);
+            mWaitQueues[entry.priority].remove(entry);
+            entry.state = STATE_REMOVED;
+            mWaitingCount--;
+        }
+    }
+
+    /**
+     * 空いている再生枠を割り当て、画面外のセルが表示中のセルの再生枠を塞いでいれば譲らせる<br>
+     * thisのロックを保持した状態で呼び出すこと
+     */
+    private void rebalance() {
+        do {
+            grantSlots();
+        } while (preemptHiddenDecoder());
+
+        int waiting = 0;
+        for (EntryList queue : mWaitQueues) {
+            waiting += queue.size;
+        }
+        mWaitingCount = waiting;
+    }
+
+    /**
+     * 空いている再生枠を、優先度の高い待ちキューの先頭から順に割り当てる<br>
+     * thisのロックを保持した状態で呼び出すこと
+     */
+    private void grantSlots() {
+        while (mRunList.size < getRunLimit()) {
+            Entry entry = pollWaiting();
+            if (entry == null) {
+                break;
+            }
+
+            entry.state = STATE_RUNNING;
+            entry.handoffStartNs = mPendingHandoffNs;
+            mPendingHandoffNs = 0;
+            mRunList.addLast(entry);
+
+            long latency = System.nanoTime() - entry.offeredNs;
+            TraceRecorder.getInstance().instant(TraceRecorder.GRANT,
+                    entry.decoder.getSurfaceNumber(), latency / 1000000);
+            mGrantCount++;
+            mGrantLatencySumNs += latency;
+            if (latency > mGrantLatencyMaxNs) {
+                mGrantLatencyMaxNs = latency;
+            }
+
+            entry.decoder.onGranted(latency);
+        }
+    }
+
+    /**
+     * 最も優先度の高い再生待ちを取り出す
+     *
+     * @return 再生待ちが無ければnull
+     */
+    private Entry pollWaiting() {
+        for (EntryList queue : mWaitQueues) {
+            if (queue.head != null) {
+                return queue.pollFirst();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 再生枠が埋まっている状態で、待っているセルより優先度の低い画面端・画面外のセルが再生中であれば停止させる
+     *
+     * @return true:再生枠を1つ空けた
+     */
+    private boolean preemptHiddenDecoder() {
+        if (mRunList.size < getRunLimit()) {
+            return false;
+        }
+
+        int bestWaiting = -1;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            if (mWaitQueues[i].head != null) {
+                bestWaiting = i;
+                break;
+            }
+        }
+        if (bestWaiting < 0) {
+            return false;
+        }
+
+        Entry worst = null;
+        for (Entry e = mRunList.head; e != null; e = e.next) {
+            if (e.priority >= PRIORITY_NEAR && e.priority > bestWaiting
+                    && (worst == null || e.priority > worst.priority)) {
+                worst = e;
             }
         }
+
+        if (worst == null) {
+            return false;
+        }
+
+        Log.d(TAG, "preempt hidden decoder id:" + worst.decoder.getSurfaceNumber());
+        preempt(worst);
+        return true;
+    }
+
+    /**
+     * 再生中のセッションを一時停止させ、再生枠を解放する<br>
+     * 一時停止したセッションは改めてキューに並び、次の再生枠で続きから再生する
+     */
+    private void preempt(Entry entry) {
+        TraceRecorder.getInstance().instant(TraceRecorder.PREEMPT,
+                entry.decoder.getSurfaceNumber(), mRunList.size);
+        mRunList.remove(entry);
+        mEntries.remove(entry.decoder);
+        entry.state = STATE_REMOVED;
+        entry.decoder.suspend();
+    }
+
+    /**
+     * 再生枠割り当てまでの待ち時間をログに出力する
+     */
+    private void dumpStats() {
+        if (mGrantCount > 0) {
+            Log.d(TAG, "grant stats count:" + mGrantCount
+                    + " avg(ms):" + (mGrantLatencySumNs / mGrantCount / 1000000)
+                    + " max(ms):" + (mGrantLatencyMaxNs / 1000000));
+        }
+
+        if (mHandoffCount > 0) {
+            Log.d(TAG, "handoff stats count:" + mHandoffCount
+                    + " avg(ms):" + (mHandoffSumNs / mHandoffCount / 1000000)
+                    + " max(ms):" + (mHandoffMaxNs / 1000000));
+        }
+    }
+
+    /**
+     * キューの要素<br>
+     * 待ちキューと再生中リストの間を付け替えるだけなので、追加・削除はO(1)で行える
+     */
+    private static class Entry {
+        final DecodeTask decoder;
+        final long offeredNs;
+        int state;
+        /** 表示優先度 */
+        int priority;
+        /** 割り当て時間切れで再生枠を譲ると判定された時刻(ナノ秒) 0:譲っていない */
+        long yieldRequestedNs;
+        /** 譲られた再生枠であれば、譲る判定がされた時刻(ナノ秒) 0:譲られたものではない */
+        long handoffStartNs;
+        Entry prev;
+        Entry next;
+
+        Entry(DecodeTask decoder, int priority) {
+            this.decoder = decoder;
+            this.offeredNs = System.nanoTime();
+            this.state = STATE_WAITING;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Entryの双方向リスト
+     */
+    private static class EntryList {
+        Entry head;
+        Entry tail;
+        int size;
+
+        void addFirst(Entry e) {
+            e.prev = null;
+            e.next = head;
+            if (head != null) {
+                head.prev = e;
+            } else {
+                tail = e;
+            }
+            head = e;
+            size++;
+        }
+
+        void addLast(Entry e) {
+            e.next = null;
+            e.prev = tail;
+            if (tail != null) {
+                tail.next = e;
+            } else {
+                head = e;
+            }
+            tail = e;
+            size++;
+        }
+
+        void remove(Entry e) {
+            if (e.prev != null) {
+                e.prev.next = e.next;
+            } else {
+                head = e.next;
+            }
+            if (e.next != null) {
+                e.next.prev = e.prev;
+            } else {
+                tail = e.prev;
+            }
+            e.prev = null;
+            e.next = null;
+            size--;
+        }
+
+        Entry pollFirst() {
+            Entry e = head;
+            if (e != null) {
+                remove(e);
+            }
+            return e;
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            size = 0;
+        }
     }
-}
\ No newline at end of file
+}
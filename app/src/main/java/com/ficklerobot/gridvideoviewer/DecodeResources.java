@@ -0,0 +1,59 @@
+package com.ficklerobot.gridvideoviewer;
+
+import java.io.IOException;
+
+/**
+ * DecodeSessionが再生に使う、サンプルの読み込み元とデコーダの入手先<br>
+ * 1つのDecodeSession専用とし、同時に開くのは読み込み元とデコーダを1つずつとする。
+ * releaseSurface()以外はワーカースレッドから呼び出される
+ */
+interface DecodeResources {
+
+    /**
+     * 動画のサンプルの読み込み元を開く。開いた読み込み元は先頭のサンプルを指す
+     *
+     * @param item 再生する動画
+     * @param isKeyframeOnly true:キーフレームのみを読み込む
+     * @return 読み込み元 null:動画を読み込めない
+     */
+    SampleSource openSource(PlaybackItem item, boolean isKeyframeOnly);
+
+    /**
+     * @return openSource()で開いた動画トラックのMIMEタイプ
+     */
+    String getMimeType();
+
+    /**
+     * openSource()で開いた動画トラックのデコーダを用意する
+     *
+     * @param item 再生する動画
+     * @return デコーダ null:端末のデコーダでは再生できない
+     * @throws IOException デコーダを用意できなかった。時間をおけば用意できる場合がある
+     */
+    VideoDecoder openDecoder(PlaybackItem item) throws IOException;
+
+    /**
+     * 一時停止中に保持していたデコーダで再生を再開する
+     */
+    void markResumed();
+
+    /**
+     * 最初のフレームを表示した
+     *
+     * @param elapsedNs 再生枠が割り当てられてからの時間(ナノ秒)
+     */
+    void onFirstFrame(long elapsedNs);
+
+    /**
+     * openDecoder()で用意したデコーダを返却する
+     *
+     * @param keepStarted true:出力先を使い続けるので、デコーダを停止せずに返却する
+     * @param reusable false:デコード中に失敗したので再利用しない
+     */
+    void releaseDecoder(boolean keepStarted, boolean reusable);
+
+    /**
+     * 出力先が破棄される。UIスレッドから呼び出される
+     */
+    void releaseSurface();
+}
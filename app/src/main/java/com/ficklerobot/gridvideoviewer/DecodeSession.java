@@ -0,0 +1,1091 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 1つのDecoderSurfaceのデコード処理<br>
+ * 専用のスレッドは持たず、再生枠が割り当てられている間だけDecodeEngineのワーカースレッドから
+ * step()が繰り返し呼び出される。デコーダへの入出力はタイムアウト0で行い、スレッドをブロックしない<br>
+ * 読み込み元とデコーダはDecodeResources、再生状態の通知先はFrameSinkを通して扱い、
+ * Android側の処理はMediaDecodeHostに置く。合成したデコーダでも同じ処理を動かせる
+ */
+class DecodeSession implements DecodeTask {
+    private static final String TAG = "VideoGrid";
+    /** デコーダの出力が無かった場合に、次にstep()を呼び出すまでの間隔(ナノ秒) */
+    private static final long POLL_INTERVAL_NS = 5 * 1000 * 1000;
+    /** 表示予定時刻をこの時間(ナノ秒)過ぎたフレームは捨てる */
+    private static final long DROP_TOLERANCE_NS = 50 * 1000 * 1000;
+    /** 表示時刻を指定して出力する場合に、表示予定時刻のこの時間(ナノ秒)前に出力する(約2VSYNC) */
+    private static final long RENDER_AHEAD_NS = 30 * 1000 * 1000;
+    /** フレームレートが不明な場合のフレーム間隔(マイクロ秒) */
+    private static final long DEFAULT_FRAME_INTERVAL_US = 33333;
+    /** 1回のstep()でデコーダに入力するサンプル数の上限 */
+    private static final int MAX_INPUT_BATCH = 4;
+    /** デコーダに入力し、まだ出力を受け取っていないサンプル数の上限。入力が表示より先行しすぎないようにする */
+    private static final int MAX_IN_FLIGHT_SAMPLES = 8;
+    /** デコード遅延の計測用に記録する、入力したサンプル数 */
+    private static final int INPUT_TIME_RING_SIZE = 16;
+
+    /** 再生枠の割り当て後、デコーダの準備前 */
+    private static final int STATE_SETUP = 0;
+    /** 再生中 */
+    private static final int STATE_PLAYING = 1;
+    /** 再生枠を手放したが、デコーダと読み込み元を保持して再開を待っている */
+    private static final int STATE_SUSPENDED = 2;
+
+    /**
+     * ファイルからのビデオ読み込みが完了したか否か
+     */
+    private boolean mInputDone = false;
+    /**
+     * 末尾までデコードが完了した、または再生の中断が要求された
+     */
+    private volatile boolean mDecodeDone = false;
+    /**
+     * 末尾までデコードが完了した
+     */
+    private boolean mReachedEnd = false;
+    /** true:次のキーフレームが無い。次の入力で終端を通知する */
+    private boolean mInputExhausted;
+    /** true:今回の再生ではキーフレームのみをデコーダに入力する */
+    private boolean mIsKeyframeOnly;
+    /**
+     * デコード処理が停止されたか否か
+     */
+    private volatile boolean mIsStopped = false;
+
+    private volatile PlaybackItem mVideoData;
+    /** 再生中の動画 */
+    private PlaybackItem mPlayingData;
+    /** STATE_SETUP|STATE_PLAYING|STATE_SUSPENDED STATE_SUSPENDEDへの遷移とそこからの遷移はthisのロックで行う */
+    private int mState;
+    /** 再生枠が取り上げられたので、再生を一時停止する */
+    private volatile boolean mSuspendRequested;
+    /** step()を呼び出しているワーカー。再生枠が割り当てられていなければnull */
+    private volatile DecodeEngine.Worker mWorker;
+
+    /** サンプルの読み込み元 */
+    private SampleSource mSource;
+    private VideoDecoder mDecoder;
+    /** デコード中にエラーが起きたので、デコーダを再利用しない */
+    private boolean mDecoderFailed;
+    private final VideoDecoder.OutputInfo mBufferinfo = new VideoDecoder.OutputInfo();
+    /** mSourceとmDecoderの入手先 */
+    private final DecodeResources mResources;
+    /** 再生状態の通知先 */
+    private final FrameSink mSink;
+    /** true:表示時刻を指定してフレームを出力する */
+    private final boolean mUseRenderTimestamp;
+    private DecodeQueueManager mQueueManager;
+    private DecodeEngine mEngine;
+    /** DecoderSurfaceの番号 */
+    private int mSurfaceNumber;
+    /** 表示優先度 DecodeQueueManager.PRIORITY_VISIBLE〜PRIORITY_HIDDEN */
+    private volatile int mDisplayPriority;
+
+    /** フレームの表示タイミングの管理 */
+    private FramePacer mPacer;
+    /** 再生枠が割り当てられ、準備を開始した時刻(System.nanoTime()) */
+    private long mSetupStartNs;
+    /** 今回の再生枠で再生を開始した時刻(System.nanoTime()) */
+    private long mPlayStartNs;
+    /** 今回の再生を開始した位置(マイクロ秒) */
+    private long mPlayStartUs;
+    /** この位置(マイクロ秒)より前のフレームは表示しない。再開位置までの読み飛ばし用 */
+    private long mSkipUntilUs;
+    /** 最後に表示したフレームのタイムスタンプ(マイクロ秒) */
+    private long mLastRenderedUs;
+    /** 今回の再生枠で表示したフレーム数 */
+    private int mRenderedFrames;
+    /** 表示時刻を待っている出力バッファのインデックス 負数:無し */
+    private int mPendingOutputIndex = -1;
+    /** FrameSink#onStarted()を通知済みか */
+    private boolean mIsStartNotified;
+
+    /** デコーダに入力し、まだ出力を受け取っていないサンプル数 */
+    private int mInFlightSamples;
+    /**
+     * true:直前に出力を取得した際、デコーダに出力が無かった<br>
+     * 入力が足りていないので、mInFlightSamplesが上限に達していても入力する。
+     * デコーダが出力しないサンプルがあっても、数え違いで入力が止まらないようにする
+     */
+    private boolean mIsOutputStarved;
+    /** 計測ログ用 前回デコード処理をした時刻(System.nanoTime()) */
+    private long mLastStepNs;
+    /** 計測ログ用 デコード処理をした時間の合計(ナノ秒) */
+    private long mCodecTotalNs;
+    /** 計測ログ用 デコーダが処理中のサンプルを持っていた時間(ナノ秒) */
+    private long mCodecBusyNs;
+    /** 計測ログ用 入力が途切れてデコーダが空だった時間(ナノ秒) */
+    private long mCodecStarvedNs;
+    /** 計測ログ用 デコーダから受け取ったフレーム数。表示しなかったものを含む */
+    private int mDecodedFrames;
+
+    /** 計測値の集計先: このセル・再生する動画のMIMEタイプ(不明ならnull)・全体 */
+    private final PlaybackMetrics.MetricSet mCellMetrics;
+    private volatile PlaybackMetrics.MetricSet mMimeMetrics;
+    private final PlaybackMetrics.MetricSet mTotalMetrics;
+    private final TraceRecorder mTrace;
+    /** デコード遅延の計測用に、入力したサンプルのタイムスタンプ(マイクロ秒)と入力時刻(System.nanoTime())を巡回して記録する */
+    private final long[] mInputPtsUs = new long[INPUT_TIME_RING_SIZE];
+    private final long[] mInputNs = new long[INPUT_TIME_RING_SIZE];
+    private int mInputRingPos;
+
+    /** ループ再生中、デコーダに入力するサンプルのタイムスタンプに加える時間(マイクロ秒) */
+    private long mLoopOffsetUs;
+    /** 動画1周の長さ(マイクロ秒) 0:まだ1周していない */
+    private long mLoopPeriodUs;
+    /** 今回の再生で入力したサンプルの最大のタイムスタンプ(マイクロ秒)。mLoopOffsetUsを含まない */
+    private long mLastInputUs;
+    /** 次の周の先頭の位置(マイクロ秒)。これ以降のフレームを表示した際に周の継ぎ目の間隔を計測する */
+    private long mNextLoopStartUs = Long.MAX_VALUE;
+    /** 最後にフレームを表示した時刻(System.nanoTime()) */
+    private long mLastRenderNs;
+    /** 計測ログ用 ループした回数 */
+    private int mLoopCount;
+    /** 計測ログ用 周の継ぎ目での、通常のフレーム間隔を超えた遅れの最大値(ナノ秒) */
+    private long mLoopGapMaxNs;
+    /** 計測ログ用 周の継ぎ目の遅れが1フレーム間隔を超えた回数 */
+    private int mLoopGapOverCount;
+
+    /**
+     *
+     * @param surfaceNumber DecoderSurfaceの番号
+     * @param resources 読み込み元とデコーダの入手先
+     * @param sink 再生状態の通知先
+     * @param queueManager DecodeQueueManager
+     * @param displayPriority 表示優先度
+     * @param useRenderTimestamp true:表示時刻を指定してフレームを出力する(SDK 21から)
+     */
+    DecodeSession(int surfaceNumber, DecodeResources resources, FrameSink sink,
+                  DecodeQueueManager queueManager, int displayPriority,
+                  boolean useRenderTimestamp) {
+        this.mSurfaceNumber = surfaceNumber;
+        this.mResources = resources;
+        this.mSink = sink;
+        this.mQueueManager = queueManager;
+        this.mEngine = DecodeEngine.getInstance();
+        this.mDisplayPriority = displayPriority;
+        this.mUseRenderTimestamp = useRenderTimestamp;
+        this.mPacer = new FramePacer(DROP_TOLERANCE_NS,
+                useRenderTimestamp ? RENDER_AHEAD_NS : 0);
+        this.mCellMetrics = PlaybackMetrics.getInstance().forCell(surfaceNumber);
+        this.mTotalMetrics = PlaybackMetrics.getInstance().getTotal();
+        this.mTrace = TraceRecorder.getInstance();
+    }
+
+    /**
+     * 再生する動画を設定し、再生待ちキューに並ぶ<br>
+     * 別の動画を再生中であれば、その再生は中断される
+     *
+     * @param videoData 動画 nullの場合は再生しない
+     */
+    void setVideoData(PlaybackItem videoData) {
+        this.mVideoData = videoData;
+        this.mMimeMetrics = PlaybackMetrics.getInstance().forMime(
+                videoData != null && videoData.metadata != null
+                        ? videoData.metadata.mimeType : null);
+        this.mDecodeDone = true;
+        wakeup();
+
+        if (videoData != null && !mIsStopped) {
+            mQueueManager.offerDecoder(this);
+        }
+    }
+
+    @Override
+    public int getSurfaceNumber() {
+        return mSurfaceNumber;
+    }
+
+    boolean isStopped() {
+        return mIsStopped;
+    }
+
+    /**
+     * @return true:再生枠が割り当てられ、ワーカーに登録されている
+     */
+    boolean isAttached() {
+        return mWorker != null;
+    }
+
+    /**
+     * @return フレームの表示タイミングの管理。計測用
+     */
+    FramePacer getPacer() {
+        return mPacer;
+    }
+
+    @Override
+    public void setDisplayPriority(int displayPriority) {
+        this.mDisplayPriority = displayPriority;
+    }
+
+    @Override
+    public int getDisplayPriority() {
+        return mDisplayPriority;
+    }
+
+    /**
+     * 再生枠が割り当てられたらDecodeQueueManagerから呼び出される<br>
+     * ワーカーに登録し、デコード処理を開始する
+     *
+     * @param waitNs 再生待ちキューに並んでからの時間(ナノ秒)
+     */
+    @Override
+    public void onGranted(long waitNs) {
+        recordMetric(PlaybackMetrics.QUEUE_WAIT, waitNs);
+
+        // 再生枠を取り上げられた後、まだワーカーから外れていなければ、外れた後に並び直す
+        if (mWorker == null) {
+            mEngine.attach(this);
+        }
+    }
+
+    /**
+     * 再生枠が取り上げられたらDecodeQueueManagerから呼び出される<br>
+     * 再生位置を記録し、可能であればデコーダを保持したまま再生を一時停止する
+     */
+    @Override
+    public void suspend() {
+        countMetric(PlaybackMetrics.PREEMPTS);
+        mSuspendRequested = true;
+        wakeup();
+    }
+
+    @Override
+    public void setWorker(DecodeEngine.Worker worker) {
+        this.mWorker = worker;
+    }
+
+    /**
+     * step()の待機中のワーカーを起こす
+     */
+    private void wakeup() {
+        DecodeEngine.Worker worker = mWorker;
+        if (worker != null) {
+            worker.wakeup();
+        }
+    }
+
+    /**
+     * デコード処理を1段階進める<br>
+     * ワーカースレッドから呼び出され、ブロックせずに戻る。
+     * 準備・デコード・ループの巻き戻しのいずれで例外が発生しても、再生の失敗として扱いワーカーから外れる
+     *
+     * @param nowNs 現在時刻(System.nanoTime())
+     * @return 次にstep()を呼び出す時刻(System.nanoTime()) DETACH:再生を終了したのでワーカーから外す
+     */
+    @Override
+    public long step(long nowNs) {
+        try {
+            return stepPlayback(nowNs);
+        } catch (RuntimeException e) {
+            failPlayback(e);
+            return DETACH;
+        }
+    }
+
+    /**
+     * step()の本体
+     *
+     * @param nowNs 現在時刻(System.nanoTime())
+     * @return 次にstep()を呼び出す時刻(System.nanoTime()) DETACH:再生を終了したのでワーカーから外す
+     */
+    private long stepPlayback(long nowNs) {
+        if (mState != STATE_PLAYING) {
+            mSetupStartNs = nowNs;
+
+            if (!resumeSuspended(nowNs) && !setupDecode()) {
+                finishPlayback(false);
+                return DETACH;
+            }
+
+            mState = STATE_PLAYING;
+            return nowNs;
+        }
+
+        if (mSuspendRequested) {
+            if (!mDecodeDone && !mIsStopped && mPlayingData == mVideoData) {
+                suspendPlayback();
+            } else {
+                finishPlayback(false);
+            }
+            return DETACH;
+        }
+
+        if (!mDecodeDone && !mIsStopped) {
+            long nextNs = decodeVideoFrame(nowNs);
+
+            //前のVideoの画像が残っている場合があるので、
+            //数ミリ秒再生後にサムネイルを消す
+            if (!mIsStartNotified && mLastRenderedUs > mPlayStartUs + 200 * 1000) {
+                mSink.onStarted();
+                mIsStartNotified = true;
+            }
+
+            if (mRenderedFrames > 0 && mQueueManager.shouldYield(this,
+                    (System.nanoTime() - mPlayStartNs) / 1000000, mRenderedFrames)) {
+                DecodeLog.d("yield id:", mSurfaceNumber, " position(ms):", mLastRenderedUs / 1000);
+                mTrace.instant(TraceRecorder.YIELD, mSurfaceNumber, mRenderedFrames);
+                finishPlayback(true);
+                return DETACH;
+            }
+
+            return nextNs;
+        }
+
+        PlaybackItem data = mPlayingData;
+        if (mReachedEnd && !mIsStopped && data != null && data == mVideoData && data.isLooping
+                && restartLoop(nowNs)) {
+            return nowNs;
+        }
+
+        finishPlayback(false);
+        return DETACH;
+    }
+
+    /**
+     * ワーカーから外された後に呼び出される<br>
+     * 再生枠を解放し、停止されていなければ再生待ちキューの末尾に並び直す
+     */
+    @Override
+    public void onDetached() {
+        // 再生枠の割り当て(onGranted)と排他し、二重にワーカーに登録されないようにする
+        synchronized (mQueueManager) {
+            mQueueManager.removeDecoder(this);
+            mWorker = null;
+            mSuspendRequested = false;
+
+            synchronized (this) {
+                if (mState == STATE_PLAYING) {
+                    mState = STATE_SETUP;
+                }
+            }
+
+            if (!mIsStopped && mVideoData != null) {
+                mQueueManager.offerDecoder(this);
+            }
+        }
+    }
+
+    /**
+     * 再生を一時停止する<br>
+     * 再生位置を記録し、DecodeQueueManagerの保持数に空きがあればデコーダと読み込み元を保持する。
+     * 空きが無ければ破棄し、次回は再生位置直前のキーフレームから再生する
+     */
+    private void suspendPlayback() {
+        mPlayingData.resumePositionUs = getNaturalPositionUs(mLastRenderedUs);
+
+        synchronized (this) {
+            mState = STATE_SUSPENDED;
+        }
+
+        DecodeLog.d("suspend id:", mSurfaceNumber, " position(ms):", mLastRenderedUs / 1000);
+
+        if (!mQueueManager.addSuspended(this)) {
+            releaseSuspended();
+        }
+    }
+
+    /**
+     * 一時停止中に保持しているデコーダと読み込み元を破棄する<br>
+     * 次回は記録した再生位置直前のキーフレームから再生する。一時停止中でなければ何もしない
+     */
+    @Override
+    public void releaseSuspended() {
+        synchronized (this) {
+            if (mState != STATE_SUSPENDED) {
+                return;
+            }
+
+            Log.d(TAG, "release suspended id:" + mSurfaceNumber);
+
+            mPlayingData.resumeAtKeyFrame = true;
+            finishPlayback(false);
+            mState = STATE_SETUP;
+        }
+    }
+
+    /**
+     * 一時停止中であれば、保持しているデコーダで一時停止した位置から再生を再開する
+     *
+     * @param nowNs 現在時刻(System.nanoTime())
+     * @return false:一時停止中でない、または再生する動画が変更されたので再開しなかった
+     */
+    private boolean resumeSuspended(long nowNs) {
+        synchronized (this) {
+            if (mState != STATE_SUSPENDED) {
+                return false;
+            }
+            mState = STATE_SETUP;
+        }
+
+        mQueueManager.removeSuspended(this);
+
+        if (mPlayingData != mVideoData || mIsStopped) {
+            finishPlayback(false);
+            return false;
+        }
+
+        DecodeLog.d("resume id:", mSurfaceNumber, " position(ms):", mLastRenderedUs / 1000);
+        mTrace.instant(TraceRecorder.RESUME, mSurfaceNumber, mLastRenderedUs / 1000);
+
+        // デコーダ内のフレームはそのまま使い、最後に表示したフレームの続きから表示時刻を数え直す
+        mResources.markResumed();
+        mPlayStartNs = nowNs;
+        mLastStepNs = nowNs;
+        mPlayStartUs = mLastRenderedUs;
+        mPacer.start(mLastRenderedUs, nowNs);
+        mRenderedFrames = 0;
+
+        return true;
+    }
+
+    /**
+     * 読み込み元とデコーダを準備し、前回の再生位置から再生を開始する
+     *
+     * @return false:再生できない
+     */
+    private boolean setupDecode() {
+        PlaybackItem data = mVideoData;
+
+        if (data == null || mIsStopped) {
+            return false;
+        }
+
+        // キーフレームのみの場合は先頭から全サンプルを読まないので、読み込み元にもそう伝える
+        mIsKeyframeOnly = mQueueManager.isKeyframeOnly();
+
+        long setupStartNs = System.nanoTime();
+        mTrace.begin(TraceRecorder.SOURCE_SETUP, mSurfaceNumber);
+        mSource = mResources.openSource(data, mIsKeyframeOnly);
+        mTrace.end(TraceRecorder.SOURCE_SETUP, mSurfaceNumber);
+
+        if (mSource == null) {
+            mVideoData = null;
+            return false;
+        }
+
+        mMimeMetrics = PlaybackMetrics.getInstance().forMime(mResources.getMimeType());
+        recordMetric(PlaybackMetrics.SOURCE_SETUP, System.nanoTime() - setupStartNs);
+
+        setupStartNs = System.nanoTime();
+        mTrace.begin(TraceRecorder.CODEC_CREATE, mSurfaceNumber);
+        boolean isReady = readyVideoDecoder(data);
+        mTrace.end(TraceRecorder.CODEC_CREATE, mSurfaceNumber);
+
+        if (!isReady) {
+            return false;
+        }
+
+        recordMetric(PlaybackMetrics.CODEC_SETUP, System.nanoTime() - setupStartNs);
+
+        mPlayingData = data;
+        startPlayback(data.resumePositionUs, !data.resumeAtKeyFrame);
+        data.resumeAtKeyFrame = false;
+
+        if (data != mVideoData) { //dataが変更されていたら再生しない
+            return false;
+        }
+
+        mSink.onReady();
+
+        return true;
+    }
+
+    /**
+     * 指定位置から再生を開始する<br>
+     * 指定位置の直前のキーフレームから読み込み、指定位置までは表示せずに読み飛ばす
+     *
+     * @param startUs 再生開始位置(マイクロ秒)
+     * @param isExact false:読み飛ばさずに直前のキーフレームから表示する
+     */
+    private void startPlayback(long startUs, boolean isExact) {
+        // 開いたばかりの読み込み元は先頭のキーフレームを指しているので、先頭からならシーク不要
+        if (startUs != 0 || mSource.getSampleTime() != 0) {
+            mSource.seekTo(startUs, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+        }
+        long syncUs = mSource.getSampleTime();
+
+        // キーフレームのみの場合は再開位置まで読み飛ばせないので、直前のキーフレームから表示する
+        if ((!isExact || mIsKeyframeOnly) && syncUs >= 0) {
+            startUs = syncUs;
+        }
+
+        mInputDone = false;
+        mInputExhausted = false;
+        mReachedEnd = false;
+        mDecodeDone = false;
+        mPlayStartUs = startUs;
+        mSkipUntilUs = startUs;
+        mLastRenderedUs = startUs;
+        mRenderedFrames = 0;
+        mIsStartNotified = false;
+        mLoopOffsetUs = 0;
+        mLoopPeriodUs = 0;
+        mLastInputUs = 0;
+        mNextLoopStartUs = Long.MAX_VALUE;
+        mInFlightSamples = 0;
+        mIsOutputStarved = false;
+        Arrays.fill(mInputNs, 0);
+        mCodecTotalNs = 0;
+        mCodecBusyNs = 0;
+        mCodecStarvedNs = 0;
+        mDecodedFrames = 0;
+
+        mPlayStartNs = System.nanoTime();
+        mLastStepNs = mPlayStartNs;
+        mPacer.start(startUs, mPlayStartNs);
+    }
+
+    /**
+     * 再生中の例外を再生の失敗として扱う<br>
+     * デコーダは再利用せずに破棄し、停止されていなければワーカーから外れた後に並び直す
+     *
+     * @param e 発生した例外
+     */
+    private void failPlayback(RuntimeException e) {
+        mQueueManager.reportDecoderFailure();
+
+        // 自動調整中は同時再生数が自動で減るので通知しない
+        if (!mQueueManager.isAdaptiveRunCount()) {
+            mSink.onFailure("再生に失敗しました。再生数を減らしてください");
+        }
+
+        Log.d(TAG, "Failed to playVideo id:" + mSurfaceNumber + " msg:" + e.getMessage());
+        mTrace.instant(TraceRecorder.FAILURE, mSurfaceNumber, mLastRenderedUs / 1000);
+        mDecoderFailed = true;
+        finishPlayback(false);
+    }
+
+    /**
+     * 再生を終了し、デコーダと読み込み元を破棄する
+     *
+     * @param isYielded true:ラウンドロビンの割り当てを使い切って再生枠を譲る
+     */
+    private void finishPlayback(boolean isYielded) {
+        PlaybackItem data = mPlayingData;
+
+        if (data != null) {
+            if (isYielded) {
+                // 次の再生枠では続きから再生する
+                data.resumePositionUs = getNaturalPositionUs(mLastRenderedUs);
+            } else if (mReachedEnd) {
+                data.resumePositionUs = 0;
+            }
+        }
+
+        if (mPlayingData != null) {
+            Log.d(TAG, "pacing id:" + mSurfaceNumber + " " + mPacer);
+            logCodecUsage();
+        }
+
+        if (mLoopCount > 0) {
+            Log.d(TAG, "loop id:" + mSurfaceNumber + " count:" + mLoopCount
+                    + " gap max(ms):" + mLoopGapMaxNs / 1000000
+                    + " over frame interval:" + mLoopGapOverCount);
+            mLoopCount = 0;
+            mLoopGapMaxNs = 0;
+            mLoopGapOverCount = 0;
+        }
+
+        mPlayingData = null;
+        finishDecode();
+    }
+
+    /**
+     * デコーダを返却し、読み込み元を破棄する<br>
+     * 停止済みであれば出力先が破棄されるので、デコーダも停止して返却する
+     */
+    private void finishDecode() {
+        mPendingOutputIndex = -1;
+
+        if (mDecoder != null) {
+            mResources.releaseDecoder(!mIsStopped, !mDecoderFailed);
+            mDecoder = null;
+        }
+        mDecoderFailed = false;
+
+        if (mSource != null) {
+            mSource.release();
+            mSource = null;
+        }
+    }
+
+    void stopDecode() {
+        Log.d(TAG, "stopDecode id:" + mSurfaceNumber);
+
+        mIsStopped = true;
+        mVideoData = null;
+        mQueueManager.notifyStop(this);
+        mQueueManager.removeSuspended(this);
+        releaseSuspended();
+        mResources.releaseSurface();
+        wakeup();
+    }
+
+    /**
+     * ファイルからビデオを読み込み、デコードする
+     *
+     * @param nowNs 現在時刻(System.nanoTime())
+     * @return 次にstep()を呼び出す時刻(System.nanoTime())
+     */
+    private long decodeVideoFrame(long nowNs) {
+        recordCodecUsage(nowNs);
+
+        // 読み込みが完了していなかったら、空いている入力バッファにまとめてデータを挿入する
+        for (int i = 0; i < MAX_INPUT_BATCH && !mInputDone && canFeedInput(); i++) {
+            if (!extractVideoFile()) {
+                break;
+            }
+        }
+
+        long nextNs = decodeVideoBuffer(nowNs);
+
+        // 出力が表示時刻を待っている間も、入力できる余地があれば入力のために起きる
+        if (!mInputDone && canFeedInput() && nextNs > nowNs + POLL_INTERVAL_NS) {
+            nextNs = nowNs + POLL_INTERVAL_NS;
+        }
+
+        return nextNs;
+    }
+
+    /**
+     * @return true:デコーダに入力してよい
+     */
+    private boolean canFeedInput() {
+        return mInFlightSamples < MAX_IN_FLIGHT_SAMPLES || mIsOutputStarved;
+    }
+
+    /**
+     * 前回のデコード処理からの時間を、デコーダの状態ごとに集計する
+     *
+     * @param nowNs 現在時刻(System.nanoTime())
+     */
+    private void recordCodecUsage(long nowNs) {
+        long elapsedNs = nowNs - mLastStepNs;
+        mLastStepNs = nowNs;
+
+        if (elapsedNs <= 0) {
+            return;
+        }
+
+        mCodecTotalNs += elapsedNs;
+        if (mInFlightSamples > 0) {
+            mCodecBusyNs += elapsedNs;
+        } else if (!mInputDone) {
+            mCodecStarvedNs += elapsedNs;
+        }
+    }
+
+    /**
+     * 計測値をセル・MIMEタイプ・全体の集計に記録する
+     *
+     * @param histogram PlaybackMetrics.QUEUE_WAIT〜LATENESS
+     * @param valueNs 計測値(ナノ秒)
+     */
+    private void recordMetric(int histogram, long valueNs) {
+        mCellMetrics.record(histogram, valueNs);
+        mTotalMetrics.record(histogram, valueNs);
+
+        PlaybackMetrics.MetricSet mime = mMimeMetrics;
+        if (mime != null) {
+            mime.record(histogram, valueNs);
+        }
+    }
+
+    /**
+     * @param counter PlaybackMetrics.FRAMES〜PREEMPTS
+     */
+    private void countMetric(int counter) {
+        mCellMetrics.increment(counter);
+        mTotalMetrics.increment(counter);
+
+        PlaybackMetrics.MetricSet mime = mMimeMetrics;
+        if (mime != null) {
+            mime.increment(counter);
+        }
+    }
+
+    /**
+     * 出力されたフレームのサンプルを入力した時刻が記録に残っていれば、デコード遅延を記録する
+     *
+     * @param ptsUs 出力されたフレームのタイムスタンプ(マイクロ秒)
+     */
+    private void recordDecodeLatency(long ptsUs) {
+        for (int i = 0; i < INPUT_TIME_RING_SIZE; i++) {
+            if (mInputPtsUs[i] == ptsUs && mInputNs[i] != 0) {
+                recordMetric(PlaybackMetrics.DECODE_LATENCY, System.nanoTime() - mInputNs[i]);
+                mInputNs[i] = 0;
+                return;
+            }
+        }
+    }
+
+    /**
+     * デコーダの使用率と、1秒あたりのデコードフレーム数をログに出力する
+     */
+    private void logCodecUsage() {
+        if (mCodecTotalNs <= 0) {
+            return;
+        }
+
+        Log.d(TAG, "codec id:" + mSurfaceNumber
+                + " busy(%):" + mCodecBusyNs * 100 / mCodecTotalNs
+                + " starved(%):" + mCodecStarvedNs * 100 / mCodecTotalNs
+                + " decoded fps:" + mDecodedFrames * 1000000000L / mCodecTotalNs
+                + " frames:" + mDecodedFrames);
+    }
+
+    /**
+     * ビデオファイルを読み込み、デコーダにデータを挿入する<br>
+     * 空いている入力バッファが無ければ何もしない
+     *
+     * @return true:入力した false:空いている入力バッファが無い
+     */
+    private boolean extractVideoFile() {
+        int decodeBufIndex = mDecoder.dequeueInputBuffer(0);
+
+        if (decodeBufIndex >= 0) {
+            ByteBuffer buffer = mDecoder.getInputBuffer(decodeBufIndex);
+
+            int readLength = mInputExhausted ? -1 : mSource.readSampleData(buffer, 0);
+            if (readLength < 0 && rewindForLoop()) {
+                // 終端を通知せずに先頭のサンプルを続けて入力する
+                readLength = mSource.readSampleData(buffer, 0);
+            }
+
+            long sampleTime = mSource.getSampleTime();
+            int flags = mSource.getSampleFlags();
+
+            if (readLength < 0) {
+                // 読み込み完了
+                DecodeLog.d("saw decode EOS id:", mSurfaceNumber);
+                mInputDone = true;
+
+                mDecoder.queueInputBuffer(decodeBufIndex, 0, 0,
+                        sampleTime, VideoDecoder.BUFFER_FLAG_END_OF_STREAM);
+
+            } else {
+                mLastInputUs = Math.max(mLastInputUs, sampleTime);
+
+                buffer.limit(readLength);
+                mDecoder.queueInputBuffer(decodeBufIndex, 0, readLength,
+                        sampleTime + mLoopOffsetUs, flags);
+                mInFlightSamples++;
+
+                mInputPtsUs[mInputRingPos] = sampleTime + mLoopOffsetUs;
+                mInputNs[mInputRingPos] = System.nanoTime();
+                mInputRingPos = (mInputRingPos + 1) % INPUT_TIME_RING_SIZE;
+
+                if (mIsKeyframeOnly) {
+                    advanceToNextKeyframe(sampleTime);
+                } else {
+                    mSource.advance();
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * ループ再生する場合、読み込み元を先頭に戻す<br>
+     * デコーダは止めずに、次の周のサンプルのタイムスタンプを1周分ずらして入力し続ける。
+     * タイムスタンプが途切れないので、FramePacerの基準もそのまま使える
+     *
+     * @return true:先頭に戻した false:ループしない
+     */
+    private boolean rewindForLoop() {
+        PlaybackItem data = mPlayingData;
+
+        if (data == null || !data.isLooping || mIsStopped || data != mVideoData) {
+            return false;
+        }
+
+        if (mLoopPeriodUs == 0) {
+            VideoMetadataStore.VideoMetadata metadata = data.metadata;
+            long durationUs = metadata != null ? metadata.durationUs : 0;
+            mLoopPeriodUs = Math.max(mLastInputUs + getFrameIntervalUs(), durationUs);
+        }
+
+        mSource.seekTo(0, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+        if (mSource.getSampleTime() < 0) {
+            return false;
+        }
+
+        mInputExhausted = false;
+        mLoopOffsetUs += mLoopPeriodUs;
+        mNextLoopStartUs = mLoopOffsetUs;
+        mLoopCount++;
+        mTrace.instant(TraceRecorder.LOOP, mSurfaceNumber, mLoopCount);
+
+        return true;
+    }
+
+    /**
+     * 終端までデコードした後にループ再生する場合、デコーダをflushして先頭から再生し直す<br>
+     * 終端を通知した後にループ再生が有効になった場合に使われる。デコーダと読み込み元はそのまま使う<br>
+     * flushに失敗した場合は、デコーダを破棄してワーカーから外れ、並び直した後に先頭から開き直す
+     *
+     * @param nowNs 現在時刻(System.nanoTime())
+     * @return true:先頭から再生し直した false:flushに失敗したので開き直す
+     */
+    private boolean restartLoop(long nowNs) {
+        DecodeLog.d("restart loop id:", mSurfaceNumber);
+
+        try {
+            mDecoder.flush();
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Failed to flush for loop id:" + mSurfaceNumber + " msg:" + e.getMessage());
+            mDecoderFailed = true; // 状態が不明なので再利用しない
+            return false;
+        }
+
+        mTrace.instant(TraceRecorder.LOOP, mSurfaceNumber, mLoopCount + 1);
+        mSource.seekTo(0, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+
+        mPendingOutputIndex = -1;
+        mInputDone = false;
+        mInputExhausted = false;
+        mReachedEnd = false;
+        mDecodeDone = false;
+        mInFlightSamples = 0;
+        mIsOutputStarved = false;
+        Arrays.fill(mInputNs, 0);
+        mLoopOffsetUs = 0;
+        mLoopPeriodUs = 0;
+        mLastInputUs = 0;
+        mSkipUntilUs = 0;
+        mLastRenderedUs = 0;
+        mNextLoopStartUs = 0;
+        mLoopCount++;
+
+        // 先頭のフレームを今から表示するよう、表示時刻の基準を合わせ直す
+        mPacer.start(0, nowNs);
+
+        return true;
+    }
+
+    /**
+     * @return 動画のフレーム間隔(マイクロ秒)
+     */
+    private long getFrameIntervalUs() {
+        PlaybackItem data = mPlayingData;
+        VideoMetadataStore.VideoMetadata metadata = data != null ? data.metadata : null;
+
+        if (metadata != null && metadata.frameRate > 0) {
+            return (long) (1000000 / metadata.frameRate);
+        }
+
+        return DEFAULT_FRAME_INTERVAL_US;
+    }
+
+    /**
+     * @param ptsUs デコーダから出力されたフレームのタイムスタンプ(マイクロ秒)
+     * @return ループ再生によるずれを除いた、動画内の位置(マイクロ秒)
+     */
+    private long getNaturalPositionUs(long ptsUs) {
+        return mLoopPeriodUs > 0 ? ptsUs % mLoopPeriodUs : ptsUs;
+    }
+
+    /**
+     * ループの継ぎ目のフレームを表示したら、前のフレームからの間隔を記録する
+     *
+     * @param ptsUs 表示したフレームのタイムスタンプ(マイクロ秒)
+     * @param nowNs 現在時刻(System.nanoTime())
+     */
+    private void recordLoopGap(long ptsUs, long nowNs) {
+        if (ptsUs < mNextLoopStartUs) {
+            return;
+        }
+        mNextLoopStartUs = Long.MAX_VALUE;
+
+        if (mRenderedFrames == 0) {
+            return; // 継ぎ目の前のフレームをこの再生枠で表示していない
+        }
+
+        long intervalNs = getFrameIntervalUs() * 1000;
+        long gapNs = nowNs - mLastRenderNs - intervalNs; // 通常のフレーム間隔を超えた分
+
+        mLoopGapMaxNs = Math.max(mLoopGapMaxNs, gapNs);
+        if (gapNs > intervalNs) {
+            mLoopGapOverCount++;
+        }
+
+        DecodeLog.d("loop gap id:", mSurfaceNumber, " over(ms):", gapNs / 1000000);
+    }
+
+    /**
+     * 次のキーフレームまで読み飛ばす<br>
+     * キーフレームは単独でデコードできるので、間のフレームを入力しなくても、
+     * 各キーフレームが次のキーフレームの表示時刻まで表示される
+     *
+     * @param sampleTimeUs 入力したキーフレームのタイムスタンプ(マイクロ秒)
+     */
+    private void advanceToNextKeyframe(long sampleTimeUs) {
+        mSource.seekTo(sampleTimeUs + 1, SampleSource.SEEK_TO_NEXT_SYNC);
+
+        // 後ろにキーフレームが無ければ、終端か同じキーフレームを指す
+        if (mSource.getSampleTime() <= sampleTimeUs) {
+            mInputExhausted = true;
+        }
+    }
+
+    /**
+     * デコーダを用意する
+     *
+     * @param data 再生する動画
+     * @return false:デコーダを用意できない
+     */
+    private boolean readyVideoDecoder(PlaybackItem data) {
+        try {
+            mDecoder = mResources.openDecoder(data);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.d(TAG, "Failed to start mDecoder id:" + mSurfaceNumber);
+            mTrace.instant(TraceRecorder.FAILURE, mSurfaceNumber, 0);
+            mQueueManager.reportDecoderFailure();
+
+            //TODO 同じファイルに対して規定回数 or 規定秒数エラーを起こした場合、
+            //あきらめる( filePathをNullにする )
+            return false;
+        }
+
+        if (mDecoder == null) {
+            // 端末のデコーダでは再生できないので、再生をやめる
+            Log.d(TAG, "Unsupported format id:" + mSurfaceNumber);
+            mTrace.instant(TraceRecorder.FAILURE, mSurfaceNumber, 0);
+            mVideoData = null;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 動画をデコード(再生)する<br>
+     * デコード済みのフレームは表示時刻の直前まで保持してからサーフィスに送信し、
+     * 表示時刻を過ぎたフレームは捨てる
+     *
+     * @param nowNs 現在時刻(System.nanoTime())
+     * @return 次にstep()を呼び出す時刻(System.nanoTime())
+     */
+    private long decodeVideoBuffer(long nowNs) {
+        if (mPendingOutputIndex < 0) {
+            // デコーダからデコード結果を受け取る
+            int decodeStatus = mDecoder.dequeueOutputBuffer(mBufferinfo, 0);
+
+            if (!checkDecoderStatus(decodeStatus)) {
+                mIsOutputStarved = decodeStatus == VideoDecoder.INFO_TRY_AGAIN_LATER;
+                return nowNs + POLL_INTERVAL_NS;
+            }
+
+            mIsOutputStarved = false;
+            if ((mBufferinfo.flags & (VideoDecoder.BUFFER_FLAG_CODEC_CONFIG
+                    | VideoDecoder.BUFFER_FLAG_END_OF_STREAM)) == 0) {
+                mInFlightSamples = Math.max(0, mInFlightSamples - 1);
+                mDecodedFrames++;
+                recordDecodeLatency(mBufferinfo.presentationTimeUs);
+            }
+
+            if ((mBufferinfo.flags & VideoDecoder.BUFFER_FLAG_CODEC_CONFIG)
+                    != 0) {
+                // コンフィグ部分を読み込んだ( 未だデコードは行っていない )
+                DecodeLog.v("mDecoder configured bytes:", mBufferinfo.size);
+                mDecoder.releaseOutputBuffer(decodeStatus, false);
+                return nowNs;
+            } else if ((mBufferinfo.flags & VideoDecoder.BUFFER_FLAG_END_OF_STREAM)
+                    != 0) {
+                // 末尾までデコードされた
+                DecodeLog.d("Decoder gets BUFFER_FLAG_END_OF_STREAM id:", mSurfaceNumber);
+                mTrace.instant(TraceRecorder.EOS, mSurfaceNumber, mRenderedFrames);
+                mDecoder.releaseOutputBuffer(decodeStatus, false);
+                mReachedEnd = true;
+                mDecodeDone = true;
+                return nowNs;
+            } else if (mBufferinfo.presentationTimeUs < mSkipUntilUs) {
+                // 再開位置より前のフレームは表示せずに捨てる
+                mDecoder.releaseOutputBuffer(decodeStatus, false);
+                return nowNs;
+            }
+
+            long latenessNs = mPacer.getLatenessNs(mBufferinfo.presentationTimeUs, nowNs);
+            recordMetric(PlaybackMetrics.LATENESS, latenessNs);
+            mQueueManager.reportFrameLateness(latenessNs / 1000000);
+            mPendingOutputIndex = decodeStatus;
+        }
+
+        long ptsUs = mBufferinfo.presentationTimeUs;
+        int action = mPacer.decide(ptsUs, nowNs);
+
+        if (action == FramePacer.ACTION_WAIT) {
+            return mPacer.getWakeNs(ptsUs);
+        } else if (action == FramePacer.ACTION_DROP) {
+            // 表示予定時刻を過ぎているので捨てる
+            countMetric(PlaybackMetrics.DROPS);
+            mDecoder.releaseOutputBuffer(mPendingOutputIndex, false);
+            mPendingOutputIndex = -1;
+            return nowNs;
+        }
+
+        // デコードされたバッファをサーフィスに送信(動画の再生)
+        if (mUseRenderTimestamp) {
+            long renderNs = mPacer.getDeadlineNs(ptsUs);
+            mDecoder.releaseOutputBuffer(mPendingOutputIndex, renderNs);
+            mSink.onFrame(ptsUs, renderNs);
+        } else {
+            mDecoder.releaseOutputBuffer(mPendingOutputIndex, true);
+            mSink.onFrame(ptsUs, nowNs);
+        }
+        mPendingOutputIndex = -1;
+
+        recordLoopGap(mBufferinfo.presentationTimeUs, nowNs);
+        mLastRenderedUs = mBufferinfo.presentationTimeUs;
+        mLastRenderNs = nowNs;
+        countMetric(PlaybackMetrics.FRAMES);
+        if (mRenderedFrames++ == 0) {
+            mQueueManager.notifyFirstFrame(this);
+
+            long elapsedNs = System.nanoTime() - mSetupStartNs;
+            recordMetric(PlaybackMetrics.FIRST_FRAME, elapsedNs);
+            mTrace.instant(TraceRecorder.FIRST_FRAME, mSurfaceNumber, elapsedNs / 1000000);
+            mResources.onFirstFrame(elapsedNs);
+            if (DecodeLog.isLoggable(DecodeLog.DEBUG)) {
+                DecodeLog.d("first frame id:" + mSurfaceNumber + " ttff(ms):" + elapsedNs / 1000000
+                        + (mIsKeyframeOnly ? " keyframe only" : ""));
+            }
+        }
+
+        return nowNs;
+    }
+
+    /**
+     * VideoDecoder#dequeueOutputBuffer()の戻り値のチェック
+     *
+     * @param decoderStatus VideoDecoder#dequeueOutputBuffer()の戻り値
+     * @return true: デコード処理が行われた
+     */
+    private boolean checkDecoderStatus(int decoderStatus) {
+        if (decoderStatus == VideoDecoder.INFO_TRY_AGAIN_LATER) {
+            // 出力されたバッファがまだ無い
+        } else if (decoderStatus == VideoDecoder.INFO_OUTPUT_BUFFERS_CHANGED) {
+            DecodeLog.v("mDecoder output buffers changed");
+        } else if (decoderStatus == VideoDecoder.INFO_OUTPUT_FORMAT_CHANGED) {
+            DecodeLog.v("mDecoder output format changed");
+        } else if (decoderStatus < 0) {
+            DecodeLog.v("unexpected result from decoder.dequeueOutputBuffer: ", decoderStatus);
+        } else {
+            return true;
+        }
+
+        return false;
+    }
+}
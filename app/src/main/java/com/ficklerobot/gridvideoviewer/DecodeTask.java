@@ -0,0 +1,63 @@
+package com.ficklerobot.gridvideoviewer;
+
+/**
+ * DecodeQueueManagerが再生枠を割り当て、DecodeEngineのワーカーがstep()を呼び出すデコード処理<br>
+ * アプリではDecodeSessionが実装する。Androidに依存しないので、
+ * 合成したデコーダを使う実装に差し替えて端末の外でスケジューリングを計測できる
+ */
+interface DecodeTask {
+    /** step()の戻り値: ワーカーから切り離す */
+    long DETACH = -1;
+
+    /**
+     * @return DecoderSurfaceの番号
+     */
+    int getSurfaceNumber();
+
+    /**
+     * @return 表示優先度 DecodeQueueManager.PRIORITY_VISIBLE〜PRIORITY_HIDDEN
+     */
+    int getDisplayPriority();
+
+    /**
+     * DecodeQueueManager#updatePriority()から呼び出される
+     */
+    void setDisplayPriority(int displayPriority);
+
+    /**
+     * 再生枠が割り当てられたらDecodeQueueManagerから呼び出される<br>
+     * ワーカーに登録し、デコード処理を開始する
+     *
+     * @param waitNs 再生待ちキューに並んでからの時間(ナノ秒)
+     */
+    void onGranted(long waitNs);
+
+    /**
+     * 再生枠が取り上げられたらDecodeQueueManagerから呼び出される
+     */
+    void suspend();
+
+    /**
+     * 一時停止中に保持しているデコーダを破棄する。一時停止中でなければ何もしない
+     */
+    void releaseSuspended();
+
+    /**
+     * DecodeEngineから呼び出される
+     */
+    void setWorker(DecodeEngine.Worker worker);
+
+    /**
+     * デコード処理を1段階進める<br>
+     * ワーカースレッドから呼び出され、ブロックせずに戻る
+     *
+     * @param nowNs 現在時刻(System.nanoTime())
+     * @return 次にstep()を呼び出す時刻(System.nanoTime()) DETACH:再生を終了したのでワーカーから外す
+     */
+    long step(long nowNs);
+
+    /**
+     * ワーカーから外された後に呼び出される
+     */
+    void onDetached();
+}
@@ -0,0 +1,620 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * デコーダ(MediaCodec)の再利用プール<br>
+ * 再生を終えたデコーダを破棄せずに、MIMEタイプと解像度クラスごとに保持して次の再生に使い回す。
+ * 同じSurfaceで同じ形式の動画であればflush()のみで、それ以外はstop()後にconfigure()し直して再利用する<br>
+ * 出力先Surfaceの差し替え(setOutputSurface)はAPI 23からのため、別のSurfaceへの再利用は再設定になる<br>
+ * 生成するデコーダはCodecProfileStoreで選び、同時に生成できる数の上限に達していれば生成を試みずに失敗する
+ */
+class DecoderPool implements CodecProfileStore.InstanceCounter {
+    private static final String TAG = "VideoGrid";
+    /** 保持するデコーダ数の上限の初期値 */
+    static final int DEFAULT_MAX_IDLE_COUNT = 2;
+    /** この時間(ミリ秒)使われなかったデコーダは破棄する */
+    static final long IDLE_TIMEOUT_MS = 10 * 1000;
+
+    /** デコーダの入手方法: プールを使わずに生成した */
+    static final int ACQUIRE_NEW = 0;
+    /** デコーダの入手方法: プールに無かったので生成した */
+    static final int ACQUIRE_MISS = 1;
+    /** デコーダの入手方法: 保持していたデコーダを再設定した */
+    static final int ACQUIRE_RECONFIGURED = 2;
+    /** デコーダの入手方法: 保持していたデコーダをflushした */
+    static final int ACQUIRE_FLUSHED = 3;
+    /** デコーダの入手方法: 一時停止中に保持していたデコーダで再開した */
+    static final int ACQUIRE_RESUMED = 4;
+    private static final int ACQUIRE_TYPE_COUNT = 5;
+    private static final String[] ACQUIRE_TYPE_NAMES =
+            {"new", "miss", "reconfigured", "flushed", "resumed"};
+
+    /** 使われていないデコーダ。先頭ほど古い */
+    private final ArrayList<PooledDecoder> mIdleList = new ArrayList<>();
+    private int mMaxIdleCount = DEFAULT_MAX_IDLE_COUNT;
+    private volatile boolean mEnabled = true;
+    /** 生成済みで未破棄のデコーダ数 */
+    private int mInstanceCount;
+    /** デコーダ名ごとの、生成済みで未破棄のデコーダ数 */
+    private final HashMap<String, Integer> mInstanceCounts = new HashMap<>();
+
+    private final Handler mTrimHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mTrimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            trim();
+        }
+    };
+
+    /** 入手方法ごとの、最初のフレームを表示するまでの時間の集計(ナノ秒) */
+    private final int[] mFirstFrameCounts = new int[ACQUIRE_TYPE_COUNT];
+    private final long[] mFirstFrameSumNs = new long[ACQUIRE_TYPE_COUNT];
+    private final long[] mFirstFrameMaxNs = new long[ACQUIRE_TYPE_COUNT];
+
+    private static DecoderPool sMe;
+
+    private DecoderPool() {
+    }
+
+    static synchronized DecoderPool getInstance() {
+        if (sMe == null) {
+            sMe = new DecoderPool();
+        }
+        return sMe;
+    }
+
+    /**
+     * @param enabled false:デコーダを再利用せず、毎回生成・破棄する(比較計測用)
+     */
+    void setEnabled(boolean enabled) {
+        this.mEnabled = enabled;
+
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @param maxIdleCount 保持するデコーダ数の上限
+     */
+    void setMaxIdleCount(int maxIdleCount) {
+        ArrayList<PooledDecoder> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            mMaxIdleCount = Math.max(0, maxIdleCount);
+            evictOverflow(evicted);
+        }
+
+        releaseAll(evicted);
+    }
+
+    /**
+     * 再生を開始できる状態のデコーダを返す<br>
+     * 保持しているデコーダがあれば再利用し、無ければ生成する
+     *
+     * @param format 再生する動画のフォーマット
+     * @param surface 出力先Surface
+     * @return 開始済みのデコーダ
+     * @throws IOException デコーダを生成できない
+     */
+    PooledDecoder acquire(MediaFormat format, Surface surface) throws IOException {
+        String key = makeKey(format);
+        PooledDecoder decoder = null;
+
+        if (mEnabled) {
+            synchronized (this) {
+                decoder = takeIdle(key, format, surface);
+            }
+        }
+
+        if (decoder != null) {
+            try {
+                if (decoder.acquireType == ACQUIRE_FLUSHED) {
+                    decoder.codec.flush();
+                } else {
+                    if (decoder.isStarted) {
+                        decoder.codec.stop();
+                    }
+
+                    decoder.codec.configure(format, surface, null, 0);
+                    decoder.codec.start();
+                }
+
+                decoder.format = format;
+                decoder.surface = surface;
+                decoder.isStarted = true;
+
+                return decoder;
+
+            } catch (IllegalStateException e) {
+                Log.d(TAG, "Failed to reuse decoder key:" + key + " msg:" + e.getMessage());
+                releaseDecoder(decoder);
+            }
+        }
+
+        return create(key, format, surface);
+    }
+
+    /**
+     * 使い終わったデコーダを返却する
+     *
+     * @param decoder acquire()で受け取ったデコーダ
+     * @param keepStarted true:出力先Surfaceがまだ有効なので、開始状態のまま保持する
+     * @param reusable false:エラーが起きたデコーダなので再利用しない
+     */
+    void recycle(PooledDecoder decoder, boolean keepStarted, boolean reusable) {
+        if (!mEnabled || !reusable) {
+            stopDecoder(decoder);
+            releaseDecoder(decoder);
+            return;
+        }
+
+        if (!keepStarted && !stopDecoder(decoder)) {
+            releaseDecoder(decoder);
+            return;
+        }
+
+        ArrayList<PooledDecoder> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            decoder.idleSinceMs = System.currentTimeMillis();
+            mIdleList.add(decoder);
+            evictOverflow(evicted);
+        }
+
+        releaseAll(evicted);
+
+        mTrimHandler.removeCallbacks(mTrimRunnable);
+        mTrimHandler.postDelayed(mTrimRunnable, IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Surfaceが破棄される際に呼び出す<br>
+     * そのSurfaceに出力する設定のまま保持しているデコーダを停止する
+     *
+     * @param surface 破棄されるSurface
+     */
+    void onSurfaceReleased(Surface surface) {
+        ArrayList<PooledDecoder> targets = new ArrayList<>();
+
+        synchronized (this) {
+            for (int i = mIdleList.size() - 1; i >= 0; i--) {
+                PooledDecoder decoder = mIdleList.get(i);
+
+                if (decoder.isStarted && decoder.surface == surface) {
+                    mIdleList.remove(i);
+                    targets.add(decoder);
+                }
+            }
+        }
+
+        for (PooledDecoder decoder : targets) {
+            if (stopDecoder(decoder)) {
+                recycle(decoder, false, true);
+            } else {
+                releaseDecoder(decoder);
+            }
+        }
+    }
+
+    /**
+     * 保持している全てのデコーダを破棄し、集計をログに出力する
+     */
+    void clear() {
+        ArrayList<PooledDecoder> evicted;
+
+        synchronized (this) {
+            evicted = new ArrayList<>(mIdleList);
+            mIdleList.clear();
+        }
+
+        mTrimHandler.removeCallbacks(mTrimRunnable);
+        releaseAll(evicted);
+        dumpStats();
+    }
+
+    /**
+     * 最初のフレームを表示したら呼び出す
+     *
+     * @param acquireType デコーダの入手方法 ACQUIRE_NEW〜ACQUIRE_RESUMED
+     * @param elapsedNs 再生枠の割り当てから最初のフレームを表示するまでの時間(ナノ秒)
+     */
+    synchronized void recordFirstFrame(int acquireType, long elapsedNs) {
+        mFirstFrameCounts[acquireType]++;
+        mFirstFrameSumNs[acquireType] += elapsedNs;
+        mFirstFrameMaxNs[acquireType] = Math.max(mFirstFrameMaxNs[acquireType], elapsedNs);
+    }
+
+    @Override
+    public synchronized int getInstanceCount(String name) {
+        Integer count = mInstanceCounts.get(name);
+        return count != null ? count : 0;
+    }
+
+    static String getAcquireTypeName(int acquireType) {
+        return ACQUIRE_TYPE_NAMES[acquireType];
+    }
+
+    /**
+     * 使われていない時間がIDLE_TIMEOUT_MSを超えたデコーダを破棄する
+     */
+    private void trim() {
+        ArrayList<PooledDecoder> evicted = new ArrayList<>();
+        boolean hasIdle;
+
+        synchronized (this) {
+            long nowMs = System.currentTimeMillis();
+
+            for (int i = mIdleList.size() - 1; i >= 0; i--) {
+                if (nowMs - mIdleList.get(i).idleSinceMs >= IDLE_TIMEOUT_MS) {
+                    evicted.add(mIdleList.remove(i));
+                }
+            }
+
+            hasIdle = !mIdleList.isEmpty();
+        }
+
+        releaseAll(evicted);
+
+        if (hasIdle) {
+            mTrimHandler.postDelayed(mTrimRunnable, IDLE_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * 保持しているデコーダから再利用するものを選び、プールから外す<br>
+     * 同じSurfaceで同じ形式の動画を再生していたものを優先し、次に停止済みのものを選ぶ
+     */
+    private PooledDecoder takeIdle(String key, MediaFormat format, Surface surface) {
+        int found = -1;
+        int acquireType = ACQUIRE_RECONFIGURED;
+
+        for (int i = 0; i < mIdleList.size(); i++) {
+            PooledDecoder decoder = mIdleList.get(i);
+
+            if (!decoder.key.equals(key)) {
+                continue;
+            }
+
+            if (decoder.isStarted && decoder.surface == surface
+                    && isSameStream(decoder.format, format)) {
+                found = i;
+                acquireType = ACQUIRE_FLUSHED;
+                break;
+            }
+
+            if (found < 0 || (!decoder.isStarted && mIdleList.get(found).isStarted)) {
+                found = i;
+            }
+        }
+
+        if (found < 0) {
+            return null;
+        }
+
+        PooledDecoder decoder = mIdleList.remove(found);
+        decoder.acquireType = acquireType;
+
+        return decoder;
+    }
+
+    /**
+     * デコーダを生成して開始する<br>
+     * 使えるデコーダが全て同時に生成できる数の上限に達していれば、保持しているデコーダや
+     * 一時停止中のセッションのデコーダを破棄してから選び直す。
+     * 生成に失敗した場合は、端末のデコーダ数の上限に達している可能性があるので、
+     * 失敗した時点の生成数をCodecProfileStoreに通知し、同様にデコーダを破棄してから再試行する
+     *
+     * @throws IOException 使えるデコーダが無い、または生成できない
+     */
+    private PooledDecoder create(String key, MediaFormat format, Surface surface)
+            throws IOException {
+        long startNs = System.nanoTime();
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        CodecProfileStore profiles = CodecProfileStore.getInstance();
+
+        CodecProfileStore.DecoderProfile profile = selectDecoder(format);
+        while (profile == null && profiles.getTotalMaxInstances(mimeType) > 0) {
+            if (!reclaimDecoders()) {
+                throw new IOException("Decoder instance limit reached. mime:" + mimeType);
+            }
+            profile = selectDecoder(format);
+        }
+
+        String name = profile != null ? profile.name : null;
+        MediaCodec codec;
+
+        try {
+            codec = createAndStart(name, format, surface);
+        } catch (IOException | IllegalStateException e) {
+            if (name != null) {
+                profiles.recordInstanceLimit(name, getInstanceCount(name));
+            }
+
+            if (!reclaimDecoders()) {
+                throw e;
+            }
+
+            Log.d(TAG, "Failed to create decoder. retry after reclaiming decoders");
+            codec = createAndStart(name, format, surface);
+        }
+
+        if (name == null && Build.VERSION.SDK_INT >= 18) {
+            name = codec.getName();
+        }
+
+        int instanceCount;
+        synchronized (this) {
+            instanceCount = ++mInstanceCount;
+            if (name != null) {
+                mInstanceCounts.put(name, getInstanceCount(name) + 1);
+            }
+        }
+
+        Log.d(TAG, "create decoder key:" + key + " cost(ms):"
+                + (System.nanoTime() - startNs) / 1000000 + " instances:" + instanceCount
+                + " name:" + name);
+
+        PooledDecoder decoder = new PooledDecoder(codec, key, name);
+        decoder.format = format;
+        decoder.surface = surface;
+        decoder.isStarted = true;
+        decoder.acquireType = mEnabled ? ACQUIRE_MISS : ACQUIRE_NEW;
+
+        return decoder;
+    }
+
+    /**
+     * 使われていないデコーダを破棄して、生成できる数に空きを作る<br>
+     * 保持しているデコーダが無ければ、最も古くに一時停止したセッションにデコーダを手放させる
+     *
+     * @return false:破棄できるデコーダが無い
+     */
+    private boolean reclaimDecoders() {
+        ArrayList<PooledDecoder> evicted = takeAllIdle();
+
+        if (evicted.isEmpty()) {
+            if (!DecodeQueueManager.getInstance().releaseOldestSuspended()) {
+                return false;
+            }
+
+            // 手放されたデコーダはrecycle()でプールに戻っている
+            evicted = takeAllIdle();
+        }
+
+        Log.d(TAG, "reclaim decoders idle:" + evicted.size());
+        releaseAll(evicted);
+        return true;
+    }
+
+    /**
+     * 端末のデコーダの能力から、再生する動画に使うデコーダを選ぶ
+     *
+     * @return null:能力を調べていないので、createDecoderByType()に任せる。
+     * またはgetTotalMaxInstances()が正数であれば、使えるデコーダが全て上限まで生成済み
+     */
+    private CodecProfileStore.DecoderProfile selectDecoder(MediaFormat format) {
+        int width = format.containsKey(MediaFormat.KEY_WIDTH)
+                ? format.getInteger(MediaFormat.KEY_WIDTH) : 0;
+        int height = format.containsKey(MediaFormat.KEY_HEIGHT)
+                ? format.getInteger(MediaFormat.KEY_HEIGHT) : 0;
+        int frameRate = 0;
+        if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            try {
+                frameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+            } catch (ClassCastException e) {
+                // floatで格納されている場合は判定に使わない
+            }
+        }
+
+        return CodecProfileStore.getInstance().selectDecoder(
+                format.getString(MediaFormat.KEY_MIME), width, height, frameRate, this);
+    }
+
+    /**
+     * @param name デコーダ名 null:MIMEタイプから選ぶ
+     */
+    private MediaCodec createAndStart(String name, MediaFormat format, Surface surface)
+            throws IOException {
+        //TODO HW decoderがハングアップしている場合がある
+        //その場合createDecoderByTypeで止まってしまう
+        MediaCodec codec = name != null ? MediaCodec.createByCodecName(name)
+                : MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+
+        try {
+            codec.configure(format, surface, null, 0);
+            codec.start();
+        } catch (IllegalStateException e) {
+            codec.release();
+            throw e;
+        }
+
+        return codec;
+    }
+
+    /**
+     * @return false:停止に失敗した
+     */
+    private boolean stopDecoder(PooledDecoder decoder) {
+        if (decoder.isStarted) {
+            try {
+                decoder.codec.stop();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+                return false;
+            }
+
+            decoder.isStarted = false;
+        }
+
+        decoder.surface = null;
+        return true;
+    }
+
+    private void releaseDecoder(PooledDecoder decoder) {
+        decoder.codec.release();
+
+        synchronized (this) {
+            mInstanceCount--;
+            if (decoder.name != null) {
+                mInstanceCounts.put(decoder.name, getInstanceCount(decoder.name) - 1);
+            }
+        }
+    }
+
+    /**
+     * 保持している全てのデコーダをプールから取り出す
+     */
+    private synchronized ArrayList<PooledDecoder> takeAllIdle() {
+        ArrayList<PooledDecoder> evicted = new ArrayList<>(mIdleList);
+        mIdleList.clear();
+        return evicted;
+    }
+
+    private void releaseAll(ArrayList<PooledDecoder> decoders) {
+        for (PooledDecoder decoder : decoders) {
+            stopDecoder(decoder);
+            releaseDecoder(decoder);
+        }
+    }
+
+    /**
+     * 保持数の上限を超えた分を古いものから取り出す
+     */
+    private void evictOverflow(ArrayList<PooledDecoder> evicted) {
+        while (mIdleList.size() > mMaxIdleCount) {
+            evicted.add(mIdleList.remove(0));
+        }
+    }
+
+    private void dumpStats() {
+        StringBuilder sb = new StringBuilder("DecoderPool first frame(ms)");
+
+        synchronized (this) {
+            for (int i = 0; i < ACQUIRE_TYPE_COUNT; i++) {
+                int count = mFirstFrameCounts[i];
+
+                if (count > 0) {
+                    sb.append(' ').append(ACQUIRE_TYPE_NAMES[i])
+                            .append(":count=").append(count)
+                            .append(",avg=").append(mFirstFrameSumNs[i] / count / 1000000)
+                            .append(",max=").append(mFirstFrameMaxNs[i] / 1000000);
+                }
+            }
+
+            sb.append(" instances:").append(mInstanceCount);
+        }
+
+        Log.d(TAG, sb.toString());
+    }
+
+    /**
+     * MIMEタイプと解像度クラスからプールのキーを作る
+     */
+    static String makeKey(MediaFormat format) {
+        int width = 0;
+        int height = 0;
+        if (format.containsKey(MediaFormat.KEY_WIDTH)) {
+            width = format.getInteger(MediaFormat.KEY_WIDTH);
+        }
+        if (format.containsKey(MediaFormat.KEY_HEIGHT)) {
+            height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        }
+
+        return format.getString(MediaFormat.KEY_MIME) + "/" + getResolutionClass(width, height);
+    }
+
+    /**
+     * @return 長辺の長さによる解像度の区分 0:SD以下 1:HD 2:フルHD 3:それ以上
+     */
+    static int getResolutionClass(int width, int height) {
+        int edge = Math.max(width, height);
+
+        if (edge <= 720) {
+            return 0;
+        } else if (edge <= 1280) {
+            return 1;
+        } else if (edge <= 1920) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * @return true:サイズとコーデック固有データ(SPS/PPSなど)が同じで、flush()のみで続けてデコードできる
+     */
+    private static boolean isSameStream(MediaFormat a, MediaFormat b) {
+        if (a == null || b == null) {
+            return false;
+        }
+
+        String[] keys = {MediaFormat.KEY_MIME, MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT};
+        for (String key : keys) {
+            if (a.containsKey(key) != b.containsKey(key)) {
+                return false;
+            }
+        }
+
+        if (!a.getString(MediaFormat.KEY_MIME).equals(b.getString(MediaFormat.KEY_MIME))
+                || (a.containsKey(MediaFormat.KEY_WIDTH)
+                && a.getInteger(MediaFormat.KEY_WIDTH) != b.getInteger(MediaFormat.KEY_WIDTH))
+                || (a.containsKey(MediaFormat.KEY_HEIGHT)
+                && a.getInteger(MediaFormat.KEY_HEIGHT) != b.getInteger(MediaFormat.KEY_HEIGHT))) {
+            return false;
+        }
+
+        String[] csdKeys = {"csd-0", "csd-1"};
+        for (String key : csdKeys) {
+            ByteBuffer csdA = a.containsKey(key) ? a.getByteBuffer(key) : null;
+            ByteBuffer csdB = b.containsKey(key) ? b.getByteBuffer(key) : null;
+
+            if (csdA == null ? csdB != null : !csdA.equals(csdB)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * プールが管理するデコーダ
+     */
+    static class PooledDecoder {
+        final MediaCodec codec;
+        /** MIMEタイプと解像度クラス */
+        final String key;
+        /** デコーダ名 null:不明 */
+        final String name;
+        /** 最後に設定したフォーマット */
+        MediaFormat format;
+        /** 最後に設定した出力先Surface。停止済みならnull */
+        Surface surface;
+        boolean isStarted;
+        /** 直近の入手方法 ACQUIRE_NEW〜ACQUIRE_RESUMED */
+        int acquireType;
+        /** プールに戻された時刻(ミリ秒) */
+        long idleSinceMs;
+
+        PooledDecoder(MediaCodec codec, String key, String name) {
+            this.codec = codec;
+            this.key = key;
+            this.name = name;
+        }
+    }
+}
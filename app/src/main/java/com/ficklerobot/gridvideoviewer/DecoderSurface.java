@@ -3,6 +3,7 @@ package com.ficklerobot.gridvideoviewer;
 import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -12,8 +13,6 @@ import android.view.animation.AnimationUtils;
 import android.widget.ImageView;
 import android.widget.Toast;
 
-import static android.R.attr.id;
-
 /**
  * 動画データ、動画のデコード処理、動画表示Viewをまとめたクラス
  */
@@ -24,9 +23,11 @@ class DecoderSurface implements TextureView.SurfaceTextureListener {
     private ImageView mImageView;
     /** 動画再生用 */
     private TextureView mTextureView;
-    private DecodeThread mDecodeThread = null;
+    private DecodeSession mDecodeSession = null;
     private VideoData mVideoData;
     private DecodeQueueManager mManager;
+    /** 表示優先度 */
+    private int mDisplayPriority = DecodeQueueManager.PRIORITY_VISIBLE;
 
     /**
      * DecoderSurfaceを一意に区別するID
@@ -53,6 +54,24 @@ class DecoderSurface implements TextureView.SurfaceTextureListener {
         return mVideoData;
     }
 
+    /**
+     * 表示優先度を設定する<br>
+     * グリッドのスクロールに応じて呼び出される
+     *
+     * @param priority DecodeQueueManager.PRIORITY_VISIBLE〜PRIORITY_HIDDEN
+     */
+    void setDisplayPriority(int priority) {
+        if (mDisplayPriority == priority) {
+            return;
+        }
+
+        mDisplayPriority = priority;
+
+        if (mDecodeSession != null && !mDecodeSession.isStopped()) {
+            mManager.updatePriority(mDecodeSession, priority);
+        }
+    }
+
     /**
      * 動画を再生する
      * @param interrupt true:割り込んで再生する false:再生キューに追加する
@@ -60,31 +79,32 @@ class DecoderSurface implements TextureView.SurfaceTextureListener {
     void play(boolean interrupt) {
         Log.d(TAG, "play :" + mSurfaceNumber);
 
-        if (mDecodeThread != null && mDecodeThread.isAlive()) {
-            mDecodeThread.setVideoData(mVideoData);
+        if (mDecodeSession != null && !mDecodeSession.isStopped()) {
+            mDecodeSession.setVideoData(mVideoData);
         }
 
         if (interrupt) {
-            mManager.interrupt(mDecodeThread);
+            mManager.interrupt(mDecodeSession);
         }
     }
 
     void release() {
         mVideoData = null;
 
-        if (mDecodeThread != null && mDecodeThread.isAlive()) {
-            mDecodeThread.stopDecode();
+        if (mDecodeSession != null) {
+            mDecodeSession.stopDecode();
         }
 
-        mDecodeThread = null;
+        mDecodeSession = null;
     }
 
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture surface,
                                           int width, int height) {
-        mDecodeThread = new DecodeThread(id, new DecodeHandler(mTextureView, mImageView),
-                new Surface(surface), mManager, width);
-        mDecodeThread.start();
+        MediaDecodeHost host = new MediaDecodeHost(new DecodeHandler(mTextureView, mImageView),
+                new Surface(surface), width);
+        mDecodeSession = new DecodeSession(mSurfaceNumber, host, host, mManager, mDisplayPriority,
+                Build.VERSION.SDK_INT >= 21);
         play(false);
     }
 
@@ -153,16 +173,22 @@ class DecoderSurface implements TextureView.SurfaceTextureListener {
         }
     }
 
-    static class VideoData {
+    static class VideoData extends PlaybackItem {
         Uri videoUri;
         String name;
         Matrix textureMatrix;
         long thumbId;
+        /** ファイルサイズ */
+        long size;
+        /** 更新日時 */
+        long dateModified;
 
-        VideoData(String name, Uri uri, long thumbId) {
+        VideoData(String name, Uri uri, long thumbId, long size, long dateModified) {
             this.name = name;
             this.videoUri = uri;
             this.thumbId = thumbId;
+            this.size = size;
+            this.dateModified = dateModified;
             textureMatrix = null;
         }
     }
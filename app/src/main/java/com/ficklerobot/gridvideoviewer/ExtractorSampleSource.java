@@ -0,0 +1,49 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MediaExtractorでファイルからサンプルを読み込むSampleSource
+ */
+class ExtractorSampleSource implements SampleSource {
+    private final MediaExtractor mExtractor;
+
+    /**
+     * @param extractor 再生するトラックを選択済みのMediaExtractor
+     */
+    ExtractorSampleSource(MediaExtractor extractor) {
+        this.mExtractor = extractor;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return mExtractor.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return mExtractor.advance();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mExtractor.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public void release() {
+        mExtractor.release();
+    }
+}
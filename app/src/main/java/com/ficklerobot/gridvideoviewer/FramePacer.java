@@ -0,0 +1,145 @@
+package com.ficklerobot.gridvideoviewer;
+
+/**
+ * フレームの表示タイミングを決めるクラス<br>
+ * 再生開始時の時刻と位置を基準に、各フレームの表示予定時刻をSystem.nanoTime()の時間軸で求める。
+ * 表示予定時刻を許容時間より過ぎたフレームは表示せずに捨て、遅れを取り戻す<br>
+ * 時刻は呼び出し元から渡すため、Androidに依存せずに動作を確認できる
+ */
+class FramePacer {
+    /** decide()の戻り値: 表示予定時刻まで待つ */
+    static final int ACTION_WAIT = 0;
+    /** decide()の戻り値: 表示する */
+    static final int ACTION_RENDER = 1;
+    /** decide()の戻り値: 遅れているので表示せずに捨てる */
+    static final int ACTION_DROP = 2;
+
+    /** 連続してこの数だけ捨てたら、遅れていても1フレーム表示する */
+    static final int MAX_CONSECUTIVE_DROPS = 5;
+
+    /** 表示予定時刻をこの時間(ナノ秒)過ぎたフレームは捨てる */
+    private final long mDropToleranceNs;
+    /** 表示予定時刻のこの時間(ナノ秒)前から表示を指示する */
+    private final long mRenderAheadNs;
+
+    /** 基準時刻(ナノ秒) */
+    private long mBaseNs;
+    /** 基準時刻に表示する位置(マイクロ秒) */
+    private long mBasePtsUs;
+    /** 基準を設定してから1フレームも表示していない */
+    private boolean mIsFirstFrame;
+    private int mConsecutiveDrops;
+
+    private int mRenderedCount;
+    private int mDroppedCount;
+    /** 表示したフレームの、表示予定時刻からの遅れの合計と最大(ナノ秒) */
+    private long mDriftSumNs;
+    private long mMaxDriftNs;
+
+    /**
+     * @param dropToleranceNs 表示予定時刻をこの時間(ナノ秒)過ぎたフレームは捨てる
+     * @param renderAheadNs 表示予定時刻のこの時間(ナノ秒)前から表示を指示する。
+     *                      表示時刻を指定して出力できない場合は0
+     */
+    FramePacer(long dropToleranceNs, long renderAheadNs) {
+        this.mDropToleranceNs = dropToleranceNs;
+        this.mRenderAheadNs = renderAheadNs;
+    }
+
+    /**
+     * 再生開始時に呼び出し、基準を設定する<br>
+     * 統計値はリセットしない
+     *
+     * @param ptsUs 再生を開始する位置(マイクロ秒)
+     * @param nowNs 現在時刻(ナノ秒)
+     */
+    void start(long ptsUs, long nowNs) {
+        mBaseNs = nowNs;
+        mBasePtsUs = ptsUs;
+        mIsFirstFrame = true;
+        mConsecutiveDrops = 0;
+    }
+
+    /**
+     * @param ptsUs フレームの位置(マイクロ秒)
+     * @return 表示予定時刻(ナノ秒)
+     */
+    long getDeadlineNs(long ptsUs) {
+        return mBaseNs + (ptsUs - mBasePtsUs) * 1000;
+    }
+
+    /**
+     * @param ptsUs フレームの位置(マイクロ秒)
+     * @return 表示を指示すべき時刻(ナノ秒)。ACTION_WAITの場合にこの時刻まで待つ
+     */
+    long getWakeNs(long ptsUs) {
+        return getDeadlineNs(ptsUs) - mRenderAheadNs;
+    }
+
+    /**
+     * @param ptsUs フレームの位置(マイクロ秒)
+     * @param nowNs 現在時刻(ナノ秒)
+     * @return 表示予定時刻からの遅れ(ナノ秒)。予定より早ければ負数
+     */
+    long getLatenessNs(long ptsUs, long nowNs) {
+        return nowNs - getDeadlineNs(ptsUs);
+    }
+
+    /**
+     * フレームをどう扱うかを決め、統計に反映する
+     *
+     * @param ptsUs フレームの位置(マイクロ秒)
+     * @param nowNs 現在時刻(ナノ秒)
+     * @return ACTION_WAIT|ACTION_RENDER|ACTION_DROP
+     */
+    int decide(long ptsUs, long nowNs) {
+        long latenessNs = getLatenessNs(ptsUs, nowNs);
+
+        if (latenessNs < -mRenderAheadNs) {
+            return ACTION_WAIT;
+        }
+
+        // 最初のフレームは、前の動画の画像を消すために遅れていても表示する
+        if (latenessNs > mDropToleranceNs && !mIsFirstFrame
+                && mConsecutiveDrops < MAX_CONSECUTIVE_DROPS) {
+            mConsecutiveDrops++;
+            mDroppedCount++;
+            return ACTION_DROP;
+        }
+
+        long driftNs = Math.max(0, latenessNs);
+        mDriftSumNs += driftNs;
+        mMaxDriftNs = Math.max(mMaxDriftNs, driftNs);
+        mRenderedCount++;
+        mConsecutiveDrops = 0;
+        mIsFirstFrame = false;
+
+        return ACTION_RENDER;
+    }
+
+    int getRenderedCount() {
+        return mRenderedCount;
+    }
+
+    int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return 表示したフレームの、表示予定時刻からの平均の遅れ(ナノ秒)
+     */
+    long getAverageDriftNs() {
+        return mRenderedCount == 0 ? 0 : mDriftSumNs / mRenderedCount;
+    }
+
+    long getMaxDriftNs() {
+        return mMaxDriftNs;
+    }
+
+    @Override
+    public String toString() {
+        return "rendered:" + mRenderedCount + " dropped:" + mDroppedCount
+                + " drift(ms) avg:" + getAverageDriftNs() / 1000000
+                + " max:" + mMaxDriftNs / 1000000;
+    }
+}
@@ -0,0 +1,33 @@
+package com.ficklerobot.gridvideoviewer;
+
+/**
+ * DecodeSessionの再生状態と、表示したフレームの通知先<br>
+ * ワーカースレッドから呼び出されるので、UIの操作はUIスレッドに送ってから行うこと
+ */
+interface FrameSink {
+
+    /**
+     * デコーダの準備ができ、再生を開始する
+     */
+    void onReady();
+
+    /**
+     * 再生開始後、しばらくフレームを表示した。前の動画の画像を消してよい
+     */
+    void onStarted();
+
+    /**
+     * フレームを出力先に送った
+     *
+     * @param ptsUs フレームのタイムスタンプ(マイクロ秒)。ループ再生中は周回分を含む
+     * @param renderNs 表示時刻(System.nanoTime())
+     */
+    void onFrame(long ptsUs, long renderNs);
+
+    /**
+     * デコード中に失敗したので再生を中断した
+     *
+     * @param message 利用者に伝える文言
+     */
+    void onFailure(String message);
+}
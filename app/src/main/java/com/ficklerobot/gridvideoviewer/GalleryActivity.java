@@ -3,19 +3,48 @@ package com.ficklerobot.gridvideoviewer;
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentTransaction;
+import android.content.Context;
 import android.content.pm.ActivityInfo;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.Toast;
+
+import java.io.File;
 
 public class GalleryActivity extends Activity {
     /** 列数 */
     public static final String EXT_COL_COUNT = "colCount";
     /** 同時再生数 */
     public static final String EXT_PLAY_COUNT = "playCount";
+    /** 同時再生数を自動調整するか */
+    public static final String EXT_ADAPTIVE_PLAY_COUNT = "adaptivePlayCount";
     /** タップ時の動作 TAP_ACTION_FLOAT|TAP_ACTION_THUMBNAIL */
     public static final String EXT_TAP_ACTION = "tapAction";
+    /** 交代再生の割り当て時間(ミリ秒) 0:時間で交代しない */
+    public static final String EXT_QUANTUM_MS = "quantumMs";
+    /** 交代再生の割り当てフレーム数 0:フレーム数で交代しない */
+    public static final String EXT_QUANTUM_FRAMES = "quantumFrames";
+    /** デコーダを再利用するか */
+    public static final String EXT_DECODER_POOL = "decoderPool";
+    /** サムネイルをRGB_565で保持するか */
+    public static final String EXT_THUMBNAIL_RGB565 = "thumbnailRgb565";
+    /** 再生していないセルにプレビューのコマ送りを表示するか */
+    public static final String EXT_SPRITE_PREVIEW = "spritePreview";
+    /** 小さいセルではキーフレームのみを再生するか */
+    public static final String EXT_KEYFRAME_ONLY = "keyframeOnly";
+    /** 動画をループ再生するか。セルの長押しで動画ごとに切り替えられる */
+    public static final String EXT_LOOP = "loop";
+    /** 短い動画の圧縮済みサンプルをメモリに保持するか */
+    public static final String EXT_SAMPLE_CACHE = "sampleCache";
+    /** 再生の計測値を画面に重ねて表示するか */
+    public static final String EXT_METRICS_OVERLAY = "metricsOverlay";
 
     private static final String FRAGMENT_GRID = "gridFragment";
+    /** メニュー: デコード処理のトレースを保存する */
+    private static final int MENU_EXPORT_TRACE = 1;
     /** バックキー押下時の動作 */
     private OnBackPressListener mBackPressListener;
 
@@ -43,6 +72,48 @@ public class GalleryActivity extends Activity {
         changeFragment(FRAGMENT_GRID);
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, MENU_EXPORT_TRACE, Menu.NONE, "トレースを保存");
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == MENU_EXPORT_TRACE) {
+            exportTrace();
+            return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * デコード処理のトレースをアプリのファイル領域にJSONで書き出す
+     */
+    private void exportTrace() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+
+        final File file = new File(dir, "trace_" + System.currentTimeMillis() + ".json");
+        final Context context = getApplicationContext();
+
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                return TraceRecorder.getInstance().export(file);
+            }
+
+            @Override
+            protected void onPostExecute(Boolean isOk) {
+                Toast.makeText(context, isOk ? "保存しました " + file : "保存に失敗しました",
+                        Toast.LENGTH_LONG).show();
+            }
+        }.execute();
+    }
+
     @Override
     public void onBackPressed() {
         boolean doBack = true;
@@ -0,0 +1,235 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * キーフレーム索引とSampleCacheへの記録を受け持つSampleSource<br>
+ * 索引があればキーフレームへのシークを索引から求める。
+ * 先頭から順に読み込んでいる間は、読み込みながら索引を作り、短い動画であればサンプルをSampleCacheに記録する。
+ * 末尾まで読んだら索引を保存し、記録したサンプルは次に先頭へ戻った時からメモリ上の読み込み元として使う
+ */
+class IndexedSampleSource implements SampleSource {
+    private static final String TAG = "VideoGrid";
+
+    /** 実際の読み込み元。記録したサンプルを使い始めたら差し替える */
+    private SampleSource mSource;
+    private final DecoderSurface.VideoData mData;
+    /** 再生するトラックのフォーマット */
+    private final MediaFormat mFormat;
+    /** 再生中の動画のキーフレーム索引 null:未作成 */
+    private KeyframeIndex mIndex;
+    /** true:先頭から読み込んだらサンプルをSampleCacheに記録する */
+    private final boolean mIsRecordable;
+    /** true:先頭から読み込んだら索引を作る */
+    private final boolean mIsIndexable;
+
+    /** true:先頭から順に読み込んでいる。索引の作成とサンプルの記録はこの間だけ行う */
+    private boolean mIsSequential = true;
+    /** true:サンプルを読み込んだ */
+    private boolean mIsStarted;
+    /** 作成中のキーフレーム索引 null:作成していない */
+    private KeyframeIndex.Builder mIndexBuilder;
+    /** 作成中の索引に記録する、先頭サンプルからの読み込みバイト数 */
+    private long mTrackBytes;
+    /** サンプルの記録先 null:記録していない */
+    private SampleCache.Recorder mRecorder;
+    /** 末尾まで記録したサンプル。次に先頭へ戻った時に読み込み元にする null:無し */
+    private SampleCache.Clip mFinishedClip;
+    /** true:索引により後ろにキーフレームが無いと分かったので、終端にいる */
+    private boolean mIsAtEnd;
+
+    /**
+     * @param source 読み込み元。先頭のサンプルを指していること
+     * @param data 動画
+     * @param format 再生するトラックのフォーマット
+     * @param index キーフレーム索引 null:無し
+     * @param isRecordable true:先頭から読み込んだらサンプルをSampleCacheに記録する
+     * @param isKeyframeOnly true:キーフレームのみを読み込むので、索引の作成と記録を行わない
+     */
+    IndexedSampleSource(SampleSource source, DecoderSurface.VideoData data,
+                        MediaFormat format, KeyframeIndex index,
+                        boolean isRecordable, boolean isKeyframeOnly) {
+        this.mSource = source;
+        this.mData = data;
+        this.mFormat = format;
+        this.mIndex = index != null && index.size() > 0 ? index : null;
+        this.mIsRecordable = isRecordable && !isKeyframeOnly;
+        this.mIsIndexable = mIndex == null && !isKeyframeOnly;
+    }
+
+    /**
+     * 索引の作成とサンプルの記録のため、bufferの先頭からサンプルを書き込む前提とする
+     */
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (mIsAtEnd) {
+            return -1;
+        }
+
+        int length = mSource.readSampleData(buffer, offset);
+        if (!mIsSequential) {
+            return length;
+        }
+
+        if (length < 0) {
+            finishSequential();
+            return length;
+        }
+
+        if (!mIsStarted) {
+            mIsStarted = true;
+            startSequential();
+        }
+
+        long timeUs = mSource.getSampleTime();
+        int flags = mSource.getSampleFlags();
+
+        if (mIndexBuilder != null) {
+            if ((flags & SAMPLE_FLAG_SYNC) != 0) {
+                mIndexBuilder.add(timeUs, mTrackBytes);
+            }
+            mTrackBytes += length;
+        }
+
+        if (mRecorder != null && !mRecorder.append(buffer, length, timeUs, flags)) {
+            mRecorder.abandon();
+            mRecorder = null;
+        }
+
+        return length;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mIsAtEnd ? -1 : mSource.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mIsAtEnd ? 0 : mSource.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return !mIsAtEnd && mSource.advance();
+    }
+
+    /**
+     * 索引があれば、SEEK_TO_PREVIOUS_SYNC・SEEK_TO_NEXT_SYNCのキーフレームを索引から求め、そこへ直接シークする
+     */
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mIsAtEnd = false;
+
+        if (mFinishedClip != null && timeUs == 0) {
+            // 1周目を記録し終えたので、以降はメモリから読み込む
+            mSource.release();
+            mSource = mFinishedClip.newSource();
+            mFinishedClip = null;
+        } else if (mIsSequential && (mIsStarted || timeUs != 0)) {
+            abandonSequential();
+        }
+
+        if (mode == SEEK_TO_NEXT_SYNC && mIndex != null) {
+            int next = mIndex.floorIndex(timeUs);
+            if (mIndex.getTimeUs(next) < timeUs) {
+                next++;
+            }
+
+            if (next >= mIndex.size()) {
+                mIsAtEnd = true;
+                return;
+            }
+            mSource.seekTo(mIndex.getTimeUs(next), SEEK_TO_CLOSEST_SYNC);
+
+        } else if (mode == SEEK_TO_PREVIOUS_SYNC && timeUs != 0) {
+            // 途中からの再生開始のシークのみ、索引の効果を計測する
+            long seekStartNs = System.nanoTime();
+            KeyframeIndexStore store = KeyframeIndexStore.getInstance();
+
+            if (mIndex != null) {
+                long syncUs = mIndex.getSyncTimeUs(timeUs);
+
+                if (mSource.getSampleTime() == syncUs) {
+                    store.recordSkippedSeek();
+                    return;
+                }
+                mSource.seekTo(syncUs, SEEK_TO_CLOSEST_SYNC);
+                store.recordSeek(true, System.nanoTime() - seekStartNs);
+            } else {
+                mSource.seekTo(timeUs, mode);
+                store.recordSeek(false, System.nanoTime() - seekStartNs);
+            }
+
+        } else {
+            mSource.seekTo(timeUs, mode);
+        }
+    }
+
+    @Override
+    public void release() {
+        abandonSequential();
+
+        if (mFinishedClip != null) {
+            SampleCache.getInstance().release(mFinishedClip);
+            mFinishedClip = null;
+        }
+
+        mSource.release();
+    }
+
+    /**
+     * 先頭のサンプルを読み込んだので、索引の作成とサンプルの記録を始める
+     */
+    private void startSequential() {
+        if (mIsIndexable) {
+            mIndexBuilder = new KeyframeIndex.Builder();
+            mTrackBytes = 0;
+        }
+
+        if (mIsRecordable) {
+            mRecorder = SampleCache.getInstance()
+                    .startRecording(mData.thumbId, mData.size, mData.dateModified, mFormat);
+        }
+    }
+
+    /**
+     * 先頭から末尾まで読み込んだので、作成した索引を保存し、記録したサンプルをSampleCacheに登録する
+     */
+    private void finishSequential() {
+        mIsSequential = false;
+
+        if (mIndexBuilder != null) {
+            KeyframeIndex index = mIndexBuilder.build(mData.size, mData.dateModified);
+            mIndexBuilder = null;
+            KeyframeIndexStore.getInstance().put(mData.thumbId, index);
+
+            if (index.size() > 0) {
+                mIndex = index;
+            }
+
+            Log.d(TAG, "keyframe index id:" + mData.thumbId + " keyframes:" + index.size());
+        }
+
+        if (mRecorder != null) {
+            mFinishedClip = mRecorder.finish();
+            mRecorder = null;
+        }
+    }
+
+    /**
+     * 先頭から順に読み込まなくなったので、作成中の索引と記録中のサンプルを破棄する
+     */
+    private void abandonSequential() {
+        mIsSequential = false;
+        mIndexBuilder = null;
+
+        if (mRecorder != null) {
+            mRecorder.abandon();
+            mRecorder = null;
+        }
+    }
+}
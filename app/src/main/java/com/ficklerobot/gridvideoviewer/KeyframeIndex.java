@@ -0,0 +1,106 @@
+package com.ficklerobot.gridvideoviewer;
+
+import java.util.Arrays;
+
+/**
+ * 1つの動画のキーフレーム(同期サンプル)の索引<br>
+ * キーフレームのタイムスタンプと、動画トラックの先頭からのバイト位置を昇順の配列で持ち、
+ * 指定位置の直前のキーフレームを二分探索で求める
+ */
+class KeyframeIndex {
+    /** 索引を作成した時の動画のファイルサイズ */
+    final long fileSize;
+    /** 索引を作成した時の動画の更新日時 */
+    final long dateModified;
+    /** キーフレームのタイムスタンプ(マイクロ秒)。昇順 */
+    private final long[] mTimesUs;
+    /** キーフレームの、動画トラックの先頭サンプルからのバイト位置 */
+    private final long[] mOffsets;
+
+    KeyframeIndex(long fileSize, long dateModified, long[] timesUs, long[] offsets) {
+        if (timesUs.length != offsets.length) {
+            throw new java.lang.IllegalArgumentException(
+                    "Length mismatch. :" + timesUs.length + "," + offsets.length);
+        }
+
+        this.fileSize = fileSize;
+        this.dateModified = dateModified;
+        this.mTimesUs = timesUs;
+        this.mOffsets = offsets;
+    }
+
+    int size() {
+        return mTimesUs.length;
+    }
+
+    long getTimeUs(int index) {
+        return mTimesUs[index];
+    }
+
+    long getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    /**
+     * @param timeUs 位置(マイクロ秒)
+     * @return 指定位置以前で最も近いキーフレームのインデックス。指定位置が先頭のキーフレームより前なら0
+     */
+    int floorIndex(long timeUs) {
+        int index = Arrays.binarySearch(mTimesUs, timeUs);
+
+        if (index < 0) {
+            index = -(index + 1) - 1; // 挿入位置の1つ前
+        }
+
+        return Math.max(0, index);
+    }
+
+    /**
+     * @param timeUs 位置(マイクロ秒)
+     * @return 指定位置から再生する場合に読み込みを始めるキーフレームのタイムスタンプ(マイクロ秒)
+     *         キーフレームが無ければ-1
+     */
+    long getSyncTimeUs(long timeUs) {
+        if (mTimesUs.length == 0) {
+            return -1;
+        }
+
+        return mTimesUs[floorIndex(timeUs)];
+    }
+
+    /**
+     * 再生しながら索引を作る<br>
+     * 先頭から末尾まで読み込んだ場合のみbuild()すること
+     */
+    static class Builder {
+        private long[] mTimesUs = new long[64];
+        private long[] mOffsets = new long[64];
+        private int mCount;
+
+        /**
+         * キーフレームを追加する。タイムスタンプが前のキーフレーム以下のものは無視する
+         *
+         * @param timeUs タイムスタンプ(マイクロ秒)
+         * @param offset 動画トラックの先頭サンプルからのバイト位置
+         */
+        void add(long timeUs, long offset) {
+            if (mCount > 0 && timeUs <= mTimesUs[mCount - 1]) {
+                return;
+            }
+
+            if (mCount == mTimesUs.length) {
+                mTimesUs = Arrays.copyOf(mTimesUs, mCount * 2);
+                mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            }
+
+            mTimesUs[mCount] = timeUs;
+            mOffsets[mCount] = offset;
+            mCount++;
+        }
+
+        KeyframeIndex build(long fileSize, long dateModified) {
+            return new KeyframeIndex(fileSize, dateModified,
+                    Arrays.copyOf(mTimesUs, mCount), Arrays.copyOf(mOffsets, mCount));
+        }
+    }
+}
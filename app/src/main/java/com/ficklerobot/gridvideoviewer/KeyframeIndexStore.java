@@ -0,0 +1,354 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * キーフレーム索引の保存先<br>
+ * 動画ごとに1ファイルで保存し、使用した索引は件数を限ってメモリに保持する。
+ * ファイルはタイムスタンプとバイト位置を前のキーフレームとの差分(int)で持ち、キーフレーム1つあたり8バイトに収める<br>
+ * 索引はデコード処理のスレッドで使われるので、ファイルの読み書きは専用のスレッドで行う。
+ * 起動時にpreload()で先頭の動画の索引を読み込み、デコード処理のスレッドはメモリ上の索引だけを参照する
+ */
+class KeyframeIndexStore {
+    private static final String TAG = "VideoGrid";
+    private static final int FILE_MAGIC = 0x4b465849; // "KFXI"
+    private static final int FILE_VERSION = 1;
+    private static final String FILE_SUFFIX = ".kfi";
+    /** メモリに保持する索引の数 */
+    private static final int MAX_CACHED_COUNT = 128;
+
+    /** 保存先ディレクトリ null:保存しない */
+    private volatile File mDirectory;
+    /** MediaStoreのIDと索引。アクセス順 */
+    private final LinkedHashMap<Long, KeyframeIndex> mCache =
+            new LinkedHashMap<Long, KeyframeIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, KeyframeIndex> eldest) {
+                    return size() > MAX_CACHED_COUNT;
+                }
+            };
+    /** ファイルが無いことを確認済みのID */
+    private final HashSet<Long> mMissingIds = new HashSet<>();
+    /** 読み込みを要求済みのID */
+    private final HashSet<Long> mLoadingIds = new HashSet<>();
+    /** ファイルを読み書きするスレッド */
+    private final ExecutorService mIoExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "KeyframeIndexIo");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** 索引を使ったシーク回数 */
+    private int mIndexedSeekCount;
+    /** 索引から再生開始位置がExtractorの現在位置と同じキーフレームと分かり、シークを省いた回数 */
+    private int mSkippedSeekCount;
+    private long mIndexedSeekSumNs;
+    private long mIndexedSeekMaxNs;
+    /** 索引を使わなかったシーク回数 */
+    private int mColdSeekCount;
+    private long mColdSeekSumNs;
+    private long mColdSeekMaxNs;
+
+    private static KeyframeIndexStore sMe;
+
+    private KeyframeIndexStore() {
+    }
+
+    static synchronized KeyframeIndexStore getInstance() {
+        if (sMe == null) {
+            sMe = new KeyframeIndexStore();
+        }
+        return sMe;
+    }
+
+    /**
+     * @param directory 索引ファイルの保存先
+     */
+    void setDirectory(File directory) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.d(TAG, "Failed to create keyframe index directory:" + directory);
+            return;
+        }
+
+        this.mDirectory = directory;
+    }
+
+    /**
+     * 索引をファイルから読み込み、メモリに保持する<br>
+     * ファイルを読み込むので、UIスレッドやデコード処理のスレッド以外から呼び出す
+     *
+     * @param ids MediaStoreのID。先頭からメモリに保持できる数まで読み込む
+     */
+    void preload(long[] ids) {
+        File directory = mDirectory;
+        if (directory == null) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis(); // 計測ログ用
+        int count = Math.min(ids.length, MAX_CACHED_COUNT);
+
+        for (int i = 0; i < count; i++) {
+            synchronized (this) {
+                if (mCache.containsKey(ids[i]) || mMissingIds.contains(ids[i])) {
+                    continue;
+                }
+            }
+            load(directory, ids[i]);
+        }
+
+        Log.d(TAG, "preload keyframe index count:" + count
+                + " cost:" + (System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * メモリに保持している索引を取得する。ファイルは読み込まない<br>
+     * メモリに無ければ専用のスレッドに読み込みを要求し、次回の取得から使えるようにする
+     *
+     * @param id MediaStoreのID
+     * @param fileSize 動画のファイルサイズ
+     * @param dateModified 動画の更新日時
+     * @return 索引がメモリに無い、または動画が変更されていればnull
+     */
+    KeyframeIndex getCached(final long id, long fileSize, long dateModified) {
+        final File directory = mDirectory;
+        KeyframeIndex index;
+
+        synchronized (this) {
+            index = mCache.get(id);
+
+            if (index == null && directory != null
+                    && !mMissingIds.contains(id) && mLoadingIds.add(id)) {
+                mIoExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        load(directory, id);
+                    }
+                });
+            }
+        }
+
+        if (index != null
+                && (index.fileSize != fileSize || index.dateModified != dateModified)) {
+            return null;
+        }
+
+        return index;
+    }
+
+    /**
+     * 索引を登録し、ファイルへの書き込みを要求する<br>
+     * 書き込みは専用のスレッドで行うので、呼び出し元のスレッドはブロックしない
+     *
+     * @param id MediaStoreのID
+     * @param index 索引
+     */
+    void put(long id, final KeyframeIndex index) {
+        synchronized (this) {
+            mCache.put(id, index);
+            mMissingIds.remove(id);
+        }
+
+        File directory = mDirectory;
+        if (directory != null) {
+            final File file = new File(directory, id + FILE_SUFFIX);
+
+            mIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeFile(file, index);
+                }
+            });
+        }
+    }
+
+    /**
+     * シークにかかった時間を記録する<br>
+     * 索引の有無に関わらずMediaExtractorのシークを呼び出すので、時間の大半はExtractorの処理になる。
+     * 索引で省けるのはシークそのもので、それはrecordSkippedSeek()で数える
+     *
+     * @param isIndexed true:索引からシーク先を決めた
+     * @param elapsedNs シークにかかった時間(ナノ秒)
+     */
+    synchronized void recordSeek(boolean isIndexed, long elapsedNs) {
+        if (isIndexed) {
+            mIndexedSeekCount++;
+            mIndexedSeekSumNs += elapsedNs;
+            mIndexedSeekMaxNs = Math.max(mIndexedSeekMaxNs, elapsedNs);
+        } else {
+            mColdSeekCount++;
+            mColdSeekSumNs += elapsedNs;
+            mColdSeekMaxNs = Math.max(mColdSeekMaxNs, elapsedNs);
+        }
+    }
+
+    /**
+     * 索引からシーク不要と分かり、シークを省いたら呼び出す
+     */
+    synchronized void recordSkippedSeek() {
+        mSkippedSeekCount++;
+    }
+
+    /**
+     * シーク時間の集計をログに出力する
+     */
+    synchronized void dumpStats() {
+        if (mIndexedSeekCount > 0 || mSkippedSeekCount > 0) {
+            Log.d(TAG, "seek stats indexed count:" + mIndexedSeekCount
+                    + " avg(us):" + (mIndexedSeekCount > 0
+                    ? mIndexedSeekSumNs / mIndexedSeekCount / 1000 : 0)
+                    + " max(us):" + (mIndexedSeekMaxNs / 1000)
+                    + " skipped:" + mSkippedSeekCount);
+        }
+
+        if (mColdSeekCount > 0) {
+            Log.d(TAG, "seek stats cold count:" + mColdSeekCount
+                    + " avg(us):" + (mColdSeekSumNs / mColdSeekCount / 1000)
+                    + " max(us):" + (mColdSeekMaxNs / 1000));
+        }
+
+        if (mIndexedSeekCount > 0 && mColdSeekCount > 0) {
+            Log.d(TAG, "seek stats note: both paths call MediaExtractor.seekTo(), whose cost"
+                    + " dominates; the index saves only the skipped seeks");
+        }
+    }
+
+    /**
+     * 索引ファイルを読み込んでメモリに登録する。読み込み中にput()された索引があればそちらを残す
+     */
+    private void load(File directory, long id) {
+        KeyframeIndex index = readFile(new File(directory, id + FILE_SUFFIX));
+
+        synchronized (this) {
+            mLoadingIds.remove(id);
+
+            if (mCache.containsKey(id)) {
+                return;
+            }
+
+            if (index != null) {
+                mCache.put(id, index);
+            } else {
+                mMissingIds.add(id);
+            }
+        }
+    }
+
+    private KeyframeIndex readFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                return null;
+            }
+
+            long fileSize = in.readLong();
+            long dateModified = in.readLong();
+            int count = in.readInt();
+
+            long[] timesUs = new long[count];
+            long[] offsets = new long[count];
+            long timeUs = in.readLong();
+            long offset = 0;
+
+            for (int i = 0; i < count; i++) {
+                timeUs += in.readInt();
+                offset += in.readInt() & 0xffffffffL;
+                timesUs[i] = timeUs;
+                offsets[i] = offset;
+            }
+
+            return new KeyframeIndex(fileSize, dateModified, timesUs, offsets);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 一時ファイルに書き込んでから置き換えるので、途中で失敗しても書きかけのファイルは残らない
+     */
+    private void writeFile(File file, KeyframeIndex index) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean isOk = false;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeLong(index.fileSize);
+            out.writeLong(index.dateModified);
+            out.writeInt(index.size());
+
+            // 先頭のタイムスタンプを基準に、以降は差分で書き込む
+            long prevTimeUs = index.size() > 0 ? index.getTimeUs(0) : 0;
+            long prevOffset = 0;
+            out.writeLong(prevTimeUs);
+
+            for (int i = 0; i < index.size(); i++) {
+                out.writeInt((int) (index.getTimeUs(i) - prevTimeUs));
+                out.writeInt((int) (index.getOffset(i) - prevOffset));
+                prevTimeUs = index.getTimeUs(i);
+                prevOffset = index.getOffset(i);
+            }
+
+            out.close();
+            out = null;
+            isOk = tmpFile.renameTo(file);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+
+        if (!isOk) {
+            tmpFile.delete();
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //Do nothing
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import android.os.Bundle;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
 import android.widget.Spinner;
 
 public class MainActivity extends Activity {
@@ -13,6 +14,15 @@ public class MainActivity extends Activity {
     private Spinner mColSpinner;
     private Spinner mPlaySpinner;
     private Spinner mActionSpinner;
+    private Spinner mQuantumSpinner;
+    private CheckBox mAdaptiveCheckBox;
+    private CheckBox mDecoderPoolCheckBox;
+    private CheckBox mRgb565CheckBox;
+    private CheckBox mSpritePreviewCheckBox;
+    private CheckBox mKeyframeOnlyCheckBox;
+    private CheckBox mLoopCheckBox;
+    private CheckBox mSampleCacheCheckBox;
+    private CheckBox mMetricsOverlayCheckBox;
 
     public static final int TAP_ACTION_FLOAT = 1;
     public static final int TAP_ACTION_THUMBNAIL = 2;
@@ -20,6 +30,11 @@ public class MainActivity extends Activity {
     private static final int[] TAP_ACTION_LIST =
             {TAP_ACTION_FLOAT, TAP_ACTION_THUMBNAIL};
 
+    /** 交代再生の割り当て時間(ミリ秒)。QUANTUM_FRAMES_LISTと対になる */
+    private static final long[] QUANTUM_MS_LIST = {0, 3000, 5000, 10000, 0};
+    /** 交代再生の割り当てフレーム数。QUANTUM_MS_LISTと対になる */
+    private static final int[] QUANTUM_FRAMES_LIST = {0, 0, 0, 0, 90};
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -31,12 +46,31 @@ public class MainActivity extends Activity {
 
                 int colCount = Integer.valueOf((String) mColSpinner.getSelectedItem());
                 int playCount = Integer.valueOf((String) mPlaySpinner.getSelectedItem());
+                boolean adaptive = mAdaptiveCheckBox.isChecked();
+                boolean decoderPool = mDecoderPoolCheckBox.isChecked();
+                boolean rgb565 = mRgb565CheckBox.isChecked();
+                boolean spritePreview = mSpritePreviewCheckBox.isChecked();
+                boolean keyframeOnly = mKeyframeOnlyCheckBox.isChecked();
+                boolean loop = mLoopCheckBox.isChecked();
+                boolean sampleCache = mSampleCacheCheckBox.isChecked();
+                boolean metricsOverlay = mMetricsOverlayCheckBox.isChecked();
                 int tapAction = TAP_ACTION_LIST[mActionSpinner.getSelectedItemPosition()];
+                int quantumPos = mQuantumSpinner.getSelectedItemPosition();
 
                 Intent intent = new Intent(getApplicationContext(), GalleryActivity.class);
                 intent.putExtra(GalleryActivity.EXT_COL_COUNT, colCount);
                 intent.putExtra(GalleryActivity.EXT_PLAY_COUNT, playCount);
+                intent.putExtra(GalleryActivity.EXT_ADAPTIVE_PLAY_COUNT, adaptive);
                 intent.putExtra(GalleryActivity.EXT_TAP_ACTION, tapAction);
+                intent.putExtra(GalleryActivity.EXT_QUANTUM_MS, QUANTUM_MS_LIST[quantumPos]);
+                intent.putExtra(GalleryActivity.EXT_QUANTUM_FRAMES, QUANTUM_FRAMES_LIST[quantumPos]);
+                intent.putExtra(GalleryActivity.EXT_DECODER_POOL, decoderPool);
+                intent.putExtra(GalleryActivity.EXT_THUMBNAIL_RGB565, rgb565);
+                intent.putExtra(GalleryActivity.EXT_SPRITE_PREVIEW, spritePreview);
+                intent.putExtra(GalleryActivity.EXT_KEYFRAME_ONLY, keyframeOnly);
+                intent.putExtra(GalleryActivity.EXT_LOOP, loop);
+                intent.putExtra(GalleryActivity.EXT_SAMPLE_CACHE, sampleCache);
+                intent.putExtra(GalleryActivity.EXT_METRICS_OVERLAY, metricsOverlay);
 
                 startActivity(intent);
             }
@@ -55,10 +89,25 @@ public class MainActivity extends Activity {
                 this, android.R.layout.simple_list_item_1, playCounts));
         mPlaySpinner.setSelection(1);
 
+        mAdaptiveCheckBox = (CheckBox) findViewById(R.id.adaptiveCheckBox);
+        mDecoderPoolCheckBox = (CheckBox) findViewById(R.id.decoderPoolCheckBox);
+        mRgb565CheckBox = (CheckBox) findViewById(R.id.rgb565CheckBox);
+        mSpritePreviewCheckBox = (CheckBox) findViewById(R.id.spritePreviewCheckBox);
+        mKeyframeOnlyCheckBox = (CheckBox) findViewById(R.id.keyframeOnlyCheckBox);
+        mLoopCheckBox = (CheckBox) findViewById(R.id.loopCheckBox);
+        mSampleCacheCheckBox = (CheckBox) findViewById(R.id.sampleCacheCheckBox);
+        mMetricsOverlayCheckBox = (CheckBox) findViewById(R.id.metricsOverlayCheckBox);
+
         mActionSpinner = (Spinner) findViewById(R.id.tapActionSpinner);
         String[] actions = {"拡大して再生", "サムネイル再生"};
         mActionSpinner.setAdapter(new ArrayAdapter<>(
                 this, android.R.layout.simple_list_item_1, actions));
         mActionSpinner.setSelection(0);
+
+        mQuantumSpinner = (Spinner) findViewById(R.id.quantumSpinner);
+        String[] quantums = {"しない", "3秒", "5秒", "10秒", "90フレーム"};
+        mQuantumSpinner.setAdapter(new ArrayAdapter<>(
+                this, android.R.layout.simple_list_item_1, quantums));
+        mQuantumSpinner.setSelection(0);
     }
 }
@@ -0,0 +1,79 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.media.MediaCodec;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MediaCodecでデコードするVideoDecoder<br>
+ * 出力先はconfigure時に指定したSurface。デコーダを開始するたびに作り直すこと
+ */
+class MediaCodecDecoder implements VideoDecoder {
+    private final MediaCodec mCodec;
+    /** dequeueOutputBuffer()で使い回す */
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    /** API 21未満で使う入力バッファ。getInputBuffers()は呼び出すたびに配列を作るので使い回す */
+    private ByteBuffer[] mInputBuffers;
+
+    /**
+     * @param codec 開始済みのMediaCodec
+     */
+    MediaCodecDecoder(MediaCodec codec) {
+        this.mCodec = codec;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer;
+
+        if (Build.VERSION.SDK_INT < 21) {
+            if (mInputBuffers == null) {
+                mInputBuffers = mCodec.getInputBuffers();
+            }
+            buffer = mInputBuffers[index];
+            buffer.clear();
+        } else {
+            buffer = mCodec.getInputBuffer(index);
+        }
+
+        return buffer;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+                                 int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(OutputInfo info, long timeoutUs) {
+        int status = mCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+
+        info.size = mBufferInfo.size;
+        info.presentationTimeUs = mBufferInfo.presentationTimeUs;
+        info.flags = mBufferInfo.flags;
+
+        return status;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        mCodec.releaseOutputBuffer(index, renderTimestampNs);
+    }
+
+    @Override
+    public void flush() {
+        mCodec.flush();
+    }
+}
@@ -0,0 +1,350 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.graphics.Matrix;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * DecodeSessionのAndroid側の処理<br>
+ * 動画ファイルかSampleCacheからサンプルの読み込み元を、DecoderPoolからデコーダを用意し、
+ * 再生状態をDecodeHandlerでUIスレッドに伝える。1つのDecoderSurface専用
+ */
+class MediaDecodeHost implements DecodeResources, FrameSink {
+    private static final String TAG = "VideoGrid";
+
+    private final DecoderSurface.DecodeHandler mHandler;
+    /** 動画出力先Surface */
+    private final Surface mOutSurface;
+    /** 動画の再生サイズ(縦横) */
+    private final int mOutSize;
+    private final DecoderPool mDecoderPool;
+
+    /** openSource()で開いた動画 */
+    private DecoderSurface.VideoData mData;
+    /** 再生するトラックのフォーマット */
+    private MediaFormat mTrackFormat;
+    /** openDecoder()でプールから受け取ったデコーダ */
+    private DecoderPool.PooledDecoder mPooledDecoder;
+
+    /**
+     * @param handler DecodeHandler
+     * @param outSurface 動画出力先Surface
+     * @param outSize 動画の再生サイズ(縦横)
+     */
+    MediaDecodeHost(DecoderSurface.DecodeHandler handler, Surface outSurface, int outSize) {
+        this.mHandler = handler;
+        this.mOutSurface = outSurface;
+        this.mOutSize = outSize;
+        this.mDecoderPool = DecoderPool.getInstance();
+    }
+
+    /**
+     * SampleCacheに保持されていればメモリから、無ければ動画ファイルからExtractorで読み込む。
+     * いずれもキーフレーム索引とSampleCacheへの記録を受け持つIndexedSampleSourceで包む
+     */
+    @Override
+    public SampleSource openSource(PlaybackItem item, boolean isKeyframeOnly) {
+        DecoderSurface.VideoData data = (DecoderSurface.VideoData) item;
+        mData = data;
+        mTrackFormat = null;
+
+        SampleSource source;
+        SampleCache.Clip clip = SampleCache.getInstance()
+                .acquire(data.thumbId, data.size, data.dateModified);
+
+        if (clip != null) {
+            Log.d(TAG, "sample cache hit thumbId:" + data.thumbId);
+
+            source = clip.newSource();
+            mTrackFormat = clip.format;
+        } else {
+            String filePath = data.videoUri.getPath();
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(filePath);
+
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.d(TAG, "Failed to setDataSource thumbId:" + data.thumbId);
+                extractor.release();
+                return null;
+            }
+
+            source = new ExtractorSampleSource(extractor);
+            mTrackFormat = selectTrack(extractor);
+
+            if (mTrackFormat == null) {
+                source.release();
+                return null;
+            }
+        }
+
+        if (data.textureMatrix == null) {
+            VideoMetadataStore.VideoMetadata metadata = data.metadata;
+            if (metadata == null) {
+                metadata = readMetadata(data, data.videoUri.getPath(), mTrackFormat);
+            }
+
+            data.textureMatrix = makeTextureMatrix(metadata, mOutSize);
+        }
+
+        // デコード処理のスレッドではファイルを読まず、起動時に読み込んだ索引だけを使う
+        KeyframeIndex index = KeyframeIndexStore.getInstance()
+                .getCached(data.thumbId, data.size, data.dateModified);
+
+        return new IndexedSampleSource(source, data, mTrackFormat, index,
+                clip == null, isKeyframeOnly);
+    }
+
+    @Override
+    public String getMimeType() {
+        return mTrackFormat.getString(MediaFormat.KEY_MIME);
+    }
+
+    /**
+     * デコーダをプールから受け取る
+     */
+    @Override
+    public VideoDecoder openDecoder(PlaybackItem item) throws IOException {
+        Log.d(TAG, "startVideoDecoder format:" + mTrackFormat);
+
+        if (!isDecodable(mTrackFormat, item)) {
+            // 端末のデコーダでは再生できないので、生成を試みない
+            Log.d(TAG, "Unsupported format " + mTrackFormat);
+            return null;
+        }
+
+        mPooledDecoder = mDecoderPool.acquire(mTrackFormat, mOutSurface);
+        return new MediaCodecDecoder(mPooledDecoder.codec);
+    }
+
+    @Override
+    public void markResumed() {
+        mPooledDecoder.acquireType = DecoderPool.ACQUIRE_RESUMED;
+    }
+
+    @Override
+    public void onFirstFrame(long elapsedNs) {
+        mDecoderPool.recordFirstFrame(mPooledDecoder.acquireType, elapsedNs);
+
+        if (DecodeLog.isLoggable(DecodeLog.DEBUG)) {
+            DecodeLog.d("first frame decoder:"
+                    + DecoderPool.getAcquireTypeName(mPooledDecoder.acquireType));
+        }
+    }
+
+    @Override
+    public void releaseDecoder(boolean keepStarted, boolean reusable) {
+        if (mPooledDecoder != null) {
+            mDecoderPool.recycle(mPooledDecoder, keepStarted, reusable);
+            mPooledDecoder = null;
+        }
+    }
+
+    @Override
+    public void releaseSurface() {
+        mDecoderPool.onSurfaceReleased(mOutSurface);
+    }
+
+    @Override
+    public void onReady() {
+        mHandler.sendMessage(mHandler.obtainMessage(
+                DecoderSurface.DecodeHandler.MSG_DECODE_READY,
+                mData.textureMatrix));
+    }
+
+    @Override
+    public void onStarted() {
+        mHandler.sendEmptyMessage(DecoderSurface.DecodeHandler.MSG_DECODE_START);
+    }
+
+    /**
+     * フレームはSurfaceに出力済みなので何もしない
+     */
+    @Override
+    public void onFrame(long ptsUs, long renderNs) {
+        //Do nothing
+    }
+
+    @Override
+    public void onFailure(String message) {
+        mHandler.sendMessage(mHandler.obtainMessage(
+                DecoderSurface.DecodeHandler.MSG_FAILED_TO_DECODE, message));
+    }
+
+    /**
+     * @return false:端末のデコーダの能力では、解像度かフレームレートが収まらない
+     */
+    private static boolean isDecodable(MediaFormat format, PlaybackItem item) {
+        int width = format.containsKey(MediaFormat.KEY_WIDTH)
+                ? format.getInteger(MediaFormat.KEY_WIDTH) : 0;
+        int height = format.containsKey(MediaFormat.KEY_HEIGHT)
+                ? format.getInteger(MediaFormat.KEY_HEIGHT) : 0;
+
+        VideoMetadataStore.VideoMetadata metadata = item.metadata;
+        int frameRate = metadata != null ? Math.round(metadata.frameRate) : 0;
+
+        return CodecProfileStore.getInstance().isSupported(
+                format.getString(MediaFormat.KEY_MIME), width, height, frameRate);
+    }
+
+    private static MediaFormat selectTrack(MediaExtractor extractor) {
+        int trackCount = extractor.getTrackCount();
+        Log.d(TAG, "trackCount :" + trackCount);
+
+        MediaFormat format;
+        for (int i = 0; i < trackCount; i++) {
+            extractor.selectTrack(i);
+            format = extractor.getTrackFormat(i);
+            Log.d(TAG, "Track media format :" + format.toString());
+
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime.startsWith("video/")) {
+                return format;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 動画のメタデータを取得する<br>
+     * 索引に無い、またはファイルが変更されていた場合のみファイルから読み込み、索引に登録する
+     *
+     * @param data 動画
+     * @param filePath 動画ファイルパス
+     * @param decodeFormat MediaFormat
+     * @return メタデータ
+     */
+    private static VideoMetadataStore.VideoMetadata readMetadata(DecoderSurface.VideoData data,
+                                                                 String filePath,
+                                                                 MediaFormat decodeFormat) {
+        VideoMetadataStore store = VideoMetadataStore.getInstance();
+        VideoMetadataStore.VideoMetadata metadata =
+                store.get(data.thumbId, data.size, data.dateModified);
+
+        if (metadata == null) {
+            long startTime = System.currentTimeMillis(); // 計測ログ用
+
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            String rotationVal = null;
+            try {
+                retriever.setDataSource(filePath);
+
+                // 動画の向きを取得
+                rotationVal = retriever.extractMetadata( //SDK 17から
+                        MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                retriever.release();
+            }
+
+            int orientation = 0;
+            if (rotationVal != null && TextUtils.isDigitsOnly(rotationVal)) {
+                orientation = Integer.valueOf(rotationVal);
+            }
+
+            metadata = new VideoMetadataStore.VideoMetadata(
+                    getInteger(decodeFormat, MediaFormat.KEY_WIDTH),
+                    getInteger(decodeFormat, MediaFormat.KEY_HEIGHT),
+                    orientation,
+                    getInteger(decodeFormat, "rotation-degrees"),
+                    decodeFormat.containsKey(MediaFormat.KEY_DURATION)
+                            ? decodeFormat.getLong(MediaFormat.KEY_DURATION) : 0,
+                    getFrameRate(decodeFormat),
+                    decodeFormat.getString(MediaFormat.KEY_MIME));
+
+            store.put(data.thumbId, data.size, data.dateModified, metadata);
+
+            Log.d(TAG, "readMetadata id:" + data.thumbId + " " + metadata
+                    + " cost:" + (System.currentTimeMillis() - startTime));
+        }
+
+        data.metadata = metadata;
+        return metadata;
+    }
+
+    private static int getInteger(MediaFormat format, String key) {
+        return format.containsKey(key) ? format.getInteger(key) : 0;
+    }
+
+    /**
+     * フレームレートはコンテナによってintとfloatのどちらでも格納されるので、両方を試す
+     *
+     * @return フレームレート 0:不明
+     */
+    private static float getFrameRate(MediaFormat format) {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return 0;
+        }
+
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            // floatで格納されている
+        }
+
+        try {
+            return format.getFloat(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 動画を出力サイズに変換するためのMatrixを生成する
+     *
+     * @param metadata 動画のメタデータ
+     * @param textureSize 動画の出力サイズ
+     * @return 動画を出力サイズに変換するためのMatrix
+     */
+    private static Matrix makeTextureMatrix(VideoMetadataStore.VideoMetadata metadata,
+                                            int textureSize) {
+        Matrix mtx = new Matrix();
+
+        int orientation = metadata.rotation;
+
+        // rotation-degreesがセットされている場合、デコーダが映像の回転を行うのでMatrixでは回転しない
+        boolean isRotateWithDecoder = false;
+        int r = (metadata.decoderRotation + 360) % 360;
+        if (r == 90 || r == 270) {
+            isRotateWithDecoder = true;
+        }
+
+        int rotate = (isRotateWithDecoder ? 0 : orientation); // 回転角
+        float pivot = (float) textureSize / 2; // 回転する際の中心座標
+        mtx.setRotate(rotate, pivot, pivot);
+
+        int width = metadata.width; // 動画のオリジナル幅
+        int height = metadata.height; // 動画のオリジナル高
+
+        if (width > 0 && height > 0) {
+            if (orientation == 90 || orientation == 270) {
+                if (width > height) {
+                    float scale = (float) width / height;
+                    mtx.postScale(1.0f, scale, pivot, pivot);
+                } else {
+                    float scale = (float) height / width;
+                    mtx.postScale(scale, 1.0f, pivot, pivot);
+                }
+            } else {
+                if (width > height) {
+                    float scale = (float) width / height;
+                    mtx.postScale(scale, 1.0f, pivot, pivot);
+                } else {
+                    float scale = (float) height / width;
+                    mtx.postScale(1.0f, scale, pivot, pivot);
+                }
+            }
+        }
+
+        return mtx;
+    }
+}
@@ -0,0 +1,16 @@
+package com.ficklerobot.gridvideoviewer;
+
+/**
+ * DecodeSessionが再生する動画の、再生の状態<br>
+ * 動画の読み込み元はDecodeResourcesが持つので、ここにはセッションが読み書きする値だけを置く
+ */
+class PlaybackItem {
+    /** メタデータ null:未取得 */
+    volatile VideoMetadataStore.VideoMetadata metadata;
+    /** 次に再生を開始する位置(マイクロ秒)。再生枠を譲った・取り上げられた位置を記録する */
+    volatile long resumePositionUs;
+    /** true:次回はresumePositionUs直前のキーフレームから表示する */
+    volatile boolean resumeAtKeyFrame;
+    /** true:末尾まで再生したら先頭から続けて再生する */
+    volatile boolean isLooping;
+}
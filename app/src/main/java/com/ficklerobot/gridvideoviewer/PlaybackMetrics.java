@@ -0,0 +1,368 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 再生の計測値の集計先<br>
+ * 待ち時間・準備時間・フレームごとの遅延などを、セルごと・MIMEタイプごと・全体の固定区間ヒストグラムに記録する。
+ * 記録はロックを取らずにAtomicLongArrayで行うので、デコード中のワーカースレッドから呼び出せる<br>
+ * snapshot()で記録中の値を写し取り、ログへの出力や画面への重ね表示に使う
+ */
+class PlaybackMetrics {
+    private static final String TAG = "VideoGrid";
+
+    /** ヒストグラム: 再生待ちキューに並んでから再生枠が割り当てられるまで */
+    static final int QUEUE_WAIT = 0;
+    /** ヒストグラム: サンプルの読み込み元(Extractor)の準備 */
+    static final int SOURCE_SETUP = 1;
+    /** ヒストグラム: デコーダの生成・設定・開始(プールからの再利用を含む) */
+    static final int CODEC_SETUP = 2;
+    /** ヒストグラム: 再生枠の割り当てから最初のフレームの表示まで */
+    static final int FIRST_FRAME = 3;
+    /** ヒストグラム: サンプルをデコーダに入力してから出力を受け取るまで */
+    static final int DECODE_LATENCY = 4;
+    /** ヒストグラム: 表示予定時刻からの遅れ */
+    static final int LATENESS = 5;
+    private static final int HISTOGRAM_COUNT = 6;
+    private static final String[] HISTOGRAM_NAMES =
+            {"queue", "source", "codec", "ttff", "decode", "late"};
+
+    /** カウンタ: 表示したフレーム数 */
+    static final int FRAMES = 0;
+    /** カウンタ: 表示予定時刻を過ぎて捨てたフレーム数 */
+    static final int DROPS = 1;
+    /** カウンタ: 再生枠を取り上げられた回数 */
+    static final int PREEMPTS = 2;
+    private static final int COUNTER_COUNT = 3;
+    private static final String[] COUNTER_NAMES = {"frames", "drops", "preempts"};
+
+    /** ヒストグラムの各区間の上限(マイクロ秒)。最後の区間はこれを超えるもの */
+    private static final long[] BUCKET_BOUNDS_US = {
+            1000, 2000, 4000, 8000, 16000, 33000, 66000,
+            133000, 266000, 533000, 1000000, 2000000};
+    private static final int BUCKET_COUNT = BUCKET_BOUNDS_US.length + 1;
+
+    /** 名前と集計 */
+    private final ConcurrentHashMap<String, MetricSet> mSets = new ConcurrentHashMap<>();
+    private final MetricSet mTotal = new MetricSet("all");
+
+    private static PlaybackMetrics sMe;
+
+    private PlaybackMetrics() {
+    }
+
+    static synchronized PlaybackMetrics getInstance() {
+        if (sMe == null) {
+            sMe = new PlaybackMetrics();
+        }
+        return sMe;
+    }
+
+    /**
+     * @return 全体の集計
+     */
+    MetricSet getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @param surfaceNumber DecoderSurfaceの番号
+     * @return セルの集計
+     */
+    MetricSet forCell(int surfaceNumber) {
+        return getOrCreate("cell" + surfaceNumber);
+    }
+
+    /**
+     * @param mimeType 動画のMIMEタイプ
+     * @return MIMEタイプの集計 mimeTypeがnullならnull
+     */
+    MetricSet forMime(String mimeType) {
+        return mimeType != null ? getOrCreate(mimeType) : null;
+    }
+
+    private MetricSet getOrCreate(String name) {
+        MetricSet set = mSets.get(name);
+
+        if (set == null) {
+            MetricSet created = new MetricSet(name);
+            set = mSets.putIfAbsent(name, created);
+            if (set == null) {
+                set = created;
+            }
+        }
+
+        return set;
+    }
+
+    /**
+     * 記録中の値を写し取る
+     *
+     * @return 全体、MIMEタイプ・セルの名前順の集計
+     */
+    Snapshot snapshot() {
+        ArrayList<SetSnapshot> sets = new ArrayList<>();
+        for (MetricSet set : mSets.values()) {
+            sets.add(set.snapshot());
+        }
+        Collections.sort(sets, new Comparator<SetSnapshot>() {
+            @Override
+            public int compare(SetSnapshot a, SetSnapshot b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        sets.add(0, mTotal.snapshot());
+
+        return new Snapshot(sets);
+    }
+
+    /**
+     * 全ての記録を消す。記録中のセッションが持つ集計先はそのまま使える
+     */
+    void reset() {
+        for (MetricSet set : mSets.values()) {
+            set.clear();
+        }
+        mTotal.clear();
+    }
+
+    /**
+     * 1つの集計単位のヒストグラムとカウンタ<br>
+     * ヒストグラム1つにつき、区間ごとの件数・合計・最大値をAtomicLongArrayの連続した要素に持つ
+     */
+    static class MetricSet {
+        private static final int SLOT_SUM = BUCKET_COUNT;
+        private static final int SLOT_MAX = BUCKET_COUNT + 1;
+        private static final int SLOT_COUNT = BUCKET_COUNT + 2;
+
+        final String name;
+        private final AtomicLongArray mHistograms =
+                new AtomicLongArray(HISTOGRAM_COUNT * SLOT_COUNT);
+        private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+
+        MetricSet(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param histogram QUEUE_WAIT〜LATENESS
+         * @param valueNs 計測値(ナノ秒) 負数は0として記録する
+         */
+        void record(int histogram, long valueNs) {
+            long valueUs = Math.max(0, valueNs / 1000);
+            int base = histogram * SLOT_COUNT;
+
+            mHistograms.incrementAndGet(base + findBucket(valueUs));
+            mHistograms.addAndGet(base + SLOT_SUM, valueUs);
+
+            long max;
+            do {
+                max = mHistograms.get(base + SLOT_MAX);
+            } while (valueUs > max && !mHistograms.compareAndSet(base + SLOT_MAX, max, valueUs));
+        }
+
+        /**
+         * @param counter FRAMES〜PREEMPTS
+         */
+        void increment(int counter) {
+            mCounters.incrementAndGet(counter);
+        }
+
+        private void clear() {
+            for (int i = 0; i < mHistograms.length(); i++) {
+                mHistograms.set(i, 0);
+            }
+            for (int i = 0; i < mCounters.length(); i++) {
+                mCounters.set(i, 0);
+            }
+        }
+
+        private SetSnapshot snapshot() {
+            long[][] buckets = new long[HISTOGRAM_COUNT][BUCKET_COUNT];
+            long[] sums = new long[HISTOGRAM_COUNT];
+            long[] maxs = new long[HISTOGRAM_COUNT];
+
+            for (int h = 0; h < HISTOGRAM_COUNT; h++) {
+                int base = h * SLOT_COUNT;
+                for (int b = 0; b < BUCKET_COUNT; b++) {
+                    buckets[h][b] = mHistograms.get(base + b);
+                }
+                sums[h] = mHistograms.get(base + SLOT_SUM);
+                maxs[h] = mHistograms.get(base + SLOT_MAX);
+            }
+
+            long[] counters = new long[COUNTER_COUNT];
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                counters[i] = mCounters.get(i);
+            }
+
+            return new SetSnapshot(name, buckets, sums, maxs, counters);
+        }
+
+        private static int findBucket(long valueUs) {
+            for (int i = 0; i < BUCKET_BOUNDS_US.length; i++) {
+                if (valueUs <= BUCKET_BOUNDS_US[i]) {
+                    return i;
+                }
+            }
+            return BUCKET_BOUNDS_US.length;
+        }
+    }
+
+    /**
+     * 写し取った全ての集計
+     */
+    static class Snapshot {
+        /** 先頭が全体の集計 */
+        final List<SetSnapshot> sets;
+
+        private Snapshot(List<SetSnapshot> sets) {
+            this.sets = Collections.unmodifiableList(sets);
+        }
+
+        /**
+         * 全ての集計をログに出力する
+         */
+        void dump() {
+            for (SetSnapshot set : sets) {
+                if (!set.isEmpty()) {
+                    Log.d(TAG, "metrics " + set);
+                }
+            }
+        }
+
+        /**
+         * @return 全体とMIMEタイプごとの集計を1行ずつ並べた文字列。画面表示用
+         */
+        String toSummary() {
+            StringBuilder sb = new StringBuilder();
+
+            for (SetSnapshot set : sets) {
+                if (set.name.startsWith("cell") || set.isEmpty()) {
+                    continue;
+                }
+
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                }
+                sb.append(set.name)
+                        .append(" ttff:").append(set.getPercentileUs(FIRST_FRAME, 50) / 1000)
+                        .append('/').append(set.getPercentileUs(FIRST_FRAME, 95) / 1000)
+                        .append(" decode:").append(set.getPercentileUs(DECODE_LATENCY, 50) / 1000)
+                        .append('/').append(set.getPercentileUs(DECODE_LATENCY, 95) / 1000)
+                        .append(" late95:").append(set.getPercentileUs(LATENESS, 95) / 1000)
+                        .append(" drop:").append(set.counters[DROPS])
+                        .append('/').append(set.counters[FRAMES])
+                        .append(" preempt:").append(set.counters[PREEMPTS]);
+            }
+
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 写し取った1つの集計単位
+     */
+    static class SetSnapshot {
+        final String name;
+        /** ヒストグラムごとの、区間ごとの件数 */
+        final long[][] buckets;
+        /** ヒストグラムごとの合計(マイクロ秒) */
+        final long[] sums;
+        /** ヒストグラムごとの最大値(マイクロ秒) */
+        final long[] maxs;
+        /** カウンタの値 */
+        final long[] counters;
+
+        private SetSnapshot(String name, long[][] buckets, long[] sums, long[] maxs,
+                            long[] counters) {
+            this.name = name;
+            this.buckets = buckets;
+            this.sums = sums;
+            this.maxs = maxs;
+            this.counters = counters;
+        }
+
+        /**
+         * @param histogram QUEUE_WAIT〜LATENESS
+         * @return 記録された件数
+         */
+        long getCount(int histogram) {
+            long count = 0;
+            for (long c : buckets[histogram]) {
+                count += c;
+            }
+            return count;
+        }
+
+        /**
+         * @param histogram QUEUE_WAIT〜LATENESS
+         * @param percent 0〜100
+         * @return 指定した割合の値が含まれる区間の上限(マイクロ秒)。最後の区間であれば最大値
+         */
+        long getPercentileUs(int histogram, int percent) {
+            long count = getCount(histogram);
+            if (count == 0) {
+                return 0;
+            }
+
+            long target = Math.max(1, (count * percent + 99) / 100);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                cumulative += buckets[histogram][i];
+                if (cumulative >= target) {
+                    return i < BUCKET_BOUNDS_US.length
+                            ? Math.min(BUCKET_BOUNDS_US[i], maxs[histogram]) : maxs[histogram];
+                }
+            }
+
+            return maxs[histogram];
+        }
+
+        boolean isEmpty() {
+            for (int h = 0; h < HISTOGRAM_COUNT; h++) {
+                if (getCount(h) > 0) {
+                    return false;
+                }
+            }
+            for (long counter : counters) {
+                if (counter > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name);
+
+            for (int h = 0; h < HISTOGRAM_COUNT; h++) {
+                long count = getCount(h);
+                if (count == 0) {
+                    continue;
+                }
+
+                sb.append(' ').append(HISTOGRAM_NAMES[h])
+                        .append("(ms) n:").append(count)
+                        .append(" avg:").append(sums[h] / count / 1000)
+                        .append(" p50:").append(getPercentileUs(h, 50) / 1000)
+                        .append(" p95:").append(getPercentileUs(h, 95) / 1000)
+                        .append(" max:").append(maxs[h] / 1000);
+            }
+
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                sb.append(' ').append(COUNTER_NAMES[i]).append(':').append(counters[i]);
+            }
+
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,532 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.content.ComponentCallbacks2;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * 短い動画の圧縮済みサンプルのメモリキャッシュ<br>
+ * 先頭から末尾まで読み込んだ動画のサンプル(データ・タイムスタンプ・フラグ)をdirect ByteBufferに保持し、
+ * 次の周や次の再生枠ではファイルを読まずにメモリからデコーダに入力する。
+ * 全動画の合計バイト数に上限を設け、超えたら最後に使われたのが古い動画から追い出す<br>
+ * ByteBufferは2のべき乗のサイズごとにプールして使い回す。
+ * 追い出した動画を再生中のセッションがあれば、そのバッファは再生を終えてからプールに戻す
+ */
+class SampleCache {
+    private static final String TAG = "VideoGrid";
+    /** ByteBufferの最小サイズ */
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    /** 1つの動画に使うバイト数の上限の初期値。これより大きいファイルは保持しない */
+    private static final int DEFAULT_MAX_CLIP_BYTES = 8 * 1024 * 1024;
+    /** 1つの動画に使うバイト数の上限を、全体の上限のこの割合以下にする */
+    private static final int MAX_CLIP_DIVISOR = 4;
+
+    /** 合計バイト数の上限 0:保持しない */
+    private int mMaxBytes;
+    /** 1つの動画に使うバイト数の上限 */
+    private int mMaxClipBytes;
+    /** 保持している動画と読み込み中の動画のバッファの合計バイト数 */
+    private long mUsedBytes;
+    /** MediaStoreのIDと保持している動画。アクセス順 */
+    private final LinkedHashMap<Long, Clip> mClips = new LinkedHashMap<>(16, 0.75f, true);
+    /** 使われていないバッファ。サイズごとに保持する */
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> mFreeBuffers = new HashMap<>();
+    private long mFreeBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mStoreCount;
+    private int mAbandonCount;
+    private int mEvictCount;
+
+    private static SampleCache sMe;
+
+    private SampleCache() {
+    }
+
+    static synchronized SampleCache getInstance() {
+        if (sMe == null) {
+            sMe = new SampleCache();
+        }
+        return sMe;
+    }
+
+    /**
+     * @param maxBytes 合計バイト数の上限 0:保持しない
+     */
+    synchronized void setMaxBytes(int maxBytes) {
+        mMaxBytes = Math.max(0, maxBytes);
+        mMaxClipBytes = Math.min(DEFAULT_MAX_CLIP_BYTES, mMaxBytes / MAX_CLIP_DIVISOR);
+        makeRoom(0);
+    }
+
+    /**
+     * 保持している動画を取得する。使い終えたらrelease()を呼び出すこと
+     *
+     * @param id MediaStoreのID
+     * @param fileSize 動画のファイルサイズ
+     * @param dateModified 動画の更新日時
+     * @return 保持していない、または動画が変更されていればnull
+     */
+    synchronized Clip acquire(long id, long fileSize, long dateModified) {
+        Clip clip = mClips.get(id);
+
+        if (clip == null || clip.fileSize != fileSize || clip.dateModified != dateModified) {
+            if (mMaxBytes > 0 && fileSize <= mMaxClipBytes) {
+                mMissCount++;
+            }
+            return null;
+        }
+
+        clip.refCount++;
+        mHitCount++;
+
+        return clip;
+    }
+
+    /**
+     * acquire()またはRecorder.finish()で取得した動画を使い終えた
+     */
+    synchronized void release(Clip clip) {
+        clip.refCount--;
+
+        if (clip.refCount == 0 && clip.isEvicted) {
+            recycleBuffer(clip.data);
+            clip.data = null;
+        }
+    }
+
+    /**
+     * 先頭から読み込むサンプルの記録を開始する
+     *
+     * @param id MediaStoreのID
+     * @param fileSize 動画のファイルサイズ。トラックのサンプルの合計はこれを超えない
+     * @param dateModified 動画の更新日時
+     * @param format トラックのフォーマット
+     * @return 保持しない動画、または領域を確保できなければnull
+     */
+    synchronized Recorder startRecording(long id, long fileSize, long dateModified,
+                                         MediaFormat format) {
+        if (mMaxBytes == 0 || fileSize <= 0 || fileSize > mMaxClipBytes) {
+            return null;
+        }
+
+        Clip clip = mClips.get(id);
+        if (clip != null && clip.fileSize == fileSize && clip.dateModified == dateModified) {
+            return null;
+        }
+
+        int capacity = roundUpSize((int) fileSize);
+        if (!makeRoom(capacity)) {
+            return null;
+        }
+
+        mUsedBytes += capacity;
+        return new Recorder(id, fileSize, dateModified, format, obtainBuffer(capacity));
+    }
+
+    /**
+     * メモリ不足の度合いに応じて解放する
+     *
+     * @param level ComponentCallbacks2.onTrimMemory()のレベル
+     */
+    synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            clearFreeBuffers();
+        }
+    }
+
+    /**
+     * 保持している動画とバッファを全て解放する
+     */
+    synchronized void clear() {
+        for (Clip clip : mClips.values()) {
+            evict(clip);
+        }
+        mClips.clear();
+        clearFreeBuffers();
+    }
+
+    /**
+     * 集計をログに出力する
+     */
+    synchronized void dumpStats() {
+        Log.d(TAG, "sample cache hit:" + mHitCount + "/" + (mHitCount + mMissCount)
+                + " store:" + mStoreCount + " abandon:" + mAbandonCount + " evict:" + mEvictCount
+                + " clips:" + mClips.size()
+                + " size(KB):" + mUsedBytes / 1024 + "/" + mMaxBytes / 1024
+                + " free(KB):" + mFreeBytes / 1024);
+    }
+
+    /**
+     * 記録を終えた動画を登録する
+     */
+    private synchronized Clip store(Recorder recorder) {
+        ByteBuffer data = recorder.mData;
+        mUsedBytes -= data.capacity();
+
+        // 音声などで実際のサンプルがファイルより十分小さければ、小さいバッファに詰め直す
+        int capacity = roundUpSize(recorder.mLength);
+        if (capacity < data.capacity()) {
+            ByteBuffer shrunk = obtainBuffer(capacity);
+            ByteBuffer src = data.duplicate();
+            src.position(0);
+            src.limit(recorder.mLength);
+            shrunk.put(src);
+
+            recycleBuffer(data);
+            data = shrunk;
+        }
+
+        Clip clip = new Clip(recorder, data);
+        Clip old = mClips.put(clip.id, clip);
+        if (old != null) {
+            evict(old);
+        }
+        mUsedBytes += data.capacity();
+        clip.refCount = 1;
+        mStoreCount++;
+
+        makeRoom(0);
+
+        return clip;
+    }
+
+    /**
+     * 記録を中止し、確保した領域を解放する
+     */
+    private synchronized void abandon(Recorder recorder) {
+        mUsedBytes -= recorder.mData.capacity();
+        recycleBuffer(recorder.mData);
+        mAbandonCount++;
+    }
+
+    /**
+     * 指定バイト数を新たに使えるよう、使われていないバッファ、古い動画の順に解放する
+     *
+     * @return false:上限を超える
+     */
+    private boolean makeRoom(int bytes) {
+        if (mUsedBytes + mFreeBytes + bytes <= mMaxBytes) {
+            return true;
+        }
+
+        clearFreeBuffers();
+
+        Iterator<Clip> it = mClips.values().iterator();
+        while (mUsedBytes + bytes > mMaxBytes && it.hasNext()) {
+            Clip clip = it.next();
+            it.remove();
+            evict(clip);
+            mEvictCount++;
+        }
+
+        return mUsedBytes + bytes <= mMaxBytes;
+    }
+
+    private void evict(Clip clip) {
+        clip.isEvicted = true;
+        mUsedBytes -= clip.data.capacity();
+
+        if (clip.refCount == 0) {
+            recycleBuffer(clip.data);
+            clip.data = null;
+        }
+    }
+
+    private ByteBuffer obtainBuffer(int capacity) {
+        ArrayDeque<ByteBuffer> buffers = mFreeBuffers.get(capacity);
+        ByteBuffer buffer = buffers != null ? buffers.pollLast() : null;
+
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        mFreeBytes -= capacity;
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 使われなくなったバッファを、上限の範囲内でプールに戻す
+     */
+    private void recycleBuffer(ByteBuffer buffer) {
+        if (mUsedBytes + mFreeBytes + buffer.capacity() > mMaxBytes) {
+            return;
+        }
+
+        ArrayDeque<ByteBuffer> buffers = mFreeBuffers.get(buffer.capacity());
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            mFreeBuffers.put(buffer.capacity(), buffers);
+        }
+
+        buffers.addLast(buffer);
+        mFreeBytes += buffer.capacity();
+    }
+
+    private void clearFreeBuffers() {
+        mFreeBuffers.clear();
+        mFreeBytes = 0;
+    }
+
+    /**
+     * @return size以上でMIN_BUFFER_SIZE以上の2のべき乗
+     */
+    private static int roundUpSize(int size) {
+        int capacity = MIN_BUFFER_SIZE;
+        while (capacity < size && capacity > 0) {
+            capacity <<= 1;
+        }
+        return capacity > 0 ? capacity : size;
+    }
+
+    /**
+     * 1つの動画のサンプル<br>
+     * 作成後は変更しないので、複数のセッションから同時に読み込める
+     */
+    static class Clip {
+        final long id;
+        final long fileSize;
+        final long dateModified;
+        /** トラックのフォーマット。デコーダの準備に使う */
+        final MediaFormat format;
+        /** サンプルのデータ。追い出されて誰も使っていなければnull */
+        private ByteBuffer data;
+        /** 読み込み順の、各サンプルのdata内の位置・バイト数・タイムスタンプ・フラグ */
+        private final int[] offsets;
+        private final int[] sizes;
+        private final long[] timesUs;
+        private final int[] flags;
+        /** キーフレームのサンプル番号 */
+        private final int[] syncSamples;
+        private final int count;
+        private int refCount;
+        private boolean isEvicted;
+
+        private Clip(Recorder recorder, ByteBuffer data) {
+            this.id = recorder.mId;
+            this.fileSize = recorder.mFileSize;
+            this.dateModified = recorder.mDateModified;
+            this.format = recorder.mFormat;
+            this.data = data;
+            this.count = recorder.mCount;
+            this.offsets = Arrays.copyOf(recorder.mOffsets, count);
+            this.sizes = Arrays.copyOf(recorder.mSizes, count);
+            this.timesUs = Arrays.copyOf(recorder.mTimesUs, count);
+            this.flags = Arrays.copyOf(recorder.mFlags, count);
+            this.syncSamples = Arrays.copyOf(recorder.mSyncSamples, recorder.mSyncCount);
+        }
+
+        /**
+         * @return このClipから読み込むSampleSource。release()で使い終えたことをキャッシュに通知する
+         */
+        SampleSource newSource() {
+            return new CachedSource(this);
+        }
+    }
+
+    /**
+     * 先頭から読み込んだサンプルを記録する<br>
+     * 1つのセッションからのみ使う
+     */
+    class Recorder {
+        private final long mId;
+        private final long mFileSize;
+        private final long mDateModified;
+        private final MediaFormat mFormat;
+        private final ByteBuffer mData;
+        private int mLength;
+        private int[] mOffsets = new int[256];
+        private int[] mSizes = new int[256];
+        private long[] mTimesUs = new long[256];
+        private int[] mFlags = new int[256];
+        private int mCount;
+        private int[] mSyncSamples = new int[16];
+        private int mSyncCount;
+
+        private Recorder(long id, long fileSize, long dateModified, MediaFormat format,
+                         ByteBuffer data) {
+            this.mId = id;
+            this.mFileSize = fileSize;
+            this.mDateModified = dateModified;
+            this.mFormat = format;
+            this.mData = data;
+        }
+
+        /**
+         * 読み込んだサンプルを記録する
+         *
+         * @param buffer サンプルを読み込んだバッファ。位置は変更しない
+         * @param length サンプルのバイト数。bufferの先頭から読む
+         * @param timeUs タイムスタンプ(マイクロ秒)
+         * @param flags MediaExtractor.SAMPLE_FLAG_*
+         * @return false:確保した領域に収まらない。記録を中止すること
+         */
+        boolean append(ByteBuffer buffer, int length, long timeUs, int flags) {
+            if (mLength + length > mData.capacity()) {
+                return false;
+            }
+
+            if (mCount == mOffsets.length) {
+                int newLength = mCount * 2;
+                mOffsets = Arrays.copyOf(mOffsets, newLength);
+                mSizes = Arrays.copyOf(mSizes, newLength);
+                mTimesUs = Arrays.copyOf(mTimesUs, newLength);
+                mFlags = Arrays.copyOf(mFlags, newLength);
+            }
+
+            if ((flags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                if (mSyncCount == mSyncSamples.length) {
+                    mSyncSamples = Arrays.copyOf(mSyncSamples, mSyncCount * 2);
+                }
+                mSyncSamples[mSyncCount++] = mCount;
+            }
+
+            ByteBuffer src = buffer.duplicate();
+            src.position(0);
+            src.limit(length);
+            mData.position(mLength);
+            mData.put(src);
+
+            mOffsets[mCount] = mLength;
+            mSizes[mCount] = length;
+            mTimesUs[mCount] = timeUs;
+            mFlags[mCount] = flags;
+            mCount++;
+            mLength += length;
+
+            return true;
+        }
+
+        /**
+         * 末尾まで記録したので、キャッシュに登録する
+         *
+         * @return 登録した動画。使い終えたらSampleCache.release()を呼び出すこと
+         */
+        Clip finish() {
+            if (mCount == 0 || mSyncCount == 0) {
+                abandon();
+                return null;
+            }
+
+            return store(this);
+        }
+
+        /**
+         * 記録を中止する
+         */
+        void abandon() {
+            SampleCache.this.abandon(this);
+        }
+    }
+
+    /**
+     * メモリ上のサンプルを読み込むSampleSource
+     */
+    private static class CachedSource implements SampleSource {
+        private final Clip mClip;
+        private final ByteBuffer mData;
+        /** 現在のサンプル番号 count:終端 */
+        private int mIndex;
+        private boolean mIsReleased;
+
+        CachedSource(Clip clip) {
+            this.mClip = clip;
+            this.mData = clip.data.duplicate();
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            if (mIndex >= mClip.count) {
+                return -1;
+            }
+
+            int position = mClip.offsets[mIndex];
+            int size = mClip.sizes[mIndex];
+            mData.limit(position + size);
+            mData.position(position);
+
+            buffer.clear();
+            buffer.position(offset);
+            buffer.put(mData);
+            buffer.limit(offset + size);
+            buffer.position(offset);
+
+            return size;
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mIndex < mClip.count ? mClip.timesUs[mIndex] : -1;
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return mIndex < mClip.count ? mClip.flags[mIndex] : -1;
+        }
+
+        @Override
+        public boolean advance() {
+            if (mIndex < mClip.count) {
+                mIndex++;
+            }
+            return mIndex < mClip.count;
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+            int[] syncs = mClip.syncSamples;
+            long[] times = mClip.timesUs;
+
+            // timeUs以下で最後のキーフレーム
+            int prev = -1;
+            int low = 0;
+            int high = syncs.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (times[syncs[mid]] <= timeUs) {
+                    prev = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            int sync;
+            if (mode == MediaExtractor.SEEK_TO_NEXT_SYNC) {
+                if (prev >= 0 && times[syncs[prev]] == timeUs) {
+                    sync = prev;
+                } else {
+                    sync = prev + 1;
+                }
+            } else if (mode == MediaExtractor.SEEK_TO_CLOSEST_SYNC && prev + 1 < syncs.length
+                    && (prev < 0
+                    || times[syncs[prev + 1]] - timeUs < timeUs - times[syncs[prev]])) {
+                sync = prev + 1;
+            } else {
+                sync = Math.max(prev, 0);
+            }
+
+            mIndex = sync < syncs.length ? syncs[sync] : mClip.count;
+        }
+
+        @Override
+        public void release() {
+            if (!mIsReleased) {
+                mIsReleased = true;
+                getInstance().release(mClip);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.ficklerobot.gridvideoviewer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * デコーダに入力する圧縮済みサンプルの読み込み元<br>
+ * MediaExtractorと同じ呼び出し方で、ファイルとメモリ上のキャッシュのどちらからでも読み込めるようにする。
+ * シークの種別・サンプルのフラグはMediaExtractorの定数と同じ値とし、Androidに依存しない呼び出し元から使えるようここにも置く
+ */
+interface SampleSource {
+    /** MediaExtractor.SAMPLE_FLAG_SYNCと同じ値 */
+    int SAMPLE_FLAG_SYNC = 1;
+    /** MediaExtractor.SEEK_TO_PREVIOUS_SYNCと同じ値 */
+    int SEEK_TO_PREVIOUS_SYNC = 0;
+    /** MediaExtractor.SEEK_TO_NEXT_SYNCと同じ値 */
+    int SEEK_TO_NEXT_SYNC = 1;
+    /** MediaExtractor.SEEK_TO_CLOSEST_SYNCと同じ値 */
+    int SEEK_TO_CLOSEST_SYNC = 2;
+
+    /**
+     * 現在のサンプルをbufferのoffsetの位置から書き込む
+     *
+     * @return サンプルのバイト数 負数:終端
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    /**
+     * @return 現在のサンプルのタイムスタンプ(マイクロ秒) 負数:終端
+     */
+    long getSampleTime();
+
+    /**
+     * @return 現在のサンプルのフラグ(SAMPLE_FLAG_*)
+     */
+    int getSampleFlags();
+
+    /**
+     * 次のサンプルに進む
+     *
+     * @return false:終端に達した
+     */
+    boolean advance();
+
+    /**
+     * @param timeUs 位置(マイクロ秒)
+     * @param mode SEEK_TO_PREVIOUS_SYNC|SEEK_TO_NEXT_SYNC|SEEK_TO_CLOSEST_SYNC
+     */
+    void seekTo(long timeUs, int mode);
+
+    /**
+     * 読み込み元を解放する
+     */
+    void release();
+}
@@ -0,0 +1,125 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+
+/**
+ * スプライトシートのコマを順に表示するDrawable<br>
+ * シートは正方形のコマを横一列に並べたもので、コマ数は幅/高さから求める。
+ * 全てのSpriteDrawableは1つのタイマーで同時にコマを進めるので、表示数が増えてもタイマーは増えない<br>
+ * UIスレッドから使用すること
+ */
+class SpriteDrawable extends Drawable {
+    /** コマを進める間隔(ミリ秒) */
+    private static final long FRAME_INTERVAL_MS = 600;
+
+    /** コマを進めるDrawable。ImageViewから外されたものは次のコマ送りで除く */
+    private static final ArrayList<SpriteDrawable> sRunning = new ArrayList<>();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable sTicker = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = sRunning.size() - 1; i >= 0; i--) {
+                SpriteDrawable drawable = sRunning.get(i);
+
+                if (drawable.getCallback() == null) {
+                    drawable.mIsRunning = false;
+                    sRunning.remove(i);
+                } else {
+                    drawable.nextFrame();
+                }
+            }
+
+            if (!sRunning.isEmpty()) {
+                sHandler.postDelayed(this, FRAME_INTERVAL_MS);
+            }
+        }
+    };
+
+    private final Bitmap mSheet;
+    private final int mFrameSize;
+    private final int mFrameCount;
+    private int mFrame;
+    private boolean mIsRunning;
+    private final Rect mSrcRect = new Rect();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * @param sheet スプライトシート
+     * @param firstFrame 最初に表示するコマ。セルごとにずらして、一斉に切り替わらないようにする
+     */
+    SpriteDrawable(Bitmap sheet, int firstFrame) {
+        this.mSheet = sheet;
+        this.mFrameSize = sheet.getHeight();
+        this.mFrameCount = Math.max(1, sheet.getWidth() / Math.max(1, mFrameSize));
+        this.mFrame = Math.abs(firstFrame) % mFrameCount;
+    }
+
+    /**
+     * コマ送りを開始する。ImageViewにセットした後に呼び出すこと
+     */
+    void start() {
+        if (mIsRunning || mFrameCount <= 1) {
+            return;
+        }
+
+        mIsRunning = true;
+        sRunning.add(this);
+
+        if (sRunning.size() == 1) {
+            sHandler.postDelayed(sTicker, FRAME_INTERVAL_MS);
+        }
+    }
+
+    private void nextFrame() {
+        mFrame = (mFrame + 1) % mFrameCount;
+        invalidateSelf();
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (mSheet.isRecycled()) {
+            return;
+        }
+
+        int left = mFrame * mFrameSize;
+        mSrcRect.set(left, 0, left + mFrameSize, mFrameSize);
+        canvas.drawBitmap(mSheet, mSrcRect, getBounds(), mPaint);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mFrameSize;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mFrameSize;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.OPAQUE;
+    }
+}
@@ -0,0 +1,167 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.MediaMetadataRetriever;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * プレビュー用スプライトシートのメモリキャッシュ<br>
+ * 動画の再生時間を等分した位置のキーフレームを、正方形に切り抜いて横一列に並べた1枚のBitmapにする。
+ * 作成したシートはスプライトシート用のパックファイルに格納し、次回からはそこから読み込む
+ */
+class SpriteSheetCache extends BitmapLruCache<DecoderSurface.VideoData> {
+    private static final String TAG = "VideoGrid";
+    /** 1枚のシートのコマ数 */
+    static final int FRAME_COUNT = 8;
+    /** コマのサイズの上限。列数が少ない場合も、シート1枚がこれ以上大きくならないようにする */
+    private static final int MAX_FRAME_SIZE = 256;
+    /** パックファイルに格納する際のJPEGの品質 */
+    private static final int PACK_QUALITY = 80;
+
+    /** コマのサイズ */
+    private final int mFrameSize;
+    /** 保持するBitmapの形式 */
+    private final Bitmap.Config mConfig;
+
+    /**
+     * @param cacheSize キャッシュのバイト数
+     * @param cellSize セルのサイズ
+     * @param config 保持するBitmapの形式 ARGB_8888|RGB_565
+     */
+    SpriteSheetCache(int cacheSize, int cellSize, Bitmap.Config config) {
+        super(cacheSize);
+        this.mFrameSize = Math.min(cellSize, MAX_FRAME_SIZE);
+        this.mConfig = config;
+    }
+
+    @Override
+    protected Bitmap createBitmap(DecoderSurface.VideoData data) {
+        ThumbnailPackCache pack = ThumbnailPackCache.getSpriteInstance();
+
+        byte[] packed = pack.read(data.thumbId, data.dateModified);
+        if (packed != null) {
+            Bitmap sheet = decodePacked(packed);
+            if (sheet != null) {
+                return sheet;
+            }
+        }
+
+        long startTime = System.currentTimeMillis(); // 計測ログ用
+        Bitmap sheet = makeSheet(data);
+
+        if (sheet != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            if (sheet.compress(Bitmap.CompressFormat.JPEG, PACK_QUALITY, out)) {
+                pack.write(data.thumbId, data.dateModified, out.toByteArray());
+            }
+
+            Log.d(TAG, "makeSheet id:" + data.thumbId + " size:" + sheet.getWidth()
+                    + "x" + sheet.getHeight() + " cost:" + (System.currentTimeMillis() - startTime));
+        }
+
+        return sheet;
+    }
+
+    /**
+     * パックファイルのシートを展開する。コマがmFrameSizeの2倍以上あれば間引いて展開する
+     *
+     * @return 格納されたシートのコマが小さい、または展開できなければnull
+     */
+    private Bitmap decodePacked(byte[] packed) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(packed, 0, packed.length, options);
+
+        if (options.outHeight < mFrameSize) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outHeight / (options.inSampleSize * 2) >= mFrameSize) {
+            options.inSampleSize *= 2;
+        }
+        options.inPreferredConfig = mConfig;
+
+        return BitmapFactory.decodeByteArray(packed, 0, packed.length, options);
+    }
+
+    /**
+     * 動画からシートを作成する
+     *
+     * @return フレームを1枚も取得できなければnull
+     */
+    private Bitmap makeSheet(DecoderSurface.VideoData data) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        Bitmap sheet = null;
+
+        try {
+            retriever.setDataSource(data.videoUri.getPath());
+
+            long durationUs = data.metadata != null ? data.metadata.durationUs : 0;
+            if (durationUs <= 0) {
+                String durationVal = retriever.extractMetadata(
+                        MediaMetadataRetriever.METADATA_KEY_DURATION);
+                if (durationVal != null && TextUtils.isDigitsOnly(durationVal)) {
+                    durationUs = Long.valueOf(durationVal) * 1000;
+                }
+            }
+
+            Canvas canvas = null;
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            Rect src = new Rect();
+            Rect dst = new Rect();
+            Bitmap lastFrame = null;
+
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                // 各区間の中央に最も近いキーフレーム。キーフレームだけなので展開が軽い
+                long timeUs = durationUs * (2 * i + 1) / (2 * FRAME_COUNT);
+                Bitmap frame = retriever.getFrameAtTime(timeUs,
+                        MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+
+                if (frame == null) {
+                    frame = lastFrame; // 取得できなければ前のコマを繰り返す
+                } else if (lastFrame != null) {
+                    lastFrame.recycle();
+                }
+
+                if (frame == null) {
+                    continue;
+                }
+
+                if (sheet == null) {
+                    sheet = Bitmap.createBitmap(mFrameSize * FRAME_COUNT, mFrameSize, mConfig);
+                    canvas = new Canvas(sheet);
+                }
+
+                // CENTER_CROPと同じく、中央の正方形を切り抜く
+                int side = Math.min(frame.getWidth(), frame.getHeight());
+                int left = (frame.getWidth() - side) / 2;
+                int top = (frame.getHeight() - side) / 2;
+                src.set(left, top, left + side, top + side);
+                dst.set(i * mFrameSize, 0, (i + 1) * mFrameSize, mFrameSize);
+                canvas.drawBitmap(frame, src, dst, paint);
+
+                lastFrame = frame;
+            }
+
+            if (lastFrame != null) {
+                lastFrame.recycle();
+            }
+
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            retriever.release();
+        }
+
+        return sheet;
+    }
+}
@@ -0,0 +1,394 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * サムネイルを非同期で読み込み、ImageViewに表示するクラス<br>
+ * BitmapLruCacheに無いサムネイルは固定数のスレッドで作成する。同じキーへの要求は1回の作成にまとめ、
+ * 別のキーを要求し直したImageViewへの要求は取り消す。作成結果は、ImageViewがまだそのキーを要求している場合のみ表示する<br>
+ * 表示中のImageViewへの要求を要求順に作成し、それが無い時だけ先読みの要求を作成する<br>
+ * 表示したBitmapはBitmapLruCacheに表示数を数えさせ、キャッシュから追い出されても表示中は再利用・解放させない<br>
+ * load()・prefetch()・cancel()・cancelAll()はUIスレッドから呼び出すこと
+ *
+ * @param <T> サムネイルのキー
+ */
+class ThumbnailLoader<T> {
+    private final BitmapLruCache<T> mCache;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    /** 作成中のキーと要求。UIスレッドからのみ操作する */
+    private final HashMap<T, Request> mRequests = new HashMap<>();
+    /** ImageViewと、そのImageViewが表示を待っているキー。UIスレッドからのみ操作する */
+    private final HashMap<ImageView, T> mTargets = new HashMap<>();
+    /** ImageViewと、表示数を数えさせたBitmap。UIスレッドからのみ操作する */
+    private final HashMap<ImageView, Bitmap> mBoundBitmaps = new HashMap<>();
+    /** ImageViewと、表示しているBitmapのキー。UIスレッドからのみ操作する */
+    private final HashMap<ImageView, T> mBoundKeys = new HashMap<>();
+    /** 要求の通し番号。同じ優先度の中では番号順に作成する */
+    private long mSequence;
+    /** 表示待ちの要求が無くなった際の通知先 */
+    private Runnable mOnIdleListener;
+
+    /**
+     * @param cache サムネイルのキャッシュ
+     * @param threadCount サムネイルを作成するスレッド数
+     */
+    ThumbnailLoader(BitmapLruCache<T> cache, int threadCount) {
+        this.mCache = cache;
+        this.mExecutor = new ThreadPoolExecutor(threadCount, threadCount,
+                0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "ThumbnailLoader_" + mCount++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * サムネイルを表示する<br>
+     * キャッシュにあれば直ちに表示し、無ければ作成を要求してplaceholderを表示する
+     *
+     * @param key サムネイルのキー
+     * @param view 表示先
+     * @param placeholder 作成中に表示する画像 nullの場合は変更しない
+     * @return true:キャッシュにあったので表示した
+     */
+    boolean load(T key, ImageView view, Drawable placeholder) {
+        cancelRequest(view);
+
+        Bitmap bitmap = mCache.attachCachedBitmap(key);
+        if (bitmap != null) {
+            bind(view, key, bitmap);
+            return true;
+        }
+
+        if (placeholder != null) {
+            view.setImageDrawable(placeholder);
+            unbind(view);
+        }
+
+        mTargets.put(view, key);
+
+        Request request = mRequests.get(key);
+        if (request == null) {
+            request = new Request(key, false);
+            mRequests.put(key, request);
+            mExecutor.execute(request.task);
+
+        } else if (request.isPrefetch) {
+            // 先読み待ちの要求は、表示の要求として並べ直す
+            boolean isQueued = mExecutor.remove(request.task);
+            request.isPrefetch = false;
+            request.sequence = mSequence++;
+            if (isQueued) {
+                mExecutor.execute(request.task);
+            }
+        }
+        request.views.add(view);
+
+        return false;
+    }
+
+    /**
+     * 先読みするキーを指定する<br>
+     * 指定されなかった先読みの要求は取り消し、キャッシュに無いものを指定順に要求する
+     *
+     * @param keys 先読みするキー。先に作成するものから並べる
+     */
+    void prefetch(List<T> keys) {
+        HashSet<T> keySet = new HashSet<>(keys);
+
+        Iterator<Request> it = mRequests.values().iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+
+            if (request.isPrefetch && !keySet.contains(request.key)) {
+                it.remove();
+                request.task.cancel(false);
+                mExecutor.remove(request.task);
+            }
+        }
+
+        for (T key : keys) {
+            if (mRequests.containsKey(key) || mCache.getCachedBitmap(key) != null) {
+                continue;
+            }
+
+            Request request = new Request(key, true);
+            mRequests.put(key, request);
+            mExecutor.execute(request.task);
+        }
+    }
+
+    /**
+     * @param view 表示先
+     * @param key サムネイルのキー
+     * @return true:このローダーがkeyのBitmapをviewに表示している
+     */
+    boolean isBound(ImageView view, T key) {
+        return key.equals(mBoundKeys.get(view));
+    }
+
+    /**
+     * @param listener 表示待ちの要求が全て完了した際にUIスレッドで呼び出す
+     */
+    void setOnIdleListener(Runnable listener) {
+        this.mOnIdleListener = listener;
+    }
+
+    /**
+     * ImageViewへの表示要求を取り消し、表示していたBitmapの表示数を減らす<br>
+     * そのキーを待っているImageViewが他に無ければ、作成も取り消す。
+     * 表示していたBitmapは再利用される場合があるので、呼び出す前に別の画像に差し替えること
+     *
+     * @param view 表示先
+     */
+    void cancel(ImageView view) {
+        cancelRequest(view);
+        unbind(view);
+    }
+
+    /**
+     * ImageViewへの表示要求を取り消す<br>
+     * そのキーを待っているImageViewが他に無ければ、作成も取り消す
+     */
+    private void cancelRequest(ImageView view) {
+        T key = mTargets.remove(view);
+        if (key == null) {
+            return;
+        }
+
+        Request request = mRequests.get(key);
+        if (request != null) {
+            request.views.remove(view);
+
+            if (request.views.isEmpty()) {
+                mRequests.remove(key);
+                request.task.cancel(false);
+                mExecutor.remove(request.task);
+            }
+        }
+    }
+
+    /**
+     * 全ての要求を取り消す
+     */
+    void cancelAll() {
+        for (Request request : mRequests.values()) {
+            request.task.cancel(false);
+            mExecutor.remove(request.task);
+        }
+
+        mRequests.clear();
+        mTargets.clear();
+    }
+
+    /**
+     * 全ての要求を取り消し、スレッドを終了する<br>
+     * ImageViewはもう表示されないものとして、全てのBitmapの表示数を減らす
+     */
+    void shutdown() {
+        cancelAll();
+        mExecutor.shutdownNow();
+
+        for (Bitmap bitmap : mBoundBitmaps.values()) {
+            mCache.detachBitmap(bitmap);
+        }
+        mBoundBitmaps.clear();
+        mBoundKeys.clear();
+    }
+
+    /**
+     * 作成結果をUIスレッドで表示先に渡す
+     */
+    private void deliver(Request request, Bitmap bitmap) {
+        if (mRequests.get(request.key) != request) {
+            return; // 取り消された
+        }
+        mRequests.remove(request.key);
+
+        ArrayList<ImageView> evictedViews = null;
+
+        for (ImageView view : request.views) {
+            if (request.key.equals(mTargets.get(view))) {
+                mTargets.remove(view);
+
+                if (bitmap == null) {
+                    continue;
+                }
+
+                // 作成後に追い出されたものはプールに格納されている場合があるので、キャッシュから取り直す
+                Bitmap cached = mCache.attachCachedBitmap(request.key);
+                if (cached != null) {
+                    bind(view, request.key, cached);
+                } else {
+                    if (evictedViews == null) {
+                        evictedViews = new ArrayList<>(1);
+                    }
+                    evictedViews.add(view);
+                }
+            }
+        }
+
+        if (evictedViews != null) {
+            // 表示する前に追い出されたので作成し直す
+            for (ImageView view : evictedViews) {
+                load(request.key, view, null);
+            }
+        }
+
+        if (!request.isPrefetch) {
+            notifyIfIdle();
+        }
+    }
+
+    /**
+     * Bitmapを表示し、それまで表示していたBitmapの表示数を減らす
+     *
+     * @param bitmap BitmapLruCache#attachCachedBitmap()で表示数を増やしたBitmap
+     */
+    private void bind(ImageView view, T key, Bitmap bitmap) {
+        setBitmap(view, key, bitmap);
+
+        mBoundKeys.put(view, key);
+        Bitmap old = mBoundBitmaps.put(view, bitmap);
+        if (old != null) {
+            mCache.detachBitmap(old);
+        }
+    }
+
+    /**
+     * 表示していたBitmapの表示数を減らす。ImageViewの画像は差し替え済みであること
+     */
+    private void unbind(ImageView view) {
+        mBoundKeys.remove(view);
+        Bitmap old = mBoundBitmaps.remove(view);
+        if (old != null) {
+            mCache.detachBitmap(old);
+        }
+    }
+
+    /**
+     * 読み込んだBitmapを表示する。表示方法を変える場合はオーバーライドする
+     *
+     * @param view 表示先
+     * @param key サムネイルのキー
+     * @param bitmap 読み込んだBitmap
+     */
+    protected void setBitmap(ImageView view, T key, Bitmap bitmap) {
+        view.setImageBitmap(bitmap);
+    }
+
+    /**
+     * 表示待ちの要求が無ければ通知する
+     */
+    private void notifyIfIdle() {
+        if (mOnIdleListener == null || !mTargets.isEmpty()) {
+            return;
+        }
+
+        mOnIdleListener.run();
+    }
+
+    /**
+     * 1つのキーに対するサムネイルの作成要求
+     */
+    private class Request implements Callable<Bitmap> {
+        final T key;
+        /** このキーの表示を待っているImageView */
+        final ArrayList<ImageView> views = new ArrayList<>(1);
+        final RequestTask task;
+        /** true:先読みの要求。表示の要求より後に作成する */
+        boolean isPrefetch;
+        long sequence;
+
+        Request(T key, boolean isPrefetch) {
+            this.key = key;
+            this.isPrefetch = isPrefetch;
+            this.sequence = mSequence++;
+            this.task = new RequestTask(this);
+        }
+
+        @Override
+        public Bitmap call() {
+            // 作成してキャッシュに格納する
+            return mCache.getBitmapFromMemCache(key);
+        }
+    }
+
+    /**
+     * 作成キューに並べるタスク。表示の要求、先読みの要求の順に、それぞれ要求順に取り出される
+     */
+    private class RequestTask extends FutureTask<Bitmap> implements Comparable<RequestTask> {
+        private final Request mRequest;
+
+        RequestTask(Request request) {
+            super(request);
+            this.mRequest = request;
+        }
+
+        @Override
+        public int compareTo(RequestTask another) {
+            // 優先度はUIスレッドから、キューから外した状態でのみ変更する
+            Request a = mRequest;
+            Request b = another.mRequest;
+
+            if (a.isPrefetch != b.isPrefetch) {
+                return a.isPrefetch ? 1 : -1;
+            }
+
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+
+            Bitmap bitmap = null;
+            try {
+                bitmap = get();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            final Bitmap result = bitmap;
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(mRequest, result);
+                }
+            });
+        }
+    }
+}
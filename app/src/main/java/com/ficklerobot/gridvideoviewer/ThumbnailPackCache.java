@@ -0,0 +1,481 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * サムネイルのディスクキャッシュ<br>
+ * 圧縮済みのサムネイルを1つのパックファイルに追記し、MediaStoreのIDと更新日時をキーにした索引で位置を引く。
+ * 読み込みはパックファイルをメモリマップしたバッファから行う。
+ * 上書きや削除で無効になった領域が増えたら、有効な領域だけを新しいパックファイルに詰め直す<br>
+ * 画像の圧縮・展開は呼び出し元で行うので、Androidに依存せずに動作を確認できる<br>
+ * サムネイル用とスプライトシート用の2つのパックファイルを同じディレクトリに置く
+ */
+class ThumbnailPackCache {
+    private static final String TAG = "VideoGrid";
+    private static final int INDEX_MAGIC = 0x54504b49; // "TPKI"
+    private static final int INDEX_VERSION = 1;
+    private static final String PACK_FILE_SUFFIX = ".pack";
+    private static final String INDEX_FILE_SUFFIX = ".idx";
+    /** 無効な領域がこのバイト数を超え、かつ全体のCOMPACT_DEAD_RATIO以上になったら詰め直す */
+    private static final long COMPACT_MIN_DEAD_BYTES = 4 * 1024 * 1024;
+    private static final float COMPACT_DEAD_RATIO = 0.5f;
+
+    /** パックファイルと索引ファイルの名前(拡張子を除く) */
+    private final String mName;
+    private File mDirectory;
+    private RandomAccessFile mPackFile;
+    private FileChannel mChannel;
+    /** パックファイルのマップ。追記された範囲を読む際にマップし直す */
+    private MappedByteBuffer mMap;
+    /** パックファイルの長さ */
+    private long mPackLength;
+    /** 有効なサムネイルの合計バイト数 */
+    private long mLiveBytes;
+    /** MediaStoreのIDと格納位置 */
+    private final HashMap<Long, Entry> mEntries = new HashMap<>();
+    private boolean mIsIndexDirty;
+    /** true:prepareOpen()の後、まだopen()を終えていない。読み書きは開き終えるまで待つ */
+    private boolean mIsOpening;
+
+    private static ThumbnailPackCache sMe;
+    private static ThumbnailPackCache sSprite;
+
+    private ThumbnailPackCache(String name) {
+        this.mName = name;
+    }
+
+    /**
+     * @return サムネイルのパックファイル
+     */
+    static synchronized ThumbnailPackCache getInstance() {
+        if (sMe == null) {
+            sMe = new ThumbnailPackCache("thumbnails");
+        }
+        return sMe;
+    }
+
+    /**
+     * @return プレビュー用スプライトシートのパックファイル
+     */
+    static synchronized ThumbnailPackCache getSpriteInstance() {
+        if (sSprite == null) {
+            sSprite = new ThumbnailPackCache("sprites");
+        }
+        return sSprite;
+    }
+
+    /**
+     * 別のスレッドでopen()することを予告する<br>
+     * open()を終えるまで、read()・write()・contains()は待機する。
+     * 開く前に読み込んで、格納済みのサムネイルを作成し直さないようにする
+     */
+    synchronized void prepareOpen() {
+        mIsOpening = true;
+    }
+
+    /**
+     * パックファイルと索引を開く。同じディレクトリを開いていれば何もしない<br>
+     * 開けなかった場合も、prepareOpen()で待機している読み書きは再開する
+     *
+     * @param directory 保存先ディレクトリ
+     */
+    synchronized void open(File directory) {
+        try {
+            openFiles(directory);
+        } finally {
+            mIsOpening = false;
+            notifyAll();
+        }
+    }
+
+    private void openFiles(File directory) {
+        if (directory.equals(mDirectory) && mChannel != null) {
+            return;
+        }
+
+        close();
+        mDirectory = directory;
+
+        try {
+            mPackFile = new RandomAccessFile(new File(directory, mName + PACK_FILE_SUFFIX), "rw");
+            mChannel = mPackFile.getChannel();
+            mPackLength = mChannel.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            return;
+        }
+
+        readIndex(new File(directory, mName + INDEX_FILE_SUFFIX));
+    }
+
+    /**
+     * 索引を書き込み、パックファイルを閉じる
+     */
+    synchronized void close() {
+        flush();
+
+        closeQuietly(mPackFile);
+        mPackFile = null;
+        mChannel = null;
+        mMap = null;
+        mPackLength = 0;
+        mLiveBytes = 0;
+        mEntries.clear();
+    }
+
+    /**
+     * @return true:指定の動画のサムネイルが格納されている
+     */
+    synchronized boolean contains(long id, long dateModified) {
+        awaitOpened();
+
+        Entry entry = mEntries.get(id);
+        return entry != null && entry.dateModified == dateModified;
+    }
+
+    /**
+     * サムネイルを読み込む
+     *
+     * @param id MediaStoreのID
+     * @param dateModified 動画の更新日時
+     * @return 格納されていない、または動画が更新されていればnull
+     */
+    synchronized byte[] read(long id, long dateModified) {
+        awaitOpened();
+
+        Entry entry = mEntries.get(id);
+
+        if (entry == null || entry.dateModified != dateModified || mChannel == null) {
+            return null;
+        }
+
+        try {
+            if (mMap == null || entry.offset + entry.length > mMap.capacity()) {
+                mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mPackLength);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        byte[] data = new byte[entry.length];
+        ByteBuffer buffer = mMap.duplicate();
+        buffer.position((int) entry.offset);
+        buffer.get(data);
+
+        return data;
+    }
+
+    /**
+     * サムネイルをパックファイルの末尾に追記する。同じIDのものがあれば無効にする
+     *
+     * @param id MediaStoreのID
+     * @param dateModified 動画の更新日時
+     * @param data 圧縮済みのサムネイル
+     */
+    synchronized void write(long id, long dateModified, byte[] data) {
+        awaitOpened();
+
+        if (mChannel == null) {
+            return;
+        }
+
+        try {
+            long offset = mPackLength;
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer, offset + buffer.position());
+            }
+            mPackLength += data.length;
+
+            Entry old = mEntries.put(id, new Entry(dateModified, offset, data.length));
+            if (old != null) {
+                mLiveBytes -= old.length;
+            }
+            mLiveBytes += data.length;
+            mIsIndexDirty = true;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 指定したID以外のサムネイルを無効にする
+     *
+     * @param ids 残すID
+     */
+    synchronized void retain(long[] ids) {
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+
+        Iterator<Map.Entry<Long, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Entry> e = it.next();
+
+            if (Arrays.binarySearch(sorted, e.getKey()) < 0) {
+                mLiveBytes -= e.getValue().length;
+                it.remove();
+                mIsIndexDirty = true;
+            }
+        }
+    }
+
+    /**
+     * 無効な領域が多ければ、有効なサムネイルだけを新しいパックファイルに詰め直す
+     */
+    synchronized void compactIfNeeded() {
+        long deadBytes = mPackLength - mLiveBytes;
+
+        if (mChannel == null || deadBytes < COMPACT_MIN_DEAD_BYTES
+                || deadBytes < mPackLength * COMPACT_DEAD_RATIO) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis(); // 計測ログ用
+        File packFile = new File(mDirectory, mName + PACK_FILE_SUFFIX);
+        File tmpFile = new File(mDirectory, mName + PACK_FILE_SUFFIX + ".tmp");
+
+        // 元のファイルでの並び順のまま書き出す
+        ArrayList<Entry> entries = new ArrayList<>(mEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+            }
+        });
+
+        long[] newOffsets = new long[entries.size()];
+        FileOutputStream out = null;
+        boolean isOk = false;
+
+        try {
+            out = new FileOutputStream(tmpFile);
+            FileChannel dst = out.getChannel();
+            long position = 0;
+
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                long copied = 0;
+                while (copied < entry.length) {
+                    copied += mChannel.transferTo(entry.offset + copied,
+                            entry.length - copied, dst);
+                }
+
+                newOffsets[i] = position;
+                position += entry.length;
+            }
+
+            out.close();
+            out = null;
+            isOk = true;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+
+        if (!isOk) {
+            tmpFile.delete();
+            return;
+        }
+
+        closeQuietly(mPackFile);
+        mMap = null;
+
+        if (!tmpFile.renameTo(packFile)) {
+            tmpFile.delete();
+            mEntries.clear();
+            mLiveBytes = 0;
+        } else {
+            for (int i = 0; i < entries.size(); i++) {
+                entries.get(i).offset = newOffsets[i];
+            }
+        }
+
+        try {
+            mPackFile = new RandomAccessFile(packFile, "rw");
+            mChannel = mPackFile.getChannel();
+            mPackLength = mChannel.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            mPackFile = null;
+            mChannel = null;
+            mPackLength = 0;
+            mEntries.clear();
+            mLiveBytes = 0;
+        }
+
+        mIsIndexDirty = true;
+        flush();
+
+        Log.d(TAG, "compact " + mName + " pack dead(bytes):" + deadBytes
+                + " size(bytes):" + mPackLength + " cost:" + (System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * 変更があれば索引を書き込む
+     */
+    synchronized void flush() {
+        if (!mIsIndexDirty || mDirectory == null) {
+            return;
+        }
+
+        File indexFile = new File(mDirectory, mName + INDEX_FILE_SUFFIX);
+        File tmpFile = new File(mDirectory, mName + INDEX_FILE_SUFFIX + ".tmp");
+        DataOutputStream out = null;
+        boolean isOk = false;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(mPackLength);
+            out.writeInt(mEntries.size());
+
+            for (Map.Entry<Long, Entry> e : mEntries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeLong(e.getKey());
+                out.writeLong(entry.dateModified);
+                out.writeLong(entry.offset);
+                out.writeInt(entry.length);
+            }
+
+            out.close();
+            out = null;
+            isOk = tmpFile.renameTo(indexFile);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+
+        if (isOk) {
+            mIsIndexDirty = false;
+        } else {
+            tmpFile.delete();
+        }
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * prepareOpen()の後であれば、open()を終えるまで待つ。ロックを保持して呼び出すこと
+     */
+    private void awaitOpened() {
+        while (mIsOpening) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 索引を読み込む。パックファイルの範囲外を指す登録は捨てる<br>
+     * 索引が記録したパックファイルの長さより実際のファイルが短い場合は、
+     * 詰め直しの途中で終了した古い索引とみなして全て捨てる。
+     * 索引の書き込み前に追記されて長くなっている場合は、そのまま使う
+     */
+    private void readIndex(File indexFile) {
+        mEntries.clear();
+        mLiveBytes = 0;
+
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return;
+            }
+
+            long packLength = in.readLong();
+            if (packLength > mPackLength) {
+                Log.d(TAG, "Discard stale thumbnail index name:" + mName
+                        + " indexed:" + packLength + " actual:" + mPackLength);
+                return;
+            }
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                long dateModified = in.readLong();
+                long offset = in.readLong();
+                int length = in.readInt();
+
+                if (offset + length <= packLength) {
+                    mEntries.put(id, new Entry(dateModified, offset, length));
+                    mLiveBytes += length;
+                }
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            mEntries.clear();
+            mLiveBytes = 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //Do nothing
+            }
+        }
+    }
+
+    /**
+     * 索引の要素
+     */
+    private static class Entry {
+        /** 動画の更新日時 */
+        final long dateModified;
+        /** パックファイル内の位置 */
+        long offset;
+        /** バイト数 */
+        final int length;
+
+        Entry(long dateModified, long offset, int length) {
+            this.dateModified = dateModified;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
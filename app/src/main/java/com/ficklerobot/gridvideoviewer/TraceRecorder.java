@@ -0,0 +1,239 @@
+package com.ficklerobot.gridvideoviewer;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * デコード処理のイベントの記録<br>
+ * 再生待ち・再生枠の割り当て・デコーダの準備・最初のフレームなどのイベントを、セルごとに時刻付きで記録する。
+ * 記録は確保済みの配列を巡回して上書きするだけなので、どのスレッドからもメモリを確保せずに呼び出せる<br>
+ * export()でChromeのトレースイベント形式(JSON)に書き出し、chrome://tracingなどでセルごとのタイムラインとして見る
+ */
+class TraceRecorder {
+    private static final String TAG = "VideoGrid";
+    /** 保持するイベント数。2のべき乗 */
+    private static final int CAPACITY = 16384;
+    private static final int MASK = CAPACITY - 1;
+
+    /** イベント: 再生待ちキューに並んだ */
+    static final int OFFER = 0;
+    /** イベント: 再生枠が割り当てられた */
+    static final int GRANT = 1;
+    /** イベント: タップされて割り込んだ */
+    static final int INTERRUPT = 2;
+    /** イベント: 再生枠を取り上げられた */
+    static final int PREEMPT = 3;
+    /** イベント: 割り当て時間を使い切って再生枠を譲った */
+    static final int YIELD = 4;
+    /** 区間: サンプルの読み込み元の準備 */
+    static final int SOURCE_SETUP = 5;
+    /** 区間: デコーダの生成・設定・開始 */
+    static final int CODEC_CREATE = 6;
+    /** イベント: 最初のフレームを表示した */
+    static final int FIRST_FRAME = 7;
+    /** イベント: 末尾までデコードした */
+    static final int EOS = 8;
+    /** イベント: デコーダの準備、またはデコードに失敗した */
+    static final int FAILURE = 9;
+    /** イベント: 一時停止から再開した */
+    static final int RESUME = 10;
+    /** イベント: ループ再生で先頭に戻った */
+    static final int LOOP = 11;
+    private static final String[] EVENT_NAMES = {"offer", "grant", "interrupt", "preempt",
+            "yield", "source", "codec", "first frame", "eos", "failure", "resume", "loop"};
+
+    private static final byte PHASE_BEGIN = 'B';
+    private static final byte PHASE_END = 'E';
+    private static final byte PHASE_INSTANT = 'i';
+
+    /** 次に書き込むイベントの通し番号 */
+    private final AtomicLong mNext = new AtomicLong();
+    /** 各要素に書き込み済みのイベントの通し番号 -1:書き込み中 */
+    private final AtomicLongArray mSequences = new AtomicLongArray(CAPACITY);
+    private final long[] mTimesNs = new long[CAPACITY];
+    private final long[] mArgs = new long[CAPACITY];
+    private final int[] mCells = new int[CAPACITY];
+    private final byte[] mEvents = new byte[CAPACITY];
+    private final byte[] mPhases = new byte[CAPACITY];
+    /** 書き出す時刻の基準(System.nanoTime()) */
+    private final long mBaseNs = System.nanoTime();
+
+    private static TraceRecorder sMe;
+
+    private TraceRecorder() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mSequences.set(i, -1);
+        }
+    }
+
+    static synchronized TraceRecorder getInstance() {
+        if (sMe == null) {
+            sMe = new TraceRecorder();
+        }
+        return sMe;
+    }
+
+    /**
+     * 瞬間のイベントを記録する
+     *
+     * @param event OFFER〜LOOP
+     * @param cell DecoderSurfaceの番号
+     * @param arg イベントの値。JSONのargsに出力する
+     */
+    void instant(int event, int cell, long arg) {
+        record(PHASE_INSTANT, event, cell, arg);
+    }
+
+    /**
+     * 区間の開始を記録する。同じセルでend()を呼び出すこと
+     *
+     * @param event SOURCE_SETUP|CODEC_CREATE
+     * @param cell DecoderSurfaceの番号
+     */
+    void begin(int event, int cell) {
+        record(PHASE_BEGIN, event, cell, 0);
+    }
+
+    /**
+     * 区間の終了を記録する
+     *
+     * @param event SOURCE_SETUP|CODEC_CREATE
+     * @param cell DecoderSurfaceの番号
+     */
+    void end(int event, int cell) {
+        record(PHASE_END, event, cell, 0);
+    }
+
+    private void record(byte phase, int event, int cell, long arg) {
+        long sequence = mNext.getAndIncrement();
+        int index = (int) (sequence & MASK);
+
+        // 書き込み中は番号を無効にしておき、書き出し時に読み飛ばす
+        mSequences.set(index, -1);
+        mTimesNs[index] = System.nanoTime();
+        mArgs[index] = arg;
+        mCells[index] = cell;
+        mEvents[index] = (byte) event;
+        mPhases[index] = phase;
+        mSequences.set(index, sequence);
+    }
+
+    /**
+     * 保持しているイベントをChromeのトレースイベント形式で書き出す<br>
+     * 記録は止めないので、書き出し中に上書きされたイベントは含まれない。
+     * 開始が上書きされて残っていない区間は、終了も書き出さない
+     *
+     * @param file 書き出し先
+     * @return false:書き出しに失敗した
+     */
+    boolean export(File file) {
+        long startTime = System.currentTimeMillis(); // 計測ログ用
+        long last = mNext.get();
+        long first = Math.max(0, last - CAPACITY);
+
+        Writer out = null;
+        boolean isOk = false;
+        int count = 0;
+
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+
+            boolean[] isNamed = new boolean[0];
+            // セル・区間ごとの、書き出したBで終わっていないものの数
+            int[] openCounts = new int[0];
+
+            for (long sequence = first; sequence < last; sequence++) {
+                int index = (int) (sequence & MASK);
+
+                if (mSequences.get(index) != sequence) {
+                    continue;
+                }
+
+                long timeNs = mTimesNs[index];
+                long arg = mArgs[index];
+                int cell = mCells[index];
+                int event = mEvents[index];
+                char phase = (char) mPhases[index];
+
+                if (mSequences.get(index) != sequence) {
+                    continue; // 読んでいる間に上書きされた
+                }
+
+                // 巡回して上書きされたBに対応するEは、対になるBが無いので書き出さない
+                if ((phase == PHASE_BEGIN || phase == PHASE_END) && cell >= 0) {
+                    int slot = cell * EVENT_NAMES.length + event;
+                    if (slot >= openCounts.length) {
+                        openCounts = Arrays.copyOf(openCounts, slot + 16 * EVENT_NAMES.length);
+                    }
+
+                    if (phase == PHASE_BEGIN) {
+                        openCounts[slot]++;
+                    } else if (openCounts[slot] > 0) {
+                        openCounts[slot]--;
+                    } else {
+                        continue;
+                    }
+                }
+
+                // セルごとのレーンに名前を付ける
+                if (cell >= 0) {
+                    if (cell >= isNamed.length) {
+                        isNamed = Arrays.copyOf(isNamed, cell + 16);
+                    }
+                    if (!isNamed[cell]) {
+                        isNamed[cell] = true;
+                        writeSeparator(out, count++);
+                        out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + cell
+                                + ",\"args\":{\"name\":\"cell " + cell + "\"}}");
+                    }
+                }
+
+                writeSeparator(out, count++);
+                out.write("{\"name\":\"" + EVENT_NAMES[event] + "\",\"ph\":\"" + phase
+                        + "\",\"pid\":1,\"tid\":" + cell
+                        + ",\"ts\":" + (timeNs - mBaseNs) / 1000 + "." + ((timeNs - mBaseNs) / 100) % 10);
+                if (phase == PHASE_INSTANT) {
+                    out.write(",\"s\":\"t\",\"args\":{\"value\":" + arg + "}");
+                }
+                out.write("}");
+            }
+
+            out.write("\n]}\n");
+            out.close();
+            out = null;
+            isOk = true;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //Do nothing
+                }
+            }
+        }
+
+        Log.d(TAG, "export trace file:" + file + " events:" + count
+                + " cost:" + (System.currentTimeMillis() - startTime));
+
+        return isOk;
+    }
+
+    private static void writeSeparator(Writer out, int count) throws IOException {
+        if (count > 0) {
+            out.write(",\n");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.ficklerobot.gridvideoviewer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ビデオデコーダ<br>
+ * MediaCodecと同じ呼び出し方で、端末のデコーダと合成したデコーダのどちらでも使えるようにする。
+ * 定数の値はMediaCodecと同じ。デコード結果の出力先は実装ごとに生成時に決める
+ */
+interface VideoDecoder {
+    /** dequeueInputBuffer()・dequeueOutputBuffer()の戻り値: 空いているバッファが無い */
+    int INFO_TRY_AGAIN_LATER = -1;
+    /** dequeueOutputBuffer()の戻り値: 出力フォーマットが変わった */
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    /** dequeueOutputBuffer()の戻り値: 出力バッファが変わった */
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    /** フラグ: キーフレーム */
+    int BUFFER_FLAG_KEY_FRAME = 1;
+    /** フラグ: コーデックの設定データ */
+    int BUFFER_FLAG_CODEC_CONFIG = 2;
+    /** フラグ: 終端 */
+    int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    /**
+     * @param timeoutUs 待機時間(マイクロ秒)
+     * @return 入力バッファの番号 INFO_TRY_AGAIN_LATER:空いているバッファが無い
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    /**
+     * @param index dequeueInputBuffer()で受け取った番号
+     * @return 書き込み位置を先頭に戻した入力バッファ
+     */
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @param info 出力されたバッファの情報を書き込む
+     * @param timeoutUs 待機時間(マイクロ秒)
+     * @return 出力バッファの番号 負数:INFO_TRY_AGAIN_LATERなど
+     */
+    int dequeueOutputBuffer(OutputInfo info, long timeoutUs);
+
+    /**
+     * @param render true:出力先に表示する
+     */
+    void releaseOutputBuffer(int index, boolean render);
+
+    /**
+     * @param renderTimestampNs 表示する時刻(System.nanoTime())
+     */
+    void releaseOutputBuffer(int index, long renderTimestampNs);
+
+    /**
+     * 入力済み・出力待ちのバッファを全て捨てる
+     */
+    void flush();
+
+    /**
+     * 出力されたバッファの情報。MediaCodec.BufferInfoに当たる
+     */
+    class OutputInfo {
+        int size;
+        long presentationTimeUs;
+        int flags;
+    }
+}
@@ -1,15 +1,19 @@
 package com.ficklerobot.gridvideoviewer;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.app.Fragment;
-import android.app.ProgressDialog;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
 import android.graphics.SurfaceTexture;
-import android.graphics.drawable.BitmapDrawable;
+import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
@@ -19,6 +23,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Process;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Video;
@@ -31,28 +36,65 @@ import android.view.TextureView;
 import android.view.TextureView.SurfaceTextureListener;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
 import android.view.animation.AnimationUtils;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
 import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.RelativeLayout;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.ficklerobot.gridvideoviewer.GalleryActivity.OnBackPressListener;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class VideoGridFragment extends Fragment
-        implements OnPreparedListener, SurfaceTextureListener, OnBackPressListener, OnCompletionListener {
+        implements OnPreparedListener, SurfaceTextureListener, OnBackPressListener, OnCompletionListener,
+        OnScrollListener {
     private static final String TAG = "VideoGrid";
+    /** メタデータの索引ファイル名 */
+    private static final String METADATA_FILE_NAME = "video_metadata.idx";
+    /** 端末のデコーダの能力の保存先ファイル名 */
+    private static final String CODEC_PROFILE_FILE_NAME = "codec_profile.bin";
+    /** メタデータが無く動画のMIMEタイプが分からない場合に、同時再生数の上限を決めるデコーダのMIMEタイプ */
+    private static final String PRIMARY_MIME_TYPE = "video/avc";
+    /** キーフレーム索引の保存先ディレクトリ名 */
+    private static final String KEYFRAME_INDEX_DIR_NAME = "keyframes";
+    /** サムネイルのパックファイルの保存先ディレクトリ名 */
+    private static final String THUMBNAIL_DIR_NAME = "thumbnails";
+    /** サムネイルを作成するスレッド数の上限 */
+    private static final int MAX_THUMBNAIL_THREAD_COUNT = 4;
+    /** 再利用するサムネイルのBitmapの上限バイト数 */
+    private static final int BITMAP_POOL_SIZE = 8 * 1024 * 1024;
+    /** サムネイルのメモリキャッシュに割り当てる、ヒープ上限に対する割合 */
+    private static final int THUMBNAIL_CACHE_DIVISOR = 4;
+    /** プレビュー用スプライトシートのメモリキャッシュに割り当てる、ヒープ上限に対する割合 */
+    private static final int SPRITE_CACHE_DIVISOR = 8;
+    /** 短い動画の圧縮済みサンプルのメモリキャッシュに割り当てる、ヒープ上限に対する割合 */
+    private static final int SAMPLE_CACHE_DIVISOR = 8;
+    /** この列数以上のグリッドのセルは、キーフレームのみを再生する */
+    private static final int KEYFRAME_ONLY_MIN_COL_COUNT = 4;
+    /** 計測値の重ね表示を更新する間隔(ミリ秒) */
+    private static final long METRICS_OVERLAY_INTERVAL_MS = 1000;
 
     /** グリッドの列数 */
     private int mColCount;
+    /** true:動画のループ再生を有効にした状態で表示する。セルの長押しで動画ごとに切り替えられる */
+    private boolean mIsLoopingDefault;
     /** グリッドをタップした際のアクション種別 */
     private int mTapAction;
 
@@ -67,15 +109,51 @@ public class VideoGridFragment extends Fragment
     /** DecoderSurfaceの番号 */
     private int mSurfaceNumber;
     private ThumbnailCache mThumbnailCache;
+    /** サムネイルのメモリキャッシュから追い出したBitmapの格納先 */
+    private BitmapPool mBitmapPool;
+    /** 計測ログ用 onResume()の時刻 0:計測済み */
+    private long mStartupTimeMs;
+    /** 先読み範囲を決めた際の先頭の表示行 */
+    private int mPrefetchFirstRow = -1;
+    private ThumbnailLoader<DecoderSurface.VideoData> mThumbnailLoader;
+    /** プレビュー用スプライトシートの読み込み null:プレビューを表示しない */
+    private ThumbnailLoader<DecoderSurface.VideoData> mSpriteLoader;
+    private SpriteSheetCache mSpriteCache;
     /** 画面サイズ */
     private int[] mWindowSize;
 
     private DecodeQueueManager mQueueManager;
+    /** 索引やディスクキャッシュを開く・書き込むスレッド。UIスレッドをファイルの入出力で止めない */
+    private ExecutorService mBackgroundExecutor;
+    /** 計測値の重ね表示 null:表示しない */
+    private TextView mMetricsView;
+    private final Handler mMetricsHandler = new Handler();
+    private final Runnable mMetricsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            mMetricsView.setText(PlaybackMetrics.getInstance().snapshot().toSummary());
+            mMetricsHandler.postDelayed(this, METRICS_OVERLAY_INTERVAL_MS);
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mQueueManager = DecodeQueueManager.getInstance();
+        mBackgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "VideoGridBackground");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     @Override
@@ -86,7 +164,17 @@ public class VideoGridFragment extends Fragment
 
         mColCount = args.getInt(GalleryActivity.EXT_COL_COUNT, 2);
         int playCount = args.getInt(GalleryActivity.EXT_PLAY_COUNT, 1);
+        boolean adaptive = args.getBoolean(GalleryActivity.EXT_ADAPTIVE_PLAY_COUNT, false);
         mTapAction = args.getInt(GalleryActivity.EXT_TAP_ACTION, MainActivity.TAP_ACTION_FLOAT);
+        long quantumMs = args.getLong(GalleryActivity.EXT_QUANTUM_MS, 0);
+        int quantumFrames = args.getInt(GalleryActivity.EXT_QUANTUM_FRAMES, 0);
+        boolean decoderPool = args.getBoolean(GalleryActivity.EXT_DECODER_POOL, true);
+        boolean thumbnailRgb565 = args.getBoolean(GalleryActivity.EXT_THUMBNAIL_RGB565, false);
+        boolean spritePreview = args.getBoolean(GalleryActivity.EXT_SPRITE_PREVIEW, false);
+        boolean keyframeOnly = args.getBoolean(GalleryActivity.EXT_KEYFRAME_ONLY, false);
+        mIsLoopingDefault = args.getBoolean(GalleryActivity.EXT_LOOP, false);
+        boolean sampleCache = args.getBoolean(GalleryActivity.EXT_SAMPLE_CACHE, true);
+        boolean metricsOverlay = args.getBoolean(GalleryActivity.EXT_METRICS_OVERLAY, false);
 
         Context context = getActivity().getApplicationContext();
         mWindowSize = new int[2];
@@ -100,14 +188,77 @@ public class VideoGridFragment extends Fragment
 
         mVideoList = new ListView(context);
         mVideoList.setDivider(null);
+        mVideoList.setOnScrollListener(this);
 
         mRootView.addView(mVideoList, listLayoutParams);
 
+        if (metricsOverlay) {
+            mMetricsView = new TextView(context);
+            mMetricsView.setTextColor(Color.WHITE);
+            mMetricsView.setBackgroundColor(0x80000000);
+            mMetricsView.setTypeface(Typeface.MONOSPACE);
+            mMetricsView.setTextSize(10);
+
+            RelativeLayout.LayoutParams metricsLayoutParams = new RelativeLayout.LayoutParams(
+                    LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT);
+            metricsLayoutParams.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM);
+            mRootView.addView(mMetricsView, metricsLayoutParams);
+        }
+
         mVideoUriList = new ArrayList<>();
-        mThumbnailCache = new ThumbnailCache(context);
+        mBitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+        int cellSize = display.widthPixels / mColCount;
+        Bitmap.Config thumbnailConfig =
+                thumbnailRgb565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        mThumbnailCache = new ThumbnailCache(context, mBitmapPool,
+                calcCacheSize(context, THUMBNAIL_CACHE_DIVISOR), cellSize, thumbnailConfig);
+        // 動画のデコードとUIスレッドのために1コア残す
+        int thumbnailThreadCount = Math.max(1, Math.min(
+                Runtime.getRuntime().availableProcessors() - 1, MAX_THUMBNAIL_THREAD_COUNT));
+        mThumbnailLoader = new ThumbnailLoader<DecoderSurface.VideoData>(
+                mThumbnailCache, thumbnailThreadCount) {
+            @Override
+            protected void setBitmap(ImageView view, DecoderSurface.VideoData key, Bitmap bitmap) {
+                // 同じ動画のプレビューが先に表示されていれば、静止画に戻さない
+                if (mSpriteLoader == null || !mSpriteLoader.isBound(view, key)) {
+                    super.setBitmap(view, key, bitmap);
+                }
+            }
+        };
+        mThumbnailLoader.setOnIdleListener(new Runnable() {
+            @Override
+            public void run() {
+                if (mStartupTimeMs > 0 && mVideoList.getAdapter() != null) {
+                    Log.d(TAG, "startup first screen thumbnails cost:"
+                            + (System.currentTimeMillis() - mStartupTimeMs));
+                    mStartupTimeMs = 0;
+                }
+            }
+        });
+        if (spritePreview) {
+            mSpriteCache = new SpriteSheetCache(
+                    calcCacheSize(context, SPRITE_CACHE_DIVISOR), cellSize, thumbnailConfig);
+            // 1枚に複数のフレームを取り出すので、サムネイルより後に1スレッドで作成する
+            mSpriteLoader = new ThumbnailLoader<DecoderSurface.VideoData>(mSpriteCache, 1) {
+                @Override
+                protected void setBitmap(ImageView view, DecoderSurface.VideoData key,
+                                         Bitmap bitmap) {
+                    SpriteDrawable drawable = new SpriteDrawable(bitmap, (int) key.thumbId);
+                    view.setImageDrawable(drawable);
+                    drawable.start();
+                }
+            };
+        }
         mSurfaceArray = new SparseArray<>();
 
         mQueueManager.setMaxRunCount(playCount);
+        mQueueManager.setAdaptiveRunCount(adaptive, 1);
+        mQueueManager.setRoundRobinQuantum(quantumMs, quantumFrames);
+        mQueueManager.setKeyframeOnlyCellSize(cellSize,
+                keyframeOnly ? display.widthPixels / KEYFRAME_ONLY_MIN_COL_COUNT : 0);
+        DecoderPool.getInstance().setEnabled(decoderPool);
+        SampleCache.getInstance().setMaxBytes(
+                sampleCache ? calcCacheSize(context, SAMPLE_CACHE_DIVISOR) : 0);
 
         return mRootView;
     }
@@ -116,6 +267,9 @@ public class VideoGridFragment extends Fragment
     public void onResume() {
         super.onResume();
 
+        mStartupTimeMs = System.currentTimeMillis();
+        mPrefetchFirstRow = -1;
+
         synchronized (this) {
             mVideoUriList.clear();
             mThumbnailCache.clearCache();
@@ -124,16 +278,29 @@ public class VideoGridFragment extends Fragment
 
         loadVideoUrlList();
 
+        // パックファイルは開くまでサムネイルの作成を待たせ、グリッドは先に表示する
+        ThumbnailPackCache.getInstance().prepareOpen();
+        ThumbnailPackCache.getSpriteInstance().prepareOpen();
+        updateGrid();
+        Log.d(TAG, "startup grid shown videos:" + mVideoUriList.size()
+                + " cost:" + (System.currentTimeMillis() - mStartupTimeMs));
+
         PrepareVideoListTask task = new PrepareVideoListTask();
-        task.execute(0);
+        task.executeOnExecutor(mBackgroundExecutor, 0);
 
         initPickupPlayer();
+
+        if (mMetricsView != null) {
+            mMetricsHandler.post(mMetricsUpdater);
+        }
     }
 
     @Override
     public void onPause() {
         super.onPause();
 
+        mMetricsHandler.removeCallbacks(mMetricsUpdater);
+
         releaseVideos();
     }
 
@@ -142,6 +309,30 @@ public class VideoGridFragment extends Fragment
         super.onDestroy();
 
         releaseVideos();
+
+        if (mThumbnailLoader != null) {
+            mThumbnailLoader.shutdown();
+        }
+
+        if (mSpriteLoader != null) {
+            mSpriteLoader.shutdown();
+        }
+
+        // 要求済みの処理は終えてからスレッドを終了する
+        mBackgroundExecutor.shutdown();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // 一時停止中のデコーダを手放し、次回はキーフレームから再生させる
+            mQueueManager.trimSuspended();
+        }
+
+        mBitmapPool.trimMemory(level);
+        SampleCache.getInstance().trimMemory(level);
     }
 
     /**
@@ -152,7 +343,12 @@ public class VideoGridFragment extends Fragment
     private void releaseVideos() {
 
         synchronized (this) {
+            mThumbnailLoader.cancelAll();
             mThumbnailCache.clearCache();
+            if (mSpriteLoader != null) {
+                mSpriteLoader.cancelAll();
+                mSpriteCache.clearCache();
+            }
             mVideoUriList.clear();
 
             for(int i = 0; i < mSurfaceArray.size(); i++) {
@@ -187,6 +383,127 @@ public class VideoGridFragment extends Fragment
         }
 
         mQueueManager.clear();
+        DecoderPool.getInstance().clear();
+
+        KeyframeIndexStore.getInstance().dumpStats();
+        // 索引の書き込みは、次回のPrepareVideoListTaskでの読み込みより先に行われる
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                VideoMetadataStore.getInstance().save();
+                CodecProfileStore.getInstance().save();
+                ThumbnailPackCache.getInstance().flush();
+                ThumbnailPackCache.getSpriteInstance().flush();
+            }
+        });
+        mThumbnailCache.dumpStats();
+        mBitmapPool.dumpStats();
+        SampleCache.getInstance().dumpStats();
+        PlaybackMetrics.getInstance().snapshot().dump();
+    }
+
+    /**
+     * メモリキャッシュのバイト数を、アプリのヒープ上限から求める
+     *
+     * @param context Context
+     * @param divisor ヒープ上限に対する割合
+     * @return バイト数
+     */
+    private static int calcCacheSize(Context context, int divisor) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+        int memoryClass;
+        if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0) {
+            memoryClass = am.getLargeMemoryClass();
+        } else {
+            memoryClass = am.getMemoryClass();
+        }
+
+        return memoryClass * 1024 * 1024 / divisor;
+    }
+
+    /**
+     * メタデータの索引を読み込み、各動画に設定する<br>
+     * MediaStoreから削除された動画は索引から除く。
+     * グリッドの表示後に呼び出すので、既に再生を始めたセルが取得したメタデータは上書きしない
+     *
+     * @param file 索引ファイル
+     * @param list 動画リスト
+     * @param ids 動画リストのMediaStoreのID
+     */
+    private static void loadMetadata(File file, ArrayList<DecoderSurface.VideoData> list,
+                                     long[] ids) {
+        long startTime = System.currentTimeMillis(); // 計測ログ用
+
+        VideoMetadataStore store = VideoMetadataStore.getInstance();
+        store.load(file);
+
+        int hitCount = 0;
+
+        for (DecoderSurface.VideoData data : list) {
+            VideoMetadataStore.VideoMetadata metadata =
+                    store.get(data.thumbId, data.size, data.dateModified);
+
+            if (metadata != null) {
+                if (data.metadata == null) {
+                    data.metadata = metadata;
+                }
+                hitCount++;
+            }
+        }
+
+        store.retain(ids);
+
+        Log.d(TAG, "loadMetadata hit:" + hitCount + "/" + list.size()
+                + " cost:" + (System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * サムネイルのパックファイルを開く<br>
+     * 開けなかった場合も、開くのを待っているサムネイルの作成は再開させる
+     *
+     * @param directory 保存先ディレクトリ
+     */
+    private static void openThumbnailPack(File directory) {
+        long startTime = System.currentTimeMillis(); // 計測ログ用
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.d(TAG, "Failed to create thumbnail directory:" + directory);
+        }
+
+        ThumbnailPackCache pack = ThumbnailPackCache.getInstance();
+        pack.open(directory);
+
+        ThumbnailPackCache spritePack = ThumbnailPackCache.getSpriteInstance();
+        spritePack.open(directory);
+
+        Log.d(TAG, "openThumbnailPack count:" + pack.size() + " sprites:" + spritePack.size()
+                + " cost:" + (System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * MediaStoreから削除された動画のサムネイルを除き、無効な領域が多ければパックファイルを詰め直す
+     *
+     * @param ids 動画リストのMediaStoreのID
+     */
+    private static void compactThumbnailPack(long[] ids) {
+        long startTime = System.currentTimeMillis(); // 計測ログ用
+
+        ThumbnailPackCache pack = ThumbnailPackCache.getInstance();
+        pack.retain(ids);
+        pack.compactIfNeeded();
+
+        ThumbnailPackCache spritePack = ThumbnailPackCache.getSpriteInstance();
+        spritePack.retain(ids);
+        spritePack.compactIfNeeded();
+
+        Log.d(TAG, "compactThumbnailPack cost:" + (System.currentTimeMillis() - startTime));
+    }
+
+    private void updateGrid() {
+        Context context = getActivity().getApplicationContext();
+        GridAdapter adapter = new GridAdapter(context, mColCount);
+        mVideoList.setAdapter(adapter);
     }
 
     /**
@@ -201,6 +518,7 @@ public class VideoGridFragment extends Fragment
                 MediaStore.Video.Media.DATA,
                 MediaStore.Video.Media.DISPLAY_NAME,
                 MediaStore.Video.Media.SIZE,
+                MediaStore.Video.Media.DATE_MODIFIED,
                 Video.VideoColumns.MINI_THUMB_MAGIC};
         Cursor cursor = MediaStore.Video.query(resolver, Video.Media.EXTERNAL_CONTENT_URI, projection);
 
@@ -209,16 +527,24 @@ public class VideoGridFragment extends Fragment
                 int colId = cursor.getColumnIndex(MediaStore.Video.Media._ID);
                 int colPath = cursor.getColumnIndex(MediaStore.MediaColumns.DATA);
                 int colName = cursor.getColumnIndex(MediaStore.MediaColumns.DISPLAY_NAME);
+                int colSize = cursor.getColumnIndex(MediaStore.MediaColumns.SIZE);
+                int colDate = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
 
                 do {
 
                     long id = cursor.getLong(colId);
                     String path = cursor.getString(colPath);
                     String name = cursor.getString(colName);
+                    long size = cursor.getLong(colSize);
+                    long dateModified = cursor.getLong(colDate);
                     Log.d(TAG, "Load media id:" + id + " name:" + name + " path:" + path);
 
+                    DecoderSurface.VideoData data = new DecoderSurface.VideoData(name,
+                            Uri.parse(path), id, size, dateModified);
+                    data.isLooping = mIsLoopingDefault;
+
                     synchronized (this) {
-                        mVideoUriList.add(new DecoderSurface.VideoData(name, Uri.parse(path), id));
+                        mVideoUriList.add(data);
                     }
 
                 } while (cursor.moveToNext());
@@ -228,13 +554,109 @@ public class VideoGridFragment extends Fragment
         mSurfaceNumber = 0;
     }
 
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        // nop
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+        updateDisplayPriorities();
+        updatePrefetch(firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+
+    /**
+     * 表示中の行の上下1画面分のサムネイルを先読みする<br>
+     * スクロールしている方向を先に、表示中の行に近い順に要求する
+     *
+     * @param firstRow 先頭の表示行
+     * @param rowCount 表示行数
+     * @param totalRowCount 全行数
+     */
+    private void updatePrefetch(int firstRow, int rowCount, int totalRowCount) {
+        if (rowCount <= 0 || firstRow == mPrefetchFirstRow) {
+            return;
+        }
+
+        boolean isScrollingUp = firstRow < mPrefetchFirstRow;
+        mPrefetchFirstRow = firstRow;
+
+        int lastRow = firstRow + rowCount - 1;
+        ArrayList<DecoderSurface.VideoData> keys = new ArrayList<>(rowCount * 2 * mColCount);
+
+        synchronized (this) {
+            for (int d = 1; d <= rowCount; d++) {
+                int[] rows = isScrollingUp
+                        ? new int[]{firstRow - d, lastRow + d} : new int[]{lastRow + d, firstRow - d};
+
+                for (int row : rows) {
+                    if (row < 0 || row >= totalRowCount) {
+                        continue;
+                    }
+
+                    for (int col = 0; col < mColCount; col++) {
+                        int position = row * mColCount + col;
+                        if (position < mVideoUriList.size()) {
+                            keys.add(mVideoUriList.get(position));
+                        }
+                    }
+                }
+            }
+        }
+
+        mThumbnailLoader.prefetch(keys);
+    }
+
+    /**
+     * 表示中の各行の見え方から、セルの表示優先度を更新する<br>
+     * 全体が見えている行、半分以上見えている行、端だけかかっている行の順に優先して再生させる
+     */
+    private void updateDisplayPriorities() {
+        int listHeight = mVideoList.getHeight();
+        if (listHeight <= 0) {
+            return;
+        }
+
+        for (int i = 0; i < mVideoList.getChildCount(); i++) {
+            View row = mVideoList.getChildAt(i);
+            Object tag = row.getTag();
+
+            if (!(tag instanceof GridAdapter.ViewHolder)) {
+                continue;
+            }
+
+            int rowHeight = row.getHeight();
+            int visibleHeight = Math.min(row.getBottom(), listHeight) - Math.max(row.getTop(), 0);
+
+            int priority;
+            if (rowHeight <= 0 || visibleHeight <= 0) {
+                priority = DecodeQueueManager.PRIORITY_HIDDEN;
+            } else if (visibleHeight >= rowHeight) {
+                priority = DecodeQueueManager.PRIORITY_VISIBLE;
+            } else if (visibleHeight * 2 >= rowHeight) {
+                priority = DecodeQueueManager.PRIORITY_PARTIAL;
+            } else {
+                priority = DecodeQueueManager.PRIORITY_NEAR;
+            }
+
+            GridAdapter.ViewHolder holder = (GridAdapter.ViewHolder) tag;
+            for (TextureView textureView : holder.textureViews) {
+                DecoderSurface ds = (DecoderSurface) textureView.getTag();
+                if (ds != null) {
+                    ds.setDisplayPriority(priority);
+                }
+            }
+        }
+    }
+
     /**
      * 動画リストのアダプター<br>
      * GridViewではなくListViewにグリッド表示を行うため、列数個分のViewを持ったリスト行Viewを作成している
      *
      */
     private class GridAdapter extends BaseAdapter
-            implements OnClickListener {
+            implements OnClickListener, OnLongClickListener {
 
         Context context;
         LayoutInflater inflater;
@@ -296,6 +718,7 @@ public class VideoGridFragment extends Fragment
 
                     holder.textureViews[i] = new TextureView(context);
                     holder.textureViews[i].setOnClickListener(this);
+                    holder.textureViews[i].setOnLongClickListener(this);
                     holder.textureViews[i].setLayoutParams(textureLayoutParams);
 
                     RelativeLayout.LayoutParams imageLayoutParams
@@ -304,6 +727,7 @@ public class VideoGridFragment extends Fragment
                     holder.imageViews[i] = new ImageView(context);
                     holder.imageViews[i].setScaleType(ScaleType.CENTER_CROP);
                     holder.imageViews[i].setOnClickListener(this);
+                    holder.imageViews[i].setOnLongClickListener(this);
                     holder.imageViews[i].setLayoutParams(imageLayoutParams);
 
                     DecoderSurface ds = new DecoderSurface(
@@ -335,17 +759,32 @@ public class VideoGridFragment extends Fragment
                 int dataPosition = position * colCount + i;
                 final DecoderSurface.VideoData data = getItem(dataPosition);
 
-                Drawable thumb;
                 Resources res = getResources();
+                Drawable blank = res.getDrawable(R.drawable.blank_panel);
 
                 if (data != null) {
-                    thumb = new BitmapDrawable(
-                            res, mThumbnailCache.getBitmapFromMemCache(data)); //TODO 非同期でやる
+                    if (mSpriteLoader != null && !mSpriteLoader.isBound(holder.imageViews[i], data)) {
+                        // 再利用した行には前の動画のプレビューが残っているので、先に外す
+                        holder.imageViews[i].setImageDrawable(blank);
+                        mSpriteLoader.cancel(holder.imageViews[i]);
+                    }
+
+                    // キャッシュに無ければ空白を表示し、作成後に差し替える
+                    mThumbnailLoader.load(data, holder.imageViews[i], blank);
+                    if (mSpriteLoader != null) {
+                        // プレビューができたらサムネイルと差し替える。
+                        // 作成中に別の動画を要求し直したImageViewには表示されない
+                        mSpriteLoader.load(data, holder.imageViews[i], null);
+                    }
                 } else {
-                    thumb = res.getDrawable(R.drawable.blank_panel);
+                    // 表示していたBitmapは再利用されるので、先に差し替える
+                    holder.imageViews[i].setImageDrawable(blank);
+                    mThumbnailLoader.cancel(holder.imageViews[i]);
+                    if (mSpriteLoader != null) {
+                        mSpriteLoader.cancel(holder.imageViews[i]);
+                    }
                 }
 
-                holder.imageViews[i].setImageDrawable(thumb);
                 holder.imageViews[i].clearAnimation();
                 holder.imageViews[i].setAlpha(1.0f);
 
@@ -387,6 +826,26 @@ public class VideoGridFragment extends Fragment
                 ds.play(true);
             }
         }
+
+        /**
+         * セルが長押しされた際の動作<br>
+         * 表示中の動画のループ再生を切り替える
+         */
+        @Override
+        public boolean onLongClick(View v) {
+            DecoderSurface ds = (DecoderSurface) v.getTag();
+            DecoderSurface.VideoData data = ds != null ? ds.getVideoData() : null;
+
+            if (data == null) {
+                return false;
+            }
+
+            data.isLooping = !data.isLooping;
+            Toast.makeText(context, data.isLooping ? "ループ再生します" : "ループ再生を解除しました",
+                    Toast.LENGTH_SHORT).show();
+
+            return true;
+        }
     }
 
     /**
@@ -489,94 +948,224 @@ public class VideoGridFragment extends Fragment
 
     /**
      * 動画リストの準備を行うsyncTask<br>
-     * 動画のサムネイルを作成し、GridAdapterをListViewにセットする
+     * グリッドを表示した後に、索引やディスクキャッシュを開き、端末のデコーダを調べる。
+     * サムネイルのパックファイルを先に開き、詰め直しは最後に行う。
+     * サムネイルはここでは作成せず、表示・先読みの際にThumbnailLoaderで作成する
      */
     private class PrepareVideoListTask extends AsyncTask<Integer, Integer, Integer> {
 
-        ProgressDialog progress;
+        /** 開始時点の動画リスト。準備中にonPause()でリストが空になっても、索引を空にしない */
+        final ArrayList<DecoderSurface.VideoData> videos;
+        /** videosのMediaStoreのID */
+        final long[] ids;
 
-        PrepareVideoListTask() {
-            progress = new ProgressDialog(getActivity());
-            progress.setCancelable(false);
-        }
+        /** メタデータの索引ファイル */
+        File metadataFile;
+        /** デコーダの能力の保存先ファイル */
+        File codecProfileFile;
+        /** キーフレーム索引の保存先 */
+        File keyframeDir;
+        /** サムネイルのパックファイルの保存先 */
+        File thumbnailDir;
 
-        @Override
-        protected void onPreExecute() {
+        PrepareVideoListTask() {
+            metadataFile = new File(getActivity().getFilesDir(), METADATA_FILE_NAME);
+            codecProfileFile = new File(getActivity().getFilesDir(), CODEC_PROFILE_FILE_NAME);
+            keyframeDir = new File(getActivity().getCacheDir(), KEYFRAME_INDEX_DIR_NAME);
+            thumbnailDir = new File(getActivity().getCacheDir(), THUMBNAIL_DIR_NAME);
 
-            try {
-                onProgressUpdate(0);
-                progress.show();
-            } catch (Exception e) {
-                //Do nothing
+            synchronized (VideoGridFragment.this) {
+                videos = new ArrayList<>(mVideoUriList);
+            }
+            ids = new long[videos.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = videos.get(i).thumbId;
             }
         }
 
         @Override
         protected Integer doInBackground(Integer... params) {
+            long startTime = System.currentTimeMillis(); // 計測ログ用
 
-            for (int i = 0; i < mVideoUriList.size(); i++) {
+            openThumbnailPack(thumbnailDir);
+            loadMetadata(metadataFile, videos, ids);
+            CodecProfileStore.getInstance().load(codecProfileFile);
+            KeyframeIndexStore keyframeStore = KeyframeIndexStore.getInstance();
+            keyframeStore.setDirectory(keyframeDir);
+            keyframeStore.preload(ids);
+            compactThumbnailPack(ids);
 
-                DecoderSurface.VideoData data = null;
+            int instanceLimit = CodecProfileStore.getInstance().getMaxInstances(getMimeTypes());
 
-                synchronized (this) {
-                    if (i < mVideoUriList.size()) {
-                        data = mVideoUriList.get(i);
-                    }
-                }
+            Log.d(TAG, "startup prepared videos:" + videos.size()
+                    + " cost:" + (System.currentTimeMillis() - startTime));
 
-                if (data != null) {
-                    mThumbnailCache.getBitmapFromMemCache(data);
-                }
+            return instanceLimit;
+        }
 
-                publishProgress(i);
+        @Override
+        protected void onPostExecute(Integer result) {
+
+            if (!isCancelled() && getActivity() != null) {
+                mQueueManager.setDecoderInstanceLimit(result);
             }
+        }
 
-            return 0;
+        /**
+         * @return 動画リストに含まれるMIMEタイプ。メタデータが無い動画はPRIMARY_MIME_TYPEとみなす
+         */
+        private HashSet<String> getMimeTypes() {
+            HashSet<String> mimeTypes = new HashSet<>();
+
+            for (DecoderSurface.VideoData data : videos) {
+                VideoMetadataStore.VideoMetadata metadata = data.metadata;
+                mimeTypes.add(metadata != null ? metadata.mimeType : PRIMARY_MIME_TYPE);
+            }
+            return mimeTypes;
+        }
+    }
+
+    /**
+     * サムネイルのメモリキャッシュ<br>
+     * メモリに無いサムネイルはパックファイルから読み込み、そこにも無ければ作成してパックファイルに追記する。
+     * サムネイルはセルの短辺に合わせて縮小して保持する。
+     * パックファイルから読み込む際は、追い出したBitmapの領域を再利用する
+     */
+    private static class ThumbnailCache extends BitmapLruCache<DecoderSurface.VideoData> {
+        /** パックファイルに格納する際のJPEGの品質 */
+        private static final int PACK_QUALITY = 85;
+        private Context context;
+        /** セルのサイズ。サムネイルの短辺をこのサイズまで縮小する */
+        private final int cellSize;
+        /** 保持するBitmapの形式 */
+        private final Bitmap.Config config;
+
+        /** 計測ログ用 MINI_KINDから作成した数 */
+        private int loadCount;
+        /** 計測ログ用 作成した際の、縮小前のバイト数の合計 */
+        private long sourceBytes;
+        /** 計測ログ用 パックファイルから展開した数。格納済みの画像は縮小後なので、sourceBytesには含めない */
+        private int packHitCount;
+        /** 計測ログ用 保持したバイト数の合計。パックファイルから展開したものを含む */
+        private long cachedBytes;
+
+        /**
+         * @param context Context
+         * @param pool 追い出したBitmapの格納先
+         * @param cacheSize キャッシュのバイト数
+         * @param cellSize セルのサイズ
+         * @param config 保持するBitmapの形式 ARGB_8888|RGB_565
+         */
+        ThumbnailCache(Context context, BitmapPool pool, int cacheSize,
+                       int cellSize, Bitmap.Config config) {
+            super(cacheSize, pool);
+            this.context = context;
+            this.cellSize = cellSize;
+            this.config = config;
         }
 
         @Override
-        protected void onPostExecute(Integer result) {
+        protected Bitmap createBitmap(DecoderSurface.VideoData data) {
+            ThumbnailPackCache pack = ThumbnailPackCache.getInstance();
 
-            if (progress.isShowing()) {
-                try {
-                    progress.dismiss();
-                } catch (Exception e) {
-                    //Do nothing
+            byte[] packed = pack.read(data.thumbId, data.dateModified);
+            if (packed != null) {
+                Bitmap bitmap = decodePacked(packed);
+                if (bitmap != null) {
+                    return bitmap;
                 }
             }
 
-            if (!isCancelled()) {
-                updateGrid();
+            Bitmap thumbnail = makeThumbnail(data);
+
+            if (thumbnail != null) {
+                // 画素のままでは1枚数百KBになるので、圧縮して格納する
+                ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+                if (thumbnail.compress(Bitmap.CompressFormat.JPEG, PACK_QUALITY, out)) {
+                    pack.write(data.thumbId, data.dateModified, out.toByteArray());
+                }
             }
+
+            return thumbnail;
         }
 
-        @Override
-        protected void onProgressUpdate(Integer... values) {
+        /**
+         * 1件あたりのバイト数と、1MBあたりの件数をログに出力する
+         */
+        synchronized void dumpStats() {
+            int totalCount = loadCount + packHitCount;
+            if (totalCount == 0) {
+                return;
+            }
 
-            String message = String.format(Locale.getDefault(),
-                    "Making video thumbnails %d / %d", values[0], mVideoUriList.size());
+            Log.d(TAG, String.format(Locale.US,
+                    "thumbnail cache entries/MB source:%.1f cached:%.1f avg(KB) source:%d cached:%d"
+                            + " made:%d pack hits:%d budget(MB):%d cell:%d %s",
+                    loadCount > 0 ? loadCount * 1024f * 1024f / sourceBytes : 0f,
+                    totalCount * 1024f * 1024f / cachedBytes,
+                    loadCount > 0 ? sourceBytes / loadCount / 1024 : 0,
+                    cachedBytes / totalCount / 1024, loadCount, packHitCount,
+                    mCache.maxSize() / 1024 / 1024, cellSize, config));
+        }
 
-            progress.setMessage(message);
+        private synchronized void recordLoad(int srcWidth, int srcHeight, Bitmap bitmap) {
+            loadCount++;
+            sourceBytes += srcWidth * srcHeight * 4; // MINI_KINDをARGB_8888のまま保持した場合
+            cachedBytes += bitmap.getByteCount();
         }
 
-        private void updateGrid() {
-            Context context = getActivity().getApplicationContext();
-            GridAdapter adapter = new GridAdapter(context, mColCount);
-            mVideoList.setAdapter(adapter);
+        private synchronized void recordPackHit(Bitmap bitmap) {
+            packHitCount++;
+            cachedBytes += bitmap.getByteCount();
         }
-    }
 
-    private static class ThumbnailCache extends BitmapLruCache<DecoderSurface.VideoData> {
-        private static final int CACHE_SIZE = 64 * 1024 * 1024;
-        private Context context;
+        /**
+         * パックファイルのサムネイルを展開する<br>
+         * 格納時よりセルが小さければ間引いて展開する。間引かない場合、同じサイズのBitmapがプールにあればその領域に展開する
+         *
+         * @return 格納されたサムネイルがセルより小さい、または展開できなければnull
+         */
+        private Bitmap decodePacked(byte[] packed) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(packed, 0, packed.length, options);
+
+            int shortSide = Math.min(options.outWidth, options.outHeight);
+            if (shortSide < cellSize) {
+                return null; // 列数を減らした場合は作成し直す
+            }
 
-        ThumbnailCache(Context context) {
-            super(CACHE_SIZE);
-            this.context = context;
+            options.inJustDecodeBounds = false;
+            options.inMutable = true;
+            options.inSampleSize = 1;
+            while (shortSide / (options.inSampleSize * 2) >= cellSize) {
+                options.inSampleSize *= 2;
+            }
+            options.inPreferredConfig = config;
+
+            // API 19未満では、間引く場合はinBitmapを使えない
+            if (options.inSampleSize == 1) {
+                options.inBitmap = mPool.get(options.outWidth, options.outHeight, config);
+            }
+
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeByteArray(packed, 0, packed.length, options);
+            } catch (IllegalArgumentException e) {
+                // 再利用できなかったので新しく確保する
+                mPool.put(options.inBitmap);
+                options.inBitmap = null;
+                bitmap = BitmapFactory.decodeByteArray(packed, 0, packed.length, options);
+            }
+
+            if (bitmap != null) {
+                recordPackHit(bitmap);
+            }
+
+            return bitmap;
         }
 
-        @Override
-        protected Bitmap createBitmap(DecoderSurface.VideoData data) {
+        private Bitmap makeThumbnail(DecoderSurface.VideoData data) {
             ContentResolver resolver = context.getContentResolver();
             //MediaStoreから取得
             Bitmap thumbnail = MediaStore.Video.Thumbnails.getThumbnail(resolver, data.thumbId,
@@ -588,7 +1177,47 @@ public class VideoGridFragment extends Fragment
                         data.videoUri.getPath(), Images.Thumbnails.MINI_KIND);
             }
 
-            return thumbnail;
+            if (thumbnail == null) {
+                return null;
+            }
+
+            int srcWidth = thumbnail.getWidth();
+            int srcHeight = thumbnail.getHeight();
+            Bitmap scaled = scaleToCell(thumbnail);
+            recordLoad(srcWidth, srcHeight, scaled);
+
+            return scaled;
+        }
+
+        /**
+         * CENTER_CROPで表示するので、短辺がセルのサイズになるまで縮小し、保持する形式に変換する
+         */
+        private Bitmap scaleToCell(Bitmap src) {
+            Bitmap bitmap = src;
+            int shortSide = Math.min(src.getWidth(), src.getHeight());
+
+            if (shortSide > cellSize) {
+                float scale = (float) cellSize / shortSide;
+                bitmap = Bitmap.createScaledBitmap(src,
+                        Math.max(cellSize, Math.round(src.getWidth() * scale)),
+                        Math.max(cellSize, Math.round(src.getHeight() * scale)), true);
+            }
+
+            if (bitmap.getConfig() != config) {
+                Bitmap converted = bitmap.copy(config, true);
+                if (converted != null) {
+                    if (bitmap != src) {
+                        bitmap.recycle();
+                    }
+                    bitmap = converted;
+                }
+            }
+
+            if (bitmap != src) {
+                src.recycle();
+            }
+
+            return bitmap;
         }
     }
 
@@ -0,0 +1,338 @@
+package com.ficklerobot.gridvideoviewer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 動画のメタデータの索引<br>
+ * MediaStoreのID・ファイルサイズ・更新日時をキーに、再生に必要なメタデータをファイルに保存する。
+ * 読み込んだ索引はID順の配列で保持し、二分探索で引く。ファイルサイズか更新日時が変わった動画は再取得する<br>
+ * ファイルの入出力にAndroidのAPIを使わないため、Androidに依存せずに動作を確認できる
+ */
+class VideoMetadataStore {
+    private static final int FILE_MAGIC = 0x564d4449; // "VMDI"
+    private static final int FILE_VERSION = 1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** 保存先ファイル null:未読み込み */
+    private File mFile;
+    private boolean mIsDirty;
+
+    /** 登録数 */
+    private int mCount;
+    /** MediaStoreのID。昇順に並べる */
+    private long[] mIds = new long[INITIAL_CAPACITY];
+    private long[] mSizes = new long[INITIAL_CAPACITY];
+    private long[] mDateModifieds = new long[INITIAL_CAPACITY];
+    private int[] mWidths = new int[INITIAL_CAPACITY];
+    private int[] mHeights = new int[INITIAL_CAPACITY];
+    private short[] mRotations = new short[INITIAL_CAPACITY];
+    private short[] mDecoderRotations = new short[INITIAL_CAPACITY];
+    private long[] mDurationsUs = new long[INITIAL_CAPACITY];
+    private float[] mFrameRates = new float[INITIAL_CAPACITY];
+    /** mMimeTypesのインデックス */
+    private byte[] mMimeIndexes = new byte[INITIAL_CAPACITY];
+    /** MIMEタイプの一覧。種類は少ないので1バイトのインデックスで参照する */
+    private final ArrayList<String> mMimeTypes = new ArrayList<>();
+
+    private static VideoMetadataStore sMe;
+
+    private VideoMetadataStore() {
+    }
+
+    static synchronized VideoMetadataStore getInstance() {
+        if (sMe == null) {
+            sMe = new VideoMetadataStore();
+        }
+        return sMe;
+    }
+
+    /**
+     * ファイルから索引を読み込む<br>
+     * 同じファイルを読み込み済みであれば何もしない。読み込みに失敗した場合は空の索引になる
+     *
+     * @param file 保存先ファイル
+     */
+    synchronized void load(File file) {
+        if (file.equals(mFile)) {
+            return;
+        }
+
+        mFile = file;
+        mCount = 0;
+        mMimeTypes.clear();
+        mIsDirty = false;
+
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                return;
+            }
+
+            int mimeCount = in.readUnsignedByte();
+            for (int i = 0; i < mimeCount; i++) {
+                mMimeTypes.add(in.readUTF());
+            }
+
+            int count = in.readInt();
+            ensureCapacity(count);
+
+            for (int i = 0; i < count; i++) {
+                mIds[i] = in.readLong();
+                mSizes[i] = in.readLong();
+                mDateModifieds[i] = in.readLong();
+                mWidths[i] = in.readInt();
+                mHeights[i] = in.readInt();
+                mRotations[i] = in.readShort();
+                mDecoderRotations[i] = in.readShort();
+                mDurationsUs[i] = in.readLong();
+                mFrameRates[i] = in.readFloat();
+                mMimeIndexes[i] = in.readByte();
+            }
+            mCount = count;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            mCount = 0;
+            mMimeTypes.clear();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 変更があれば索引をファイルに書き込む<br>
+     * 一時ファイルに書き込んでから置き換えるので、途中で失敗しても前回の内容が残る
+     */
+    synchronized void save() {
+        if (mFile == null || !mIsDirty) {
+            return;
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean isOk = false;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+
+            out.writeByte(mMimeTypes.size());
+            for (String mime : mMimeTypes) {
+                out.writeUTF(mime);
+            }
+
+            out.writeInt(mCount);
+            for (int i = 0; i < mCount; i++) {
+                out.writeLong(mIds[i]);
+                out.writeLong(mSizes[i]);
+                out.writeLong(mDateModifieds[i]);
+                out.writeInt(mWidths[i]);
+                out.writeInt(mHeights[i]);
+                out.writeShort(mRotations[i]);
+                out.writeShort(mDecoderRotations[i]);
+                out.writeLong(mDurationsUs[i]);
+                out.writeFloat(mFrameRates[i]);
+                out.writeByte(mMimeIndexes[i]);
+            }
+
+            out.close();
+            out = null;
+            isOk = tmpFile.renameTo(mFile);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+
+        if (isOk) {
+            mIsDirty = false;
+        } else {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * @param id MediaStoreのID
+     * @param size ファイルサイズ
+     * @param dateModified 更新日時
+     * @return 登録されていない、またはファイルが変更されていればnull
+     */
+    synchronized VideoMetadata get(long id, long size, long dateModified) {
+        int index = Arrays.binarySearch(mIds, 0, mCount, id);
+
+        if (index < 0 || mSizes[index] != size || mDateModifieds[index] != dateModified) {
+            return null;
+        }
+
+        return new VideoMetadata(mWidths[index], mHeights[index], mRotations[index],
+                mDecoderRotations[index], mDurationsUs[index], mFrameRates[index],
+                mMimeTypes.get(mMimeIndexes[index] & 0xff));
+    }
+
+    /**
+     * メタデータを登録する。同じIDのものがあれば上書きする
+     *
+     * @param id MediaStoreのID
+     * @param size ファイルサイズ
+     * @param dateModified 更新日時
+     * @param metadata メタデータ
+     */
+    synchronized void put(long id, long size, long dateModified, VideoMetadata metadata) {
+        int mimeIndex = mMimeTypes.indexOf(metadata.mimeType);
+        if (mimeIndex < 0) {
+            if (mMimeTypes.size() >= 0xff) {
+                return; // 想定外に種類が多い場合は登録しない
+            }
+            mMimeTypes.add(metadata.mimeType);
+            mimeIndex = mMimeTypes.size() - 1;
+        }
+
+        int index = Arrays.binarySearch(mIds, 0, mCount, id);
+
+        if (index < 0) {
+            index = -(index + 1);
+            ensureCapacity(mCount + 1);
+            shift(index, index + 1, mCount - index);
+            mCount++;
+        }
+
+        mIds[index] = id;
+        mSizes[index] = size;
+        mDateModifieds[index] = dateModified;
+        mWidths[index] = metadata.width;
+        mHeights[index] = metadata.height;
+        mRotations[index] = (short) metadata.rotation;
+        mDecoderRotations[index] = (short) metadata.decoderRotation;
+        mDurationsUs[index] = metadata.durationUs;
+        mFrameRates[index] = metadata.frameRate;
+        mMimeIndexes[index] = (byte) mimeIndex;
+
+        mIsDirty = true;
+    }
+
+    /**
+     * 指定したID以外の登録を削除する。MediaStoreから削除された動画を索引から除くために使う
+     *
+     * @param ids 残すID
+     */
+    synchronized void retain(long[] ids) {
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+
+        int dst = 0;
+        for (int src = 0; src < mCount; src++) {
+            if (Arrays.binarySearch(sorted, mIds[src]) >= 0) {
+                if (dst != src) {
+                    shift(src, dst, 1);
+                }
+                dst++;
+            }
+        }
+
+        if (dst != mCount) {
+            mCount = dst;
+            mIsDirty = true;
+        }
+    }
+
+    synchronized int size() {
+        return mCount;
+    }
+
+    private void shift(int src, int dst, int length) {
+        System.arraycopy(mIds, src, mIds, dst, length);
+        System.arraycopy(mSizes, src, mSizes, dst, length);
+        System.arraycopy(mDateModifieds, src, mDateModifieds, dst, length);
+        System.arraycopy(mWidths, src, mWidths, dst, length);
+        System.arraycopy(mHeights, src, mHeights, dst, length);
+        System.arraycopy(mRotations, src, mRotations, dst, length);
+        System.arraycopy(mDecoderRotations, src, mDecoderRotations, dst, length);
+        System.arraycopy(mDurationsUs, src, mDurationsUs, dst, length);
+        System.arraycopy(mFrameRates, src, mFrameRates, dst, length);
+        System.arraycopy(mMimeIndexes, src, mMimeIndexes, dst, length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mIds.length) {
+            return;
+        }
+
+        int newLength = Math.max(capacity, mIds.length * 2);
+        mIds = Arrays.copyOf(mIds, newLength);
+        mSizes = Arrays.copyOf(mSizes, newLength);
+        mDateModifieds = Arrays.copyOf(mDateModifieds, newLength);
+        mWidths = Arrays.copyOf(mWidths, newLength);
+        mHeights = Arrays.copyOf(mHeights, newLength);
+        mRotations = Arrays.copyOf(mRotations, newLength);
+        mDecoderRotations = Arrays.copyOf(mDecoderRotations, newLength);
+        mDurationsUs = Arrays.copyOf(mDurationsUs, newLength);
+        mFrameRates = Arrays.copyOf(mFrameRates, newLength);
+        mMimeIndexes = Arrays.copyOf(mMimeIndexes, newLength);
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //Do nothing
+            }
+        }
+    }
+
+    /**
+     * 1つの動画のメタデータ
+     */
+    static class VideoMetadata {
+        /** 動画トラックの幅 */
+        final int width;
+        /** 動画トラックの高さ */
+        final int height;
+        /** コンテナに記録された回転角(度) */
+        final int rotation;
+        /** デコーダが出力時に回転する角度(MediaFormatのrotation-degrees) 0:回転しない */
+        final int decoderRotation;
+        /** 再生時間(マイクロ秒) 0:不明 */
+        final long durationUs;
+        /** フレームレート 0:不明 */
+        final float frameRate;
+        /** 動画トラックのMIMEタイプ */
+        final String mimeType;
+
+        VideoMetadata(int width, int height, int rotation, int decoderRotation,
+                      long durationUs, float frameRate, String mimeType) {
+            this.width = width;
+            this.height = height;
+            this.rotation = rotation;
+            this.decoderRotation = decoderRotation;
+            this.durationUs = durationUs;
+            this.frameRate = frameRate;
+            this.mimeType = mimeType;
+        }
+
+        @Override
+        public String toString() {
+            return mimeType + " " + width + "x" + height + " rotation:" + rotation
+                    + "/" + decoderRotation + " duration(ms):" + durationUs / 1000
+                    + " fps:" + frameRate;
+        }
+    }
+}
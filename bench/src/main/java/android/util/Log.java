@@ -0,0 +1,25 @@
+package android.util;
+
+/**
+ * 計測用のandroid.util.Logの代わり<br>
+ * アプリのソースをそのままコンパイルするために置く。計測に影響しないよう何も出力しない
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+
+    private Log() {
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return false;
+    }
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+}
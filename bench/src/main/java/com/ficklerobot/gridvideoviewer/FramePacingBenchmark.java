@@ -0,0 +1,61 @@
+package com.ficklerobot.gridvideoviewer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * フレームの表示タイミングの正確さ<br>
+ * デコードが十分速い状態でセルを再生し、ワーカーの待機と復帰によって表示予定時刻からどれだけ遅れるかを計る。
+ * 結果は補助カウンタのdriftAvgUs・driftMaxUs・droppedを見る
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FramePacingBenchmark {
+    /** 1回の計測で再生する時間(ミリ秒) */
+    private static final long RUN_MS = 2000;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Drift {
+        public long driftAvgUs;
+        public long driftMaxUs;
+        public long dropped;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Config {
+        @Param({"1", "4"})
+        public int cellCount;
+
+        @Param({"30", "60"})
+        public int frameRate;
+    }
+
+    @Benchmark
+    public void pace(Config config, Drift drift) throws InterruptedException {
+        SyntheticDecoder.Factory factory = new SyntheticDecoder.Factory(config.cellCount,
+                1000 * 1000, 2000 * 1000, 0, 0, 1);
+        GridSimulation simulation = new GridSimulation(config.cellCount, config.cellCount, 0,
+                factory, config.frameRate);
+
+        simulation.run(RUN_MS);
+
+        drift.driftAvgUs = simulation.getAverageDriftNs() / 1000;
+        drift.driftMaxUs = simulation.getMaxDriftNs() / 1000;
+        drift.dropped = simulation.getDroppedFrames();
+    }
+}
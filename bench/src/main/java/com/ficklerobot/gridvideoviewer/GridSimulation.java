@@ -0,0 +1,171 @@
+package com.ficklerobot.gridvideoviewer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 合成したデコーダでグリッドの同時再生を一定時間実行する<br>
+ * セルごとにアプリと同じDecodeSessionを作り、読み込み元とデコーダだけをSyntheticResourcesで差し替える。
+ * DecodeQueueManagerは実行ごとに作り直し、DecodeEngineはアプリと同じくプロセスで1つを使い回す
+ */
+class GridSimulation {
+    /** 止めたセルがワーカーから外れるまで待つ時間の上限(ミリ秒) */
+    private static final long STOP_TIMEOUT_MS = 5000;
+
+    private final DecodeSession[] mSessions;
+    private final PlaybackItem[] mItems;
+    private final SyntheticDecoder.Factory mDecoderFactory;
+    /** セルごとの表示フレーム数 */
+    private final AtomicLongArray mRenderedFrames;
+
+    private long mElapsedNs;
+
+    /**
+     * @param cellCount セル数
+     * @param maxRunCount 同時再生数
+     * @param quantumMs ラウンドロビンの割り当て時間(ミリ秒) 0:時間で区切らない
+     * @param decoderFactory デコーダの生成元
+     * @param frameRate 動画のフレームレート
+     */
+    GridSimulation(int cellCount, int maxRunCount, long quantumMs,
+                   SyntheticDecoder.Factory decoderFactory, int frameRate) {
+        DecodeQueueManager queueManager = new DecodeQueueManager();
+        queueManager.setMaxRunCount(maxRunCount);
+        queueManager.setRoundRobinQuantum(quantumMs, 0);
+
+        this.mDecoderFactory = decoderFactory;
+        this.mRenderedFrames = new AtomicLongArray(cellCount);
+        this.mSessions = new DecodeSession[cellCount];
+        this.mItems = new PlaybackItem[cellCount];
+
+        for (int i = 0; i < cellCount; i++) {
+            SyntheticResources resources = new SyntheticResources(i, decoderFactory,
+                    new SyntheticSampleSource(frameRate, frameRate, 4 * 1024), queueManager);
+
+            mSessions[i] = new DecodeSession(i, resources, new CellSink(i), queueManager,
+                    DecodeQueueManager.PRIORITY_VISIBLE, false);
+            mItems[i] = new PlaybackItem();
+        }
+    }
+
+    /**
+     * 全てのセルを再生し、durationMsの後に止めて全てのセルがワーカーから外れるまで待つ
+     *
+     * @param durationMs 再生する時間(ミリ秒)
+     */
+    void run(long durationMs) throws InterruptedException {
+        long startNs = System.nanoTime();
+
+        for (int i = 0; i < mSessions.length; i++) {
+            mSessions[i].setVideoData(mItems[i]);
+        }
+
+        Thread.sleep(durationMs);
+
+        for (DecodeSession session : mSessions) {
+            session.stopDecode();
+        }
+        mElapsedNs = System.nanoTime() - startNs;
+
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+        for (DecodeSession session : mSessions) {
+            while (session.isAttached()) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException(
+                            "Cell is not detached. id:" + session.getSurfaceNumber());
+                }
+                Thread.sleep(1);
+            }
+        }
+
+        if (mDecoderFactory.getActiveCount() != 0) {
+            throw new IllegalStateException(
+                    "Decoders are not released. count:" + mDecoderFactory.getActiveCount());
+        }
+    }
+
+    long getRenderedFrames() {
+        long sum = 0;
+        for (int i = 0; i < mRenderedFrames.length(); i++) {
+            sum += mRenderedFrames.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * @return 全セル合計の、1秒あたりの表示フレーム数
+     */
+    double getFramesPerSecond() {
+        return mElapsedNs == 0 ? 0 : getRenderedFrames() * 1e9 / mElapsedNs;
+    }
+
+    long getDroppedFrames() {
+        long sum = 0;
+        for (DecodeSession session : mSessions) {
+            sum += session.getPacer().getDroppedCount();
+        }
+        return sum;
+    }
+
+    /**
+     * @return デコーダの用意・デコードに失敗した回数
+     */
+    long getFailures() {
+        return mDecoderFactory.getFailureCount();
+    }
+
+    /**
+     * @return 表示したフレームの、表示予定時刻からの平均の遅れ(ナノ秒)
+     */
+    long getAverageDriftNs() {
+        long sum = 0;
+        long count = 0;
+        for (DecodeSession session : mSessions) {
+            FramePacer pacer = session.getPacer();
+            sum += pacer.getAverageDriftNs() * pacer.getRenderedCount();
+            count += pacer.getRenderedCount();
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @return 表示したフレームの、表示予定時刻からの最大の遅れ(ナノ秒)
+     */
+    long getMaxDriftNs() {
+        long max = 0;
+        for (DecodeSession session : mSessions) {
+            max = Math.max(max, session.getPacer().getMaxDriftNs());
+        }
+        return max;
+    }
+
+    /**
+     * 1つのセルの表示フレーム数を数えるFrameSink
+     */
+    private class CellSink implements FrameSink {
+        private final int mCell;
+
+        CellSink(int cell) {
+            this.mCell = cell;
+        }
+
+        @Override
+        public void onReady() {
+            // nop
+        }
+
+        @Override
+        public void onStarted() {
+            // nop
+        }
+
+        @Override
+        public void onFrame(long ptsUs, long renderNs) {
+            mRenderedFrames.incrementAndGet(mCell);
+        }
+
+        @Override
+        public void onFailure(String message) {
+            // nop
+        }
+    }
+}
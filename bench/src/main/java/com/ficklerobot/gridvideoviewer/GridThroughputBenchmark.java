@@ -0,0 +1,79 @@
+package com.ficklerobot.gridvideoviewer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * N個のセルを同時再生した場合の、全体の表示フレーム数<br>
+ * デコーダのインスタンス数の上限・デコード時間・失敗の発生率を合成したデコーダで与え、
+ * 再生枠の割り当てからフレームの表示までをアプリと同じクラスで動かす。
+ * 結果は補助カウンタのfps・dropped・failuresを見る
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class GridThroughputBenchmark {
+    /** 1回の計測で再生する時間(ミリ秒) */
+    private static final long RUN_MS = 3000;
+    private static final int FRAME_RATE = 30;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Throughput {
+        public double fps;
+        public long dropped;
+        public long failures;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Config {
+        @Param({"4", "16", "64"})
+        public int cellCount;
+
+        @Param({"4"})
+        public int maxRunCount;
+
+        /** 端末のハードウェアデコーダの数に当たる */
+        @Param({"4"})
+        public int maxInstances;
+
+        /** 1フレームのデコード時間(マイクロ秒) */
+        @Param({"5000", "20000"})
+        public long decodeUs;
+
+        @Param({"0", "0.001"})
+        public double failureRate;
+
+        /** ラウンドロビンの割り当て時間(ミリ秒) */
+        @Param({"500"})
+        public long quantumMs;
+    }
+
+    @Benchmark
+    public void play(Config config, Throughput result) throws InterruptedException {
+        SyntheticDecoder.Factory factory = new SyntheticDecoder.Factory(config.maxInstances,
+                config.decodeUs * 1000, config.decodeUs * 1000 * 3, config.decodeUs * 200,
+                config.failureRate, 1);
+        GridSimulation simulation = new GridSimulation(config.cellCount, config.maxRunCount,
+                config.quantumMs, factory, FRAME_RATE);
+
+        simulation.run(RUN_MS);
+
+        result.fps = simulation.getFramesPerSecond();
+        result.dropped = simulation.getDroppedFrames();
+        result.failures = simulation.getFailures();
+    }
+}
@@ -0,0 +1,116 @@
+package com.ficklerobot.gridvideoviewer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DecodeQueueManagerの再生枠の割り当て性能<br>
+ * 1回の操作で、最も古くに再生枠を得たセルが再生を終えて並び直し、待ちキューの先頭に再生枠が渡る
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueGrantBenchmark {
+
+    @Param({"9", "36", "144"})
+    public int cellCount;
+
+    @Param({"3", "8"})
+    public int maxRunCount;
+
+    private DecodeQueueManager mQueueManager;
+    /** 再生枠を得た順のセル */
+    private final ArrayDeque<DecodeTask> mRunning = new ArrayDeque<>();
+
+    @Setup
+    public void setup() {
+        mQueueManager = new DecodeQueueManager();
+        mQueueManager.setMaxRunCount(maxRunCount);
+        mRunning.clear();
+
+        for (int i = 0; i < cellCount; i++) {
+            mQueueManager.offerDecoder(new GrantRecorder(i));
+        }
+    }
+
+    @Benchmark
+    public int regrant() {
+        DecodeTask task = mRunning.pollFirst();
+
+        mQueueManager.removeDecoder(task);
+        mQueueManager.offerDecoder(task);
+
+        return mRunning.size();
+    }
+
+    /**
+     * 再生枠を得たことを記録するだけのDecodeTask
+     */
+    private class GrantRecorder implements DecodeTask {
+        private final int mSurfaceNumber;
+
+        GrantRecorder(int surfaceNumber) {
+            this.mSurfaceNumber = surfaceNumber;
+        }
+
+        @Override
+        public int getSurfaceNumber() {
+            return mSurfaceNumber;
+        }
+
+        @Override
+        public int getDisplayPriority() {
+            return DecodeQueueManager.PRIORITY_VISIBLE;
+        }
+
+        @Override
+        public void setDisplayPriority(int displayPriority) {
+            // nop
+        }
+
+        @Override
+        public void onGranted(long waitNs) {
+            mRunning.addLast(this);
+        }
+
+        @Override
+        public void suspend() {
+            mRunning.remove(this);
+        }
+
+        @Override
+        public void releaseSuspended() {
+            // nop
+        }
+
+        @Override
+        public void setWorker(DecodeEngine.Worker worker) {
+            // nop
+        }
+
+        @Override
+        public long step(long nowNs) {
+            return DETACH;
+        }
+
+        @Override
+        public void onDetached() {
+            // nop
+        }
+    }
+}
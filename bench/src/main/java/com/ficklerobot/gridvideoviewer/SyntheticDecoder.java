@@ -0,0 +1,215 @@
+package com.ficklerobot.gridvideoviewer;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * デコードに時間がかかる様子だけを模したVideoDecoder<br>
+ * 入力されたサンプルは、1つ前のサンプルのデコードが終わってから所定の時間後に出力される。
+ * 生成はFactoryから行い、同時に存在できるインスタンス数と、デコード中の失敗の発生率を指定できる<br>
+ * 定常状態ではメモリを確保しない。1つのスレッドから呼び出すこと
+ */
+class SyntheticDecoder implements VideoDecoder {
+    /** 入出力に使うバッファ数 */
+    private static final int BUFFER_COUNT = 4;
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int SLOT_FREE = 0;
+    /** 入力用に呼び出し元に渡した */
+    private static final int SLOT_INPUT = 1;
+    /** デコード中 */
+    private static final int SLOT_DECODING = 2;
+    /** 出力として呼び出し元に渡した */
+    private static final int SLOT_OUTPUT = 3;
+
+    private final Factory mFactory;
+    private final int mSurfaceNumber;
+    private final Random mRandom;
+
+    private final ByteBuffer[] mBuffers = new ByteBuffer[BUFFER_COUNT];
+    private final int[] mStates = new int[BUFFER_COUNT];
+    private final long[] mPtsUs = new long[BUFFER_COUNT];
+    private final int[] mFlags = new int[BUFFER_COUNT];
+    private final long[] mReadyNs = new long[BUFFER_COUNT];
+    /** デコード中のバッファの番号。入力順に出力する */
+    private final int[] mDecodeOrder = new int[BUFFER_COUNT];
+    private int mDecodeHead;
+    private int mDecodeCount;
+    /** 最後に入力したサンプルのデコードが終わる時刻(ナノ秒) */
+    private long mLastReadyNs;
+    private boolean mIsReleased;
+
+    private SyntheticDecoder(Factory factory, int surfaceNumber) {
+        this.mFactory = factory;
+        this.mSurfaceNumber = surfaceNumber;
+        this.mRandom = new Random(factory.mSeed + surfaceNumber);
+
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mBuffers[i] = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            if (mStates[i] == SLOT_FREE) {
+                mStates[i] = SLOT_INPUT;
+                return i;
+            }
+        }
+        return INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = mBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+                                 int flags) {
+        if (mStates[index] != SLOT_INPUT) {
+            throw new IllegalStateException("Buffer is not dequeued. :" + index);
+        }
+
+        long costNs = (flags & BUFFER_FLAG_KEY_FRAME) != 0
+                ? mFactory.mKeyFrameDecodeNs : mFactory.mDecodeNs;
+        if (mFactory.mJitterNs > 0) {
+            costNs += (long) (mRandom.nextDouble() * mFactory.mJitterNs);
+        }
+
+        long readyNs = Math.max(System.nanoTime(), mLastReadyNs) + costNs;
+        mLastReadyNs = readyNs;
+
+        mStates[index] = SLOT_DECODING;
+        mPtsUs[index] = presentationTimeUs;
+        mFlags[index] = flags & ~BUFFER_FLAG_KEY_FRAME;
+        mReadyNs[index] = readyNs;
+        mDecodeOrder[(mDecodeHead + mDecodeCount) % BUFFER_COUNT] = index;
+        mDecodeCount++;
+    }
+
+    /**
+     * @throws IllegalStateException 失敗を発生させた場合
+     */
+    @Override
+    public int dequeueOutputBuffer(OutputInfo info, long timeoutUs) {
+        if (mDecodeCount == 0) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+
+        int index = mDecodeOrder[mDecodeHead];
+        if (mReadyNs[index] > System.nanoTime()) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+
+        if (mFactory.mFailureRate > 0 && mRandom.nextDouble() < mFactory.mFailureRate) {
+            mFactory.countFailure();
+            throw new IllegalStateException("Injected decoder failure. id:" + mSurfaceNumber);
+        }
+
+        mDecodeHead = (mDecodeHead + 1) % BUFFER_COUNT;
+        mDecodeCount--;
+
+        mStates[index] = SLOT_OUTPUT;
+        info.size = 0;
+        info.presentationTimeUs = mPtsUs[index];
+        info.flags = mFlags[index];
+
+        return index;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mStates[index] = SLOT_FREE;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        mStates[index] = SLOT_FREE;
+    }
+
+    @Override
+    public void flush() {
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mStates[i] = SLOT_FREE;
+        }
+        mDecodeHead = 0;
+        mDecodeCount = 0;
+        mLastReadyNs = 0;
+    }
+
+    /**
+     * デコーダを破棄し、Factoryのインスタンス数の枠を空ける
+     */
+    void release() {
+        if (!mIsReleased) {
+            mIsReleased = true;
+            mFactory.mActiveCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * SyntheticDecoderの生成と、同時に存在できるインスタンス数の管理
+     */
+    static class Factory {
+        private final int mMaxInstances;
+        private final long mDecodeNs;
+        private final long mKeyFrameDecodeNs;
+        private final long mJitterNs;
+        private final double mFailureRate;
+        private final long mSeed;
+        private final AtomicInteger mActiveCount = new AtomicInteger();
+        /** デコーダの用意・デコードに失敗した回数 */
+        private final AtomicInteger mFailureCount = new AtomicInteger();
+
+        /**
+         * @param maxInstances 同時に存在できるインスタンス数。端末のハードウェアデコーダの上限に当たる
+         * @param decodeNs 1フレームのデコード時間(ナノ秒)
+         * @param keyFrameDecodeNs キーフレームのデコード時間(ナノ秒)
+         * @param jitterNs デコード時間に加える揺らぎの最大値(ナノ秒)
+         * @param failureRate 出力を受け取る際にデコードが失敗する確率 0:失敗しない
+         * @param seed 揺らぎと失敗を決める乱数の種
+         */
+        Factory(int maxInstances, long decodeNs, long keyFrameDecodeNs, long jitterNs,
+                double failureRate, long seed) {
+            this.mMaxInstances = maxInstances;
+            this.mDecodeNs = decodeNs;
+            this.mKeyFrameDecodeNs = keyFrameDecodeNs;
+            this.mJitterNs = jitterNs;
+            this.mFailureRate = failureRate;
+            this.mSeed = seed;
+        }
+
+        /**
+         * @param surfaceNumber セルの番号
+         * @return 生成したデコーダ null:インスタンス数の上限に達している
+         */
+        SyntheticDecoder create(int surfaceNumber) {
+            while (true) {
+                int count = mActiveCount.get();
+                if (count >= mMaxInstances) {
+                    return null;
+                }
+                if (mActiveCount.compareAndSet(count, count + 1)) {
+                    return new SyntheticDecoder(this, surfaceNumber);
+                }
+            }
+        }
+
+        int getActiveCount() {
+            return mActiveCount.get();
+        }
+
+        void countFailure() {
+            mFailureCount.incrementAndGet();
+        }
+
+        int getFailureCount() {
+            return mFailureCount.get();
+        }
+    }
+}
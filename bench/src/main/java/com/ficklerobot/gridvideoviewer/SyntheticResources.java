@@ -0,0 +1,82 @@
+package com.ficklerobot.gridvideoviewer;
+
+import java.io.IOException;
+
+/**
+ * 合成したデコーダと読み込み元を渡すDecodeResources<br>
+ * デコーダのインスタンス数が上限に達していれば、アプリのDecoderPoolと同じく
+ * 一時停止中のセッションからデコーダを取り戻してから生成し直す
+ */
+class SyntheticResources implements DecodeResources {
+    static final String MIME_TYPE = "video/avc";
+
+    private final int mSurfaceNumber;
+    private final SyntheticDecoder.Factory mDecoderFactory;
+    private final SampleSource mSource;
+    private final DecodeQueueManager mQueueManager;
+    private SyntheticDecoder mDecoder;
+
+    /**
+     * @param surfaceNumber セルの番号
+     * @param decoderFactory デコーダの生成元
+     * @param source サンプルの読み込み元。開き直しても同じものを使う
+     * @param queueManager 一時停止中のセッションを管理するDecodeQueueManager
+     */
+    SyntheticResources(int surfaceNumber, SyntheticDecoder.Factory decoderFactory,
+                       SampleSource source, DecodeQueueManager queueManager) {
+        this.mSurfaceNumber = surfaceNumber;
+        this.mDecoderFactory = decoderFactory;
+        this.mSource = source;
+        this.mQueueManager = queueManager;
+    }
+
+    @Override
+    public SampleSource openSource(PlaybackItem item, boolean isKeyframeOnly) {
+        mSource.seekTo(0, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+        return mSource;
+    }
+
+    @Override
+    public String getMimeType() {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public VideoDecoder openDecoder(PlaybackItem item) throws IOException {
+        mDecoder = mDecoderFactory.create(mSurfaceNumber);
+
+        while (mDecoder == null && mQueueManager.releaseOldestSuspended()) {
+            mDecoder = mDecoderFactory.create(mSurfaceNumber);
+        }
+
+        if (mDecoder == null) {
+            mDecoderFactory.countFailure();
+            throw new IOException("Decoder instance limit reached. id:" + mSurfaceNumber);
+        }
+
+        return mDecoder;
+    }
+
+    @Override
+    public void markResumed() {
+        // nop
+    }
+
+    @Override
+    public void onFirstFrame(long elapsedNs) {
+        // nop
+    }
+
+    @Override
+    public void releaseDecoder(boolean keepStarted, boolean reusable) {
+        if (mDecoder != null) {
+            mDecoder.release();
+            mDecoder = null;
+        }
+    }
+
+    @Override
+    public void releaseSurface() {
+        // nop
+    }
+}
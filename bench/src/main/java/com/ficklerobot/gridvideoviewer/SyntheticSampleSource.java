@@ -0,0 +1,72 @@
+package com.ficklerobot.gridvideoviewer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一定間隔のサンプルを終わり無く返すSampleSource<br>
+ * gopSize個ごとに1つをキーフレームとし、中身は0で埋めた固定サイズのサンプルとする
+ */
+class SyntheticSampleSource implements SampleSource {
+    private final long mFrameIntervalUs;
+    private final int mGopSize;
+    private final int mSampleSize;
+    private long mIndex;
+
+    /**
+     * @param frameRate フレームレート
+     * @param gopSize キーフレームの間隔(フレーム数)
+     * @param sampleSize 1サンプルのバイト数
+     */
+    SyntheticSampleSource(int frameRate, int gopSize, int sampleSize) {
+        this.mFrameIntervalUs = 1000000 / frameRate;
+        this.mGopSize = gopSize;
+        this.mSampleSize = sampleSize;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        int length = Math.min(mSampleSize, buffer.capacity() - offset);
+
+        buffer.position(offset);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) 0);
+        }
+
+        return length;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mIndex * mFrameIntervalUs;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mIndex % mGopSize == 0 ? SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        mIndex++;
+        return true;
+    }
+
+    /**
+     * SEEK_TO_NEXT_SYNCは指定位置以降の、それ以外は直前のキーフレームに移動する
+     */
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        if (mode == SEEK_TO_NEXT_SYNC) {
+            long index = Math.max(0, (timeUs + mFrameIntervalUs - 1) / mFrameIntervalUs);
+            mIndex = (index + mGopSize - 1) / mGopSize * mGopSize;
+        } else {
+            long index = Math.max(0, timeUs / mFrameIntervalUs);
+            mIndex = index - index % mGopSize;
+        }
+    }
+
+    @Override
+    public void release() {
+        // nop
+    }
+}
@@ -0,0 +1,174 @@
+package com.ficklerobot.gridvideoviewer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ConcurrencyControllerのAIMDによる同時再生数の増減
+ */
+public class ConcurrencyControllerTest {
+    private static final long LATE_MS = ConcurrencyController.LATE_THRESHOLD_MS + 1;
+    private static final long COOLDOWN_NS = ConcurrencyController.INCREASE_COOLDOWN_NS;
+
+    /**
+     * 1判定期間分のフレームを与える
+     *
+     * @param lateFrames 遅延フレームの数。期間の先頭に置く
+     * @return 最後のonFrame()の戻り値
+     */
+    private static boolean feedWindow(ConcurrencyController controller, int lateFrames,
+                                      boolean saturated, long nowNs) {
+        boolean changed = false;
+        for (int i = 0; i < ConcurrencyController.WINDOW_FRAMES; i++) {
+            changed = controller.onFrame(i < lateFrames ? LATE_MS : 0, saturated, nowNs);
+        }
+        return changed;
+    }
+
+    @Test
+    public void increasesByOnePerSaturatedWindowUpToMax() {
+        ConcurrencyController controller = new ConcurrencyController(1, 6, 4);
+
+        assertTrue(feedWindow(controller, 0, true, 0));
+        assertEquals(5, controller.getLimit());
+
+        assertTrue(feedWindow(controller, 0, true, 0));
+        assertEquals(6, controller.getLimit());
+
+        assertFalse(feedWindow(controller, 0, true, 0));
+        assertEquals(6, controller.getLimit());
+    }
+
+    @Test
+    public void decidesOnlyAtWindowEnd() {
+        ConcurrencyController controller = new ConcurrencyController(1, 6, 4);
+
+        for (int i = 0; i < ConcurrencyController.WINDOW_FRAMES - 1; i++) {
+            assertFalse(controller.onFrame(0, true, 0));
+        }
+        assertEquals(4, controller.getLimit());
+
+        assertTrue(controller.onFrame(0, true, 0));
+        assertEquals(5, controller.getLimit());
+    }
+
+    @Test
+    public void doesNotIncreaseWithoutWaiters() {
+        ConcurrencyController controller = new ConcurrencyController(1, 6, 4);
+
+        assertFalse(feedWindow(controller, 0, false, 0));
+        assertEquals(4, controller.getLimit());
+    }
+
+    @Test
+    public void decreasesMultiplicativelyWhenTooManyFramesAreLate() {
+        ConcurrencyController controller = new ConcurrencyController(1, 10, 10);
+        int lateLimit = (int) (ConcurrencyController.WINDOW_FRAMES
+                * ConcurrencyController.LATE_RATIO_LIMIT);
+
+        // 割合ちょうどは減らさない
+        assertFalse(feedWindow(controller, lateLimit, false, 0));
+        assertEquals(10, controller.getLimit());
+
+        assertTrue(feedWindow(controller, lateLimit + 1, true, 0));
+        assertEquals((int) (10 * ConcurrencyController.DECREASE_FACTOR), controller.getLimit());
+
+        assertTrue(feedWindow(controller, ConcurrencyController.WINDOW_FRAMES, true, 0));
+        assertEquals((int) (7 * ConcurrencyController.DECREASE_FACTOR), controller.getLimit());
+    }
+
+    @Test
+    public void lateFramesAtThresholdAreNotLate() {
+        ConcurrencyController controller = new ConcurrencyController(1, 10, 10);
+
+        for (int i = 0; i < ConcurrencyController.WINDOW_FRAMES; i++) {
+            controller.onFrame(ConcurrencyController.LATE_THRESHOLD_MS, false, 0);
+        }
+        assertEquals(10, controller.getLimit());
+    }
+
+    @Test
+    public void neverDecreasesBelowMin() {
+        ConcurrencyController controller = new ConcurrencyController(3, 10, 4);
+
+        feedWindow(controller, ConcurrencyController.WINDOW_FRAMES, false, 0);
+        assertEquals(3, controller.getLimit());
+
+        assertFalse(feedWindow(controller, ConcurrencyController.WINDOW_FRAMES, false, 0));
+        assertEquals(3, controller.getLimit());
+    }
+
+    @Test
+    public void waitsForCooldownBeforeIncreasingAfterDecrease() {
+        ConcurrencyController controller = new ConcurrencyController(1, 10, 10);
+        long decreasedNs = 1000;
+
+        feedWindow(controller, ConcurrencyController.WINDOW_FRAMES, false, decreasedNs);
+        assertEquals(7, controller.getLimit());
+
+        assertFalse(feedWindow(controller, 0, true, decreasedNs + COOLDOWN_NS - 1));
+        assertEquals(7, controller.getLimit());
+
+        assertTrue(feedWindow(controller, 0, true, decreasedNs + COOLDOWN_NS));
+        assertEquals(8, controller.getLimit());
+    }
+
+    @Test
+    public void failureCutsToBelowRunningCount() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 8);
+
+        // 再生中の数より1つ少なくする方が、乗算減少より小さい
+        assertTrue(controller.onFailure(3, 0));
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void failureCutsMultiplicativelyWhenManyAreRunning() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 8);
+
+        assertTrue(controller.onFailure(8, 0));
+        assertEquals((int) (8 * ConcurrencyController.DECREASE_FACTOR), controller.getLimit());
+    }
+
+    @Test
+    public void failureNeverCutsBelowMin() {
+        ConcurrencyController controller = new ConcurrencyController(2, 8, 2);
+
+        assertFalse(controller.onFailure(1, 0));
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void failureStartsCooldownAndResetsWindow() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 8);
+        long failedNs = 5000;
+
+        // 判定期間の途中まで遅延フレームを与えてから失敗させる
+        for (int i = 0; i < ConcurrencyController.WINDOW_FRAMES - 1; i++) {
+            controller.onFrame(LATE_MS, false, failedNs);
+        }
+        controller.onFailure(8, failedNs);
+        assertEquals(5, controller.getLimit());
+
+        // 失敗前のフレームは数えないので、次の期間が遅延なしなら減らさない。冷却中なので増やさない
+        assertFalse(feedWindow(controller, 0, true, failedNs + 1));
+        assertEquals(5, controller.getLimit());
+
+        assertTrue(feedWindow(controller, 0, true, failedNs + COOLDOWN_NS));
+        assertEquals(6, controller.getLimit());
+    }
+
+    @Test
+    public void clampsInitialLimitToBounds() {
+        assertEquals(2, new ConcurrencyController(2, 6, 1).getLimit());
+        assertEquals(6, new ConcurrencyController(2, 6, 9).getLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidBounds() {
+        new ConcurrencyController(3, 2, 2);
+    }
+}
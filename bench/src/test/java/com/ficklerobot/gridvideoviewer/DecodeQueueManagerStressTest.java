@@ -0,0 +1,321 @@
+package com.ficklerobot.gridvideoviewer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 数百のセルから同時にDecodeQueueManagerを操作し、再生枠の割り当てが壊れないことを確かめる<br>
+ * 再生の終了・優先度の変更・割り込み・停止・同時再生数の変更による取り上げ・clear()を混ぜて繰り返し、
+ * 同時再生数を超えて割り当てないこと、最後に並んだ全てのセルに再生枠が割り当てられることを確認する
+ */
+public class DecodeQueueManagerStressTest {
+    private static final int CELL_COUNT = 400;
+    private static final int THREAD_COUNT = 8;
+    /** セルを操作し続ける時間(ミリ秒) */
+    private static final long CHURN_MS = 2000;
+    /** 同時再生数を変更する間隔(ミリ秒) */
+    private static final long RESIZE_INTERVAL_MS = 20;
+    /** clear()を呼び出す間隔(ミリ秒) */
+    private static final long CLEAR_INTERVAL_MS = 300;
+    private static final int MAX_RUN_COUNT = 8;
+    /** 最後に全てのセルが割り当てられるまで待つ時間の上限(ミリ秒) */
+    private static final long DRAIN_TIMEOUT_MS = 10000;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_WAITING = 1;
+    private static final int STATE_RUNNING = 2;
+
+    private final DecodeQueueManager mManager = new DecodeQueueManager();
+    private final FakeTask[] mCells = new FakeTask[CELL_COUNT];
+    /** 再生枠を取り上げられ、並び直すセル。アプリではワーカーから外れた後に並び直す */
+    private final ConcurrentLinkedQueue<FakeTask> mSuspended = new ConcurrentLinkedQueue<>();
+
+    // 以下はmManagerのロックを保持して読み書きする。再生枠の割り当てと取り上げもこのロックの中で行われる
+    /** 現在の同時再生数 */
+    private int mLimit;
+    /** 再生枠を割り当てられているセル数 */
+    private int mRunning;
+    private int mMaxRunning;
+    private int mOverGrants;
+    private int mDoubleGrants;
+
+    @Test(timeout = 60000)
+    public void neverOverGrantsAndGrantsEveryWaiter() throws Exception {
+        for (int i = 0; i < CELL_COUNT; i++) {
+            mCells[i] = new FakeTask(i);
+        }
+        setLimit(MAX_RUN_COUNT);
+
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        final ArrayList<Throwable> errors = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final long seed = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (isRunning.get()) {
+                            churn(random);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            }, "churn-" + t));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        // 同時再生数を上下させて取り上げを起こし、時々clear()する
+        Random random = new Random(THREAD_COUNT);
+        long startMs = System.currentTimeMillis();
+        long lastClearMs = startMs;
+        while (System.currentTimeMillis() - startMs < CHURN_MS) {
+            Thread.sleep(RESIZE_INTERVAL_MS);
+            setLimit(1 + random.nextInt(MAX_RUN_COUNT));
+
+            if (System.currentTimeMillis() - lastClearMs >= CLEAR_INTERVAL_MS) {
+                clearAll();
+                lastClearMs = System.currentTimeMillis();
+            }
+        }
+
+        isRunning.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+
+        // clear()の後に全てのセルを並ばせ、再生中のものを終わらせていけば全て割り当てられる
+        clearAll();
+        setLimit(MAX_RUN_COUNT / 2);
+        mSuspended.clear();
+
+        for (FakeTask cell : mCells) {
+            cell.isGrantedSinceMark = false;
+            offer(cell);
+        }
+
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (countGranted() < CELL_COUNT) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Waiters are not granted. granted:" + countGranted() + "/" + CELL_COUNT);
+            }
+
+            reofferSuspended();
+            for (FakeTask cell : mCells) {
+                finish(cell, false);
+            }
+        }
+
+        synchronized (mManager) {
+            assertEquals("over grants", 0, mOverGrants);
+            assertEquals("double grants", 0, mDoubleGrants);
+            assertTrue("max running:" + mMaxRunning, mMaxRunning <= MAX_RUN_COUNT);
+        }
+    }
+
+    /**
+     * ランダムなセルにランダムな操作をする
+     */
+    private void churn(Random random) {
+        reofferSuspended();
+
+        FakeTask cell = mCells[random.nextInt(CELL_COUNT)];
+        int action = random.nextInt(100);
+
+        if (action < 40) {
+            finish(cell, random.nextBoolean());
+        } else if (action < 65) {
+            offer(cell);
+        } else if (action < 85) {
+            mManager.updatePriority(cell, random.nextInt(DecodeQueueManager.PRIORITY_HIDDEN + 1));
+        } else if (action < 92) {
+            synchronized (mManager) {
+                if (cell.state == STATE_IDLE) {
+                    cell.state = STATE_WAITING;
+                }
+                mManager.interrupt(cell);
+            }
+        } else {
+            synchronized (mManager) {
+                mManager.notifyStop(cell);
+                if (cell.state == STATE_WAITING) {
+                    cell.state = STATE_IDLE;
+                }
+            }
+        }
+    }
+
+    /**
+     * 再生待ちキューに並ぶ。並ぶと同時に割り当てられる場合があるので、状態はロックの中で先に変える
+     */
+    private void offer(FakeTask cell) {
+        synchronized (mManager) {
+            if (cell.state == STATE_IDLE) {
+                cell.state = STATE_WAITING;
+                mManager.offerDecoder(cell);
+            }
+        }
+    }
+
+    /**
+     * 再生中であれば再生を終えて再生枠を返す。アプリのDecodeSession#onDetached()と同じくロックの中で外す
+     *
+     * @param reoffer true:続けて再生待ちキューに並び直す
+     */
+    private void finish(FakeTask cell, boolean reoffer) {
+        synchronized (mManager) {
+            if (cell.state != STATE_RUNNING) {
+                return;
+            }
+
+            mRunning--;
+            cell.state = STATE_IDLE;
+            mManager.removeDecoder(cell);
+
+            if (reoffer) {
+                offer(cell);
+            }
+        }
+    }
+
+    private void reofferSuspended() {
+        FakeTask cell;
+        while ((cell = mSuspended.poll()) != null) {
+            offer(cell);
+        }
+    }
+
+    private void setLimit(int limit) {
+        synchronized (mManager) {
+            mLimit = limit;
+            mManager.setMaxRunCount(limit);
+        }
+    }
+
+    /**
+     * アプリで一覧を読み込み直す場合と同じく、全てのセルをキューから外す
+     */
+    private void clearAll() {
+        synchronized (mManager) {
+            mManager.clear();
+            mRunning = 0;
+            for (FakeTask cell : mCells) {
+                cell.state = STATE_IDLE;
+            }
+        }
+    }
+
+    private int countGranted() {
+        synchronized (mManager) {
+            int count = 0;
+            for (FakeTask cell : mCells) {
+                if (cell.isGrantedSinceMark) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 再生枠の割り当てと取り上げを記録するだけのDecodeTask
+     */
+    private class FakeTask implements DecodeTask {
+        private final int mSurfaceNumber;
+        private volatile int mPriority = DecodeQueueManager.PRIORITY_VISIBLE;
+        /** STATE_IDLE|STATE_WAITING|STATE_RUNNING mManagerのロックを保持して読み書きする */
+        int state = STATE_IDLE;
+        /** 最後に全てのセルを並ばせてから割り当てられたか */
+        boolean isGrantedSinceMark;
+
+        FakeTask(int surfaceNumber) {
+            this.mSurfaceNumber = surfaceNumber;
+        }
+
+        @Override
+        public int getSurfaceNumber() {
+            return mSurfaceNumber;
+        }
+
+        @Override
+        public int getDisplayPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public void setDisplayPriority(int displayPriority) {
+            mPriority = displayPriority;
+        }
+
+        /**
+         * mManagerのロックの中で呼び出される
+         */
+        @Override
+        public void onGranted(long waitNs) {
+            if (state == STATE_RUNNING) {
+                mDoubleGrants++;
+                return;
+            }
+
+            state = STATE_RUNNING;
+            isGrantedSinceMark = true;
+            mRunning++;
+            mMaxRunning = Math.max(mMaxRunning, mRunning);
+            if (mRunning > mLimit) {
+                mOverGrants++;
+            }
+        }
+
+        /**
+         * mManagerのロックの中で呼び出される
+         */
+        @Override
+        public void suspend() {
+            if (state == STATE_RUNNING) {
+                mRunning--;
+                state = STATE_IDLE;
+                mSuspended.add(this);
+            }
+        }
+
+        @Override
+        public void releaseSuspended() {
+            // nop
+        }
+
+        @Override
+        public void setWorker(DecodeEngine.Worker worker) {
+            // nop
+        }
+
+        @Override
+        public long step(long nowNs) {
+            return DETACH;
+        }
+
+        @Override
+        public void onDetached() {
+            // nop
+        }
+    }
+}
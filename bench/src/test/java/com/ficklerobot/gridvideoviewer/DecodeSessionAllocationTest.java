@@ -0,0 +1,138 @@
+package com.ficklerobot.gridvideoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 再生中のDecodeSession#step()がメモリを確保しないことを確かめる<br>
+ * アプリと同じDecodeSessionをSyntheticDecoderとSyntheticSampleSourceで動かし、
+ * ワーカーの代わりにこのスレッドからstep()を呼び出して、定常状態で確保したバイト数を数える。
+ * 時刻はstep()が要求した時刻まで進める仮想の時計を使うので、待機せずに全てのフレームを表示できる
+ */
+public class DecodeSessionAllocationTest {
+    private static final int FRAME_RATE = 30;
+    /** 確保量を数える前に表示するフレーム数。JITのコンパイルと集計の初期化を済ませる */
+    private static final int WARMUP_FRAMES = 20000;
+    /** 確保量を数えるフレーム数 */
+    private static final int MEASURED_FRAMES = 5000;
+    /** 1フレームあたりのstep()の呼び出し回数の上限。進まなくなった場合に止める */
+    private static final int MAX_STEPS_PER_FRAME = 16;
+
+    private com.sun.management.ThreadMXBean mThreadBean;
+    private long mThreadId;
+
+    private DecodeSession mSession;
+    private CountingSink mSink;
+    private long mNowNs;
+
+    @Before
+    public void setUp() {
+        mThreadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+        mThreadId = Thread.currentThread().getId();
+
+        DecodeQueueManager queueManager = new DecodeQueueManager();
+        queueManager.setMaxRunCount(1);
+        queueManager.setRoundRobinQuantum(0, 0);
+
+        SyntheticDecoder.Factory factory = new SyntheticDecoder.Factory(1, 0, 0, 0, 0, 0);
+        SyntheticResources resources = new SyntheticResources(0, factory,
+                new SyntheticSampleSource(FRAME_RATE, FRAME_RATE, 4 * 1024), queueManager);
+
+        mSink = new CountingSink();
+        mSession = new DecodeSession(0, resources, mSink, queueManager,
+                DecodeQueueManager.PRIORITY_VISIBLE, false);
+
+        // 登録済みとして扱わせ、再生枠が割り当てられてもDecodeEngineのワーカーに渡さない
+        mSession.setWorker(new DecodeEngine.Worker(-1));
+        mSession.setVideoData(new PlaybackItem());
+
+        mNowNs = System.nanoTime();
+    }
+
+    @After
+    public void tearDown() {
+        mSession.stopDecode();
+        step();
+    }
+
+    @Test
+    public void steadyStatePlaybackDoesNotAllocate() {
+        assertTrue("Thread allocation counting is not supported",
+                mThreadBean.isThreadAllocatedMemorySupported());
+
+        playFrames(WARMUP_FRAMES);
+
+        // getThreadAllocatedBytes()自体の確保量を差し引く
+        long overheadBytes = mThreadBean.getThreadAllocatedBytes(mThreadId);
+        overheadBytes = mThreadBean.getThreadAllocatedBytes(mThreadId) - overheadBytes;
+
+        long startBytes = mThreadBean.getThreadAllocatedBytes(mThreadId);
+        playFrames(MEASURED_FRAMES);
+        long allocatedBytes = mThreadBean.getThreadAllocatedBytes(mThreadId)
+                - startBytes - overheadBytes;
+
+        assertEquals("allocated bytes in " + MEASURED_FRAMES + " frames", 0, allocatedBytes);
+    }
+
+    /**
+     * 指定数のフレームが表示されるまでstep()を呼び出す
+     */
+    private void playFrames(int frames) {
+        long target = mSink.frames + frames;
+        long maxSteps = (long) frames * MAX_STEPS_PER_FRAME;
+
+        for (long i = 0; mSink.frames < target; i++) {
+            if (i >= maxSteps) {
+                throw new AssertionError("Playback stalled. frames:" + mSink.frames);
+            }
+            assertTrue("Session detached", step() != DecodeTask.DETACH);
+        }
+    }
+
+    /**
+     * step()を1回呼び出し、要求された時刻まで仮想の時計を進める
+     *
+     * @return step()の戻り値
+     */
+    private long step() {
+        long nextNs = mSession.step(mNowNs);
+        if (nextNs != DecodeTask.DETACH && nextNs > mNowNs) {
+            mNowNs = nextNs;
+        }
+        return nextNs;
+    }
+
+    /**
+     * 表示したフレーム数だけを数えるFrameSink
+     */
+    private static class CountingSink implements FrameSink {
+        long frames;
+
+        @Override
+        public void onReady() {
+            // nop
+        }
+
+        @Override
+        public void onStarted() {
+            // nop
+        }
+
+        @Override
+        public void onFrame(long ptsUs, long renderNs) {
+            frames++;
+        }
+
+        @Override
+        public void onFailure(String message) {
+            // nop
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.ficklerobot.gridvideoviewer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * DecodeSession#step()の中で発生した例外が、ワーカーに漏れずに再生の失敗として扱われることを確かめる
+ */
+public class DecodeSessionFailureTest {
+    private static final int FRAME_RATE = 30;
+    /** 待つ間にstep()を呼び出す回数の上限 */
+    private static final int MAX_STEPS = 1000;
+
+    private SyntheticDecoder.Factory mFactory;
+    private FailingSampleSource mSource;
+    private DecodeSession mSession;
+    private CountingSink mSink;
+    private long mNowNs;
+
+    @Before
+    public void setUp() {
+        DecodeQueueManager queueManager = new DecodeQueueManager();
+        queueManager.setMaxRunCount(1);
+
+        mFactory = new SyntheticDecoder.Factory(1, 0, 0, 0, 0, 0);
+        mSource = new FailingSampleSource(new SyntheticSampleSource(FRAME_RATE, FRAME_RATE, 1024));
+        SyntheticResources resources = new SyntheticResources(0, mFactory, mSource, queueManager);
+
+        mSink = new CountingSink();
+        mSession = new DecodeSession(0, resources, mSink, queueManager,
+                DecodeQueueManager.PRIORITY_VISIBLE, false);
+
+        // 登録済みとして扱わせ、再生枠が割り当てられてもDecodeEngineのワーカーに渡さない
+        mSession.setWorker(new DecodeEngine.Worker(-1));
+        mSession.setVideoData(new PlaybackItem());
+
+        mNowNs = System.nanoTime();
+    }
+
+    @Test
+    public void exceptionWhileOpeningSourceFailsPlayback() {
+        mSource.failSeek = true;
+
+        assertEquals(DecodeTask.DETACH, mSession.step(mNowNs));
+        assertEquals(1, mSink.failures);
+        assertEquals(0, mFactory.getActiveCount());
+    }
+
+    @Test
+    public void exceptionWhileDecodingReleasesDecoder() {
+        runUntilFrames(10);
+        assertEquals(1, mFactory.getActiveCount());
+
+        mSource.failRead = true;
+
+        assertEquals(DecodeTask.DETACH, runUntilDetached());
+        assertEquals(1, mSink.failures);
+        assertEquals(0, mFactory.getActiveCount());
+    }
+
+    private void runUntilFrames(int frames) {
+        for (int i = 0; i < MAX_STEPS && mSink.frames < frames; i++) {
+            step();
+        }
+        assertEquals(frames, mSink.frames);
+    }
+
+    private long runUntilDetached() {
+        for (int i = 0; i < MAX_STEPS; i++) {
+            if (step() == DecodeTask.DETACH) {
+                return DecodeTask.DETACH;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * step()を1回呼び出し、要求された時刻まで仮想の時計を進める
+     */
+    private long step() {
+        long nextNs = mSession.step(mNowNs);
+        if (nextNs != DecodeTask.DETACH && nextNs > mNowNs) {
+            mNowNs = nextNs;
+        }
+        return nextNs;
+    }
+
+    /**
+     * 指定した操作で例外を発生させるSampleSource
+     */
+    private static class FailingSampleSource implements SampleSource {
+        private final SampleSource mSource;
+        boolean failSeek;
+        boolean failRead;
+
+        FailingSampleSource(SampleSource source) {
+            this.mSource = source;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            if (failRead) {
+                throw new IllegalStateException("Injected read failure");
+            }
+            return mSource.readSampleData(buffer, offset);
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mSource.getSampleTime();
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return mSource.getSampleFlags();
+        }
+
+        @Override
+        public boolean advance() {
+            return mSource.advance();
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+            if (failSeek) {
+                throw new IllegalStateException("Injected seek failure");
+            }
+            mSource.seekTo(timeUs, mode);
+        }
+
+        @Override
+        public void release() {
+            mSource.release();
+        }
+    }
+
+    /**
+     * 表示したフレーム数と失敗の通知数を数えるFrameSink
+     */
+    private static class CountingSink implements FrameSink {
+        int frames;
+        int failures;
+
+        @Override
+        public void onReady() {
+            // nop
+        }
+
+        @Override
+        public void onStarted() {
+            // nop
+        }
+
+        @Override
+        public void onFrame(long ptsUs, long renderNs) {
+            frames++;
+        }
+
+        @Override
+        public void onFailure(String message) {
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.ficklerobot.gridvideoviewer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * FramePacerの表示判断と統計値
+ */
+public class FramePacerTest {
+    private static final long MS = 1000 * 1000;
+    private static final long DROP_TOLERANCE_NS = 50 * MS;
+    private static final long RENDER_AHEAD_NS = 30 * MS;
+    /** 基準時刻(ナノ秒) */
+    private static final long BASE_NS = 1000 * MS;
+    /** 30fpsのフレーム間隔(マイクロ秒) */
+    private static final long FRAME_US = 33333;
+
+    /**
+     * 基準から0番目のフレームを予定通りに表示した状態のFramePacerを作る
+     */
+    private static FramePacer startedPacer(long renderAheadNs) {
+        FramePacer pacer = new FramePacer(DROP_TOLERANCE_NS, renderAheadNs);
+        pacer.start(0, BASE_NS);
+        assertEquals(FramePacer.ACTION_RENDER, pacer.decide(0, BASE_NS));
+        return pacer;
+    }
+
+    @Test
+    public void deadlineFollowsPtsFromStart() {
+        FramePacer pacer = new FramePacer(DROP_TOLERANCE_NS, RENDER_AHEAD_NS);
+        pacer.start(5000000, BASE_NS);
+
+        assertEquals(BASE_NS, pacer.getDeadlineNs(5000000));
+        assertEquals(BASE_NS + FRAME_US * 1000, pacer.getDeadlineNs(5000000 + FRAME_US));
+        assertEquals(BASE_NS + FRAME_US * 1000 - RENDER_AHEAD_NS,
+                pacer.getWakeNs(5000000 + FRAME_US));
+        assertEquals(-FRAME_US * 1000, pacer.getLatenessNs(5000000 + FRAME_US, BASE_NS));
+    }
+
+    @Test
+    public void waitsUntilDeadline() {
+        FramePacer pacer = startedPacer(0);
+        long deadlineNs = pacer.getDeadlineNs(FRAME_US);
+
+        assertEquals(FramePacer.ACTION_WAIT, pacer.decide(FRAME_US, deadlineNs - 1));
+        assertEquals(FramePacer.ACTION_RENDER, pacer.decide(FRAME_US, deadlineNs));
+    }
+
+    @Test
+    public void rendersAheadOfDeadline() {
+        FramePacer pacer = startedPacer(RENDER_AHEAD_NS);
+        long deadlineNs = pacer.getDeadlineNs(FRAME_US);
+
+        assertEquals(FramePacer.ACTION_WAIT,
+                pacer.decide(FRAME_US, deadlineNs - RENDER_AHEAD_NS - 1));
+        assertEquals(FramePacer.ACTION_RENDER, pacer.decide(FRAME_US, deadlineNs - RENDER_AHEAD_NS));
+    }
+
+    @Test
+    public void rendersLateFrameWithinTolerance() {
+        FramePacer pacer = startedPacer(0);
+        long deadlineNs = pacer.getDeadlineNs(FRAME_US);
+
+        assertEquals(FramePacer.ACTION_RENDER,
+                pacer.decide(FRAME_US, deadlineNs + DROP_TOLERANCE_NS));
+        assertEquals(0, pacer.getDroppedCount());
+    }
+
+    @Test
+    public void dropsFrameLaterThanTolerance() {
+        FramePacer pacer = startedPacer(0);
+        long deadlineNs = pacer.getDeadlineNs(FRAME_US);
+
+        assertEquals(FramePacer.ACTION_DROP,
+                pacer.decide(FRAME_US, deadlineNs + DROP_TOLERANCE_NS + 1));
+        assertEquals(1, pacer.getDroppedCount());
+        assertEquals(1, pacer.getRenderedCount());
+    }
+
+    @Test
+    public void rendersFirstFrameAfterStartEvenIfLate() {
+        FramePacer pacer = new FramePacer(DROP_TOLERANCE_NS, 0);
+        pacer.start(0, BASE_NS);
+
+        assertEquals(FramePacer.ACTION_RENDER, pacer.decide(0, BASE_NS + 1000 * MS));
+        // 2フレーム目からは捨てる
+        assertEquals(FramePacer.ACTION_DROP, pacer.decide(FRAME_US, BASE_NS + 1000 * MS));
+
+        // 基準を設定し直すと、最初のフレームは再び表示する
+        pacer.start(FRAME_US * 2, BASE_NS);
+        assertEquals(FramePacer.ACTION_RENDER, pacer.decide(FRAME_US * 2, BASE_NS + 1000 * MS));
+    }
+
+    @Test
+    public void firstFrameStillWaitsForDeadline() {
+        FramePacer pacer = new FramePacer(DROP_TOLERANCE_NS, 0);
+        pacer.start(0, BASE_NS);
+
+        assertEquals(FramePacer.ACTION_WAIT, pacer.decide(FRAME_US, BASE_NS));
+    }
+
+    @Test
+    public void rendersOneFrameAfterMaxConsecutiveDrops() {
+        FramePacer pacer = startedPacer(0);
+        long lateNs = BASE_NS + 10000 * MS;
+        long ptsUs = FRAME_US;
+
+        for (int i = 0; i < FramePacer.MAX_CONSECUTIVE_DROPS; i++) {
+            assertEquals(FramePacer.ACTION_DROP, pacer.decide(ptsUs, lateNs));
+            ptsUs += FRAME_US;
+        }
+        assertEquals(FramePacer.ACTION_RENDER, pacer.decide(ptsUs, lateNs));
+        ptsUs += FRAME_US;
+
+        // 表示したら連続数は数え直す
+        for (int i = 0; i < FramePacer.MAX_CONSECUTIVE_DROPS; i++) {
+            assertEquals(FramePacer.ACTION_DROP, pacer.decide(ptsUs, lateNs));
+            ptsUs += FRAME_US;
+        }
+        assertEquals(FramePacer.ACTION_RENDER, pacer.decide(ptsUs, lateNs));
+
+        assertEquals(FramePacer.MAX_CONSECUTIVE_DROPS * 2, pacer.getDroppedCount());
+        assertEquals(3, pacer.getRenderedCount());
+    }
+
+    @Test
+    public void startResetsConsecutiveDrops() {
+        FramePacer pacer = startedPacer(0);
+        long lateNs = BASE_NS + 10000 * MS;
+
+        for (int i = 1; i < FramePacer.MAX_CONSECUTIVE_DROPS; i++) {
+            assertEquals(FramePacer.ACTION_DROP, pacer.decide(FRAME_US * i, lateNs));
+        }
+
+        pacer.start(0, BASE_NS);
+        assertEquals(FramePacer.ACTION_RENDER, pacer.decide(0, BASE_NS));
+        for (int i = 1; i <= FramePacer.MAX_CONSECUTIVE_DROPS; i++) {
+            assertEquals(FramePacer.ACTION_DROP, pacer.decide(FRAME_US * i, lateNs));
+        }
+    }
+
+    @Test
+    public void recordsDriftOfRenderedFramesOnly() {
+        FramePacer pacer = new FramePacer(DROP_TOLERANCE_NS, RENDER_AHEAD_NS);
+        pacer.start(0, BASE_NS);
+
+        // 予定より早く表示したものは遅れ0として数える
+        pacer.decide(0, BASE_NS - 10 * MS);
+        pacer.decide(FRAME_US, pacer.getDeadlineNs(FRAME_US) + 10 * MS);
+        pacer.decide(FRAME_US * 2, pacer.getDeadlineNs(FRAME_US * 2) + 20 * MS);
+        // 捨てたフレームの遅れは含めない
+        pacer.decide(FRAME_US * 3, pacer.getDeadlineNs(FRAME_US * 3) + 500 * MS);
+
+        assertEquals(3, pacer.getRenderedCount());
+        assertEquals(1, pacer.getDroppedCount());
+        assertEquals(10 * MS, pacer.getAverageDriftNs());
+        assertEquals(20 * MS, pacer.getMaxDriftNs());
+
+        // start()では統計値をリセットしない
+        pacer.start(0, BASE_NS);
+        assertEquals(3, pacer.getRenderedCount());
+        assertEquals(20 * MS, pacer.getMaxDriftNs());
+    }
+
+    @Test
+    public void averageDriftIsZeroBeforeAnyFrame() {
+        FramePacer pacer = new FramePacer(DROP_TOLERANCE_NS, 0);
+
+        assertEquals(0, pacer.getAverageDriftNs());
+        assertEquals(0, pacer.getMaxDriftNs());
+    }
+}